@@ -0,0 +1,83 @@
+package com.photobooth.bench;
+
+import com.photobooth.config.ConfigManager;
+import com.photobooth.config.ImagePosition;
+import com.photobooth.config.TemplateConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Đo {@link ConfigManager#loadAllConfigs} và {@link ConfigManager#loadConfig} với hàng trăm layout đã lưu.
+ * <p>
+ * {@link ConfigManager} đọc thư mục cấu hình từ {@code user.home} khi nạp lớp, nên mỗi lần chạy (fork) trỏ
+ * {@code user.home} vào một thư mục tạm trước khi dùng tới lớp này; thư mục cấu hình thật của máy không bị đụng tới.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ConfigBenchmark {
+
+    @Param({"100", "500"})
+    public int configCount;
+
+    /** Số ô của mỗi layout. */
+    @Param({"6"})
+    public int slots;
+
+    private Path home;
+    private String originalHome;
+    private ConfigManager manager;
+    private String lookupName;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        home = Files.createTempDirectory("photobooth-bench-config");
+        originalHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.toString());
+
+        manager = new ConfigManager();
+        for (int i = 0; i < configCount; i++) {
+            List<ImagePosition> positions = Fixtures.stripLayout(1200 + i % 7, 3600, slots);
+            manager.saveConfig(new TemplateConfig(String.format("Event %04d - Layout", i), positions));
+        }
+        // Tra cứu một layout ở giữa danh sách, không phải phần tử đầu tiên
+        lookupName = String.format("Event %04d - Layout", configCount / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setProperty("user.home", originalHome);
+        Fixtures.deleteRecursively(home);
+    }
+
+    @Benchmark
+    public List<TemplateConfig> loadAllConfigs() {
+        return manager.loadAllConfigs();
+    }
+
+    @Benchmark
+    public Optional<TemplateConfig> loadConfig() {
+        return manager.loadConfig(lookupName);
+    }
+}
@@ -0,0 +1,179 @@
+package com.photobooth.bench;
+
+import com.photobooth.config.ImagePosition;
+
+import javax.imageio.ImageIO;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Dữ liệu tổng hợp dùng chung cho các benchmark: ảnh chụp, ảnh khung có các ô trong suốt, preset Hald CLUT và layout.
+ * <p>
+ * Mọi dữ liệu được sinh với seed cố định nên các lần chạy (và các máy khác nhau) đo trên cùng một đầu vào.
+ */
+public final class Fixtures {
+
+    private static final long SEED = 20240611L;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Sinh một ảnh "chụp" giả: dải màu chéo cộng nhiễu, để bộ giải mã và bộ nén phải làm việc như với ảnh thật
+     * (ảnh phẳng một màu sẽ nén/giải nén nhanh bất thường).
+     *
+     * @param width  Chiều rộng ảnh.
+     * @param height Chiều cao ảnh.
+     * @param seed   Seed của nhiễu, để mỗi ảnh trong một dải khác nhau.
+     */
+    public static BufferedImage photo(int width, int height, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, new Color(0xC8A27C), width, height, new Color(0x2E4A6B)));
+            g.fillRect(0, 0, width, height);
+        } finally {
+            g.dispose();
+        }
+        SplittableRandom random = new SplittableRandom(SEED ^ seed);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(-12, 13);
+                int r = clamp(((row[x] >> 16) & 0xFF) + noise);
+                int gr = clamp(((row[x] >> 8) & 0xFF) + noise);
+                int b = clamp((row[x] & 0xFF) + noise);
+                row[x] = (r << 16) | (gr << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Ghi {@code count} ảnh chụp JPEG (chất lượng mặc định của ImageIO) vào thư mục.
+     *
+     * @return Danh sách tệp theo thứ tự.
+     */
+    public static List<File> writePhotos(Path dir, int count, int width, int height) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File file = dir.resolve(String.format("photo_%02d.jpg", i)).toFile();
+            write(photo(width, height, i), "jpg", file);
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Layout dạng dải ảnh dọc: {@code slots} ô xếp chồng, chừa lề và khoảng cách giống một khung 2x6 thông thường.
+     */
+    public static List<ImagePosition> stripLayout(int templateWidth, int templateHeight, int slots) {
+        double margin = templateWidth * 0.06;
+        double footer = templateHeight * 0.12;
+        double slotHeight = (templateHeight - footer - margin * (slots + 1)) / slots;
+        List<ImagePosition> positions = new ArrayList<>();
+        for (int i = 0; i < slots; i++) {
+            positions.add(new ImagePosition(margin, margin + i * (slotHeight + margin), templateWidth - 2 * margin, slotHeight));
+        }
+        return positions;
+    }
+
+    /**
+     * Ảnh khung PNG ARGB: nền màu, các ô của layout được đục trong suốt và có viền mờ, giống khung thiết kế thật.
+     */
+    public static BufferedImage template(int width, int height, List<ImagePosition> positions) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, new Color(0xF4E9DC), 0, height, new Color(0xE0C9B1)));
+            g.fillRect(0, 0, width, height);
+            g.setComposite(AlphaComposite.Clear);
+            for (ImagePosition pos : positions) {
+                g.fillRect((int) pos.x(), (int) pos.y(), (int) pos.width(), (int) pos.height());
+            }
+            g.setComposite(AlphaComposite.SrcOver.derive(0.35f));
+            g.setColor(Color.WHITE);
+            for (ImagePosition pos : positions) {
+                g.drawRect((int) pos.x() + 4, (int) pos.y() + 4, (int) pos.width() - 8, (int) pos.height() - 8);
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Preset Hald CLUT cấp {@code level} (ảnh vuông cạnh level³, LUT level² điểm mỗi kênh) với tông ấm nhẹ.
+     * Cấp 8 (512x512, LUT 64³) là kích thước thường gặp của các preset xuất từ Lightroom/Photoshop.
+     */
+    public static BufferedImage haldClut(int level) {
+        int cube = level * level;
+        int side = cube * level;
+        BufferedImage image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = new int[side * side];
+        for (int b = 0; b < cube; b++) {
+            for (int g = 0; g < cube; g++) {
+                for (int r = 0; r < cube; r++) {
+                    double rf = r / (cube - 1.0), gf = g / (cube - 1.0), bf = b / (cube - 1.0);
+                    int ro = clamp((int) Math.round(Math.pow(rf, 0.92) * 255 + 6));
+                    int go = clamp((int) Math.round(gf * 255));
+                    int bo = clamp((int) Math.round(Math.pow(bf, 1.08) * 255 - 4));
+                    pixels[r + g * cube + b * cube * cube] = (ro << 16) | (go << 8) | bo;
+                }
+            }
+        }
+        image.setRGB(0, 0, side, side, pixels, 0, side);
+        return image;
+    }
+
+    /** Ghi ảnh ra tệp, báo lỗi nếu không có writer cho định dạng. */
+    public static void write(BufferedImage image, String format, File file) throws IOException {
+        if (!ImageIO.write(image, format, file)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+    }
+
+    /**
+     * Phân tích tham số kích thước dạng {@code "WxH"}.
+     *
+     * @return Mảng {@code {W, H}}.
+     */
+    public static int[] parseSize(String size) {
+        String[] parts = size.toLowerCase().split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Size must be WxH: " + size);
+        }
+        return new int[]{Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())};
+    }
+
+    /** Xóa toàn bộ thư mục tạm của benchmark (bỏ qua lỗi, chỉ dùng khi dọn dẹp). */
+    public static void deleteRecursively(Path dir) {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,100 @@
+package com.photobooth.bench;
+
+import com.photobooth.config.ImagePosition;
+import com.photobooth.processing.ImageProcessor;
+import com.photobooth.processing.OutputOptions;
+import com.photobooth.processing.RenderEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Đo toàn bộ {@link ImageProcessor#processImages} (giải mã, resize, chỉnh màu, ghép và mã hóa tệp kết quả)
+ * trên ảnh chụp và ảnh khung tổng hợp với nhiều kích thước.
+ * <p>
+ * Cache tile bị tắt để mỗi lần gọi đều xử lý lại từ đầu như lần xuất đầu tiên của một dải ảnh.
+ * Engine ImageMagick không nằm trong danh sách mặc định (cần {@code magick} trong PATH);
+ * có thể thêm bằng {@code -p engine=IMAGEMAGICK,IMAGEMAGICK_SINGLE_COMMAND}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class RenderBenchmark {
+
+    /** Kích thước ảnh khung: dải 2x6 ở 300 dpi, 600 dpi và khổ poster. */
+    @Param({"600x1800", "1200x3600", "2400x7200"})
+    public String templateSize;
+
+    /** Kích thước ảnh chụp gốc (12 MP và 24 MP là phổ biến với máy ảnh của photobooth). */
+    @Param({"4000x3000"})
+    public String photoSize;
+
+    @Param({"4"})
+    public int slots;
+
+    @Param({"JAVA", "JAVA_BANDED"})
+    public RenderEngine engine;
+
+    private Path workDir;
+    private File exportFolder;
+    private File templateFile;
+    private File presetFile;
+    private List<File> images;
+    private List<ImagePosition> positions;
+    private int templateWidth;
+    private int templateHeight;
+    private ImageProcessor processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] template = Fixtures.parseSize(templateSize);
+        int[] photo = Fixtures.parseSize(photoSize);
+        templateWidth = template[0];
+        templateHeight = template[1];
+
+        workDir = Files.createTempDirectory("photobooth-bench-render");
+        exportFolder = Files.createDirectories(workDir.resolve("out")).toFile();
+        images = Fixtures.writePhotos(Files.createDirectories(workDir.resolve("photos")), slots, photo[0], photo[1]);
+        positions = Fixtures.stripLayout(templateWidth, templateHeight, slots);
+        templateFile = workDir.resolve("template.png").toFile();
+        Fixtures.write(Fixtures.template(templateWidth, templateHeight, positions), "png", templateFile);
+        presetFile = workDir.resolve("preset.png").toFile();
+        Fixtures.write(Fixtures.haldClut(8), "png", presetFile);
+
+        processor = new ImageProcessor(Runtime.getRuntime().availableProcessors(), null, OutputOptions.defaults());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public long processImages() throws IOException, InterruptedException {
+        File output = processor.processImages(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions, engine);
+        long length = output.length();
+        // Không để tệp kết quả dồn lại trên đĩa qua hàng trăm lần gọi
+        Files.delete(output.toPath());
+        return length;
+    }
+}
@@ -0,0 +1,179 @@
+package com.photobooth.processing;
+
+import com.photobooth.bench.Fixtures;
+import com.photobooth.config.ImagePosition;
+import com.photobooth.lut.ColorLut;
+import com.photobooth.lut.Interpolation;
+import com.photobooth.lut.LutCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Đo riêng từng bước của engine Java: giải mã, resize "fill", áp dụng LUT, ghép lớp và mã hóa tệp kết quả.
+ * <p>
+ * Nằm trong package {@code processing} để gọi trực tiếp {@link JavaImageRenderer#fillCrop} và
+ * {@link OutputEncoder#writeJpeg} (không public). Các đầu vào của mỗi bước được chuẩn bị sẵn một lần,
+ * nên kết quả của từng benchmark chỉ phản ánh chi phí của chính bước đó.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class StageBenchmark {
+
+    @Param({"4000x3000"})
+    public String photoSize;
+
+    /** Kích thước khung dùng cho bước ghép và mã hóa (dải 2x6 ở 600 dpi). */
+    @Param({"1200x3600"})
+    public String templateSize;
+
+    @Param({"4"})
+    public int slots;
+
+    @Param({"TRILINEAR", "TETRAHEDRAL"})
+    public Interpolation interpolation;
+
+    private Path workDir;
+    private File photoFile;
+    private BufferedImage photo;
+    private int slotWidth;
+    private int slotHeight;
+    private ColorLut lut;
+    /** Điểm ảnh gốc của một ô, được chép lại trước mỗi lần áp dụng LUT (LUT ghi đè tại chỗ). */
+    private int[] tileSource;
+    private int[] tilePixels;
+    private List<BufferedImage> tiles;
+    private List<ImagePosition> positions;
+    private BufferedImage template;
+    private BufferedImage canvas;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] photoDims = Fixtures.parseSize(photoSize);
+        int[] templateDims = Fixtures.parseSize(templateSize);
+        workDir = Files.createTempDirectory("photobooth-bench-stage");
+
+        photoFile = Fixtures.writePhotos(workDir, 1, photoDims[0], photoDims[1]).get(0);
+        photo = JavaImageRenderer.readImage(photoFile);
+
+        positions = Fixtures.stripLayout(templateDims[0], templateDims[1], slots);
+        ImagePosition first = positions.get(0);
+        slotWidth = (int) first.width();
+        slotHeight = (int) first.height();
+
+        File presetFile = workDir.resolve("preset.png").toFile();
+        Fixtures.write(Fixtures.haldClut(8), "png", presetFile);
+        lut = LutCache.getDefault().get(presetFile, interpolation);
+
+        BufferedImage tile = ImageDecoder.decodeForSlot(photoFile, slotWidth, slotHeight);
+        tilePixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        tileSource = tilePixels.clone();
+
+        tiles = new ArrayList<>();
+        for (ImagePosition pos : positions) {
+            tiles.add(ImageDecoder.decodeForSlot(photoFile, (int) pos.width(), (int) pos.height()));
+        }
+        template = Fixtures.template(templateDims[0], templateDims[1], positions);
+        canvas = composite();
+        outputFile = workDir.resolve("output.bin").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(workDir);
+    }
+
+    /** Giải mã toàn bộ ảnh gốc (mốc so sánh cho giải mã theo vùng). */
+    @Benchmark
+    public BufferedImage decodeFull() throws IOException {
+        return JavaImageRenderer.readImage(photoFile);
+    }
+
+    /** Giải mã chỉ vùng cần thiết với subsampling, rồi resize vào ô (đường xử lý thật của engine Java). */
+    @Benchmark
+    public BufferedImage decodeForSlot() throws IOException {
+        return ImageDecoder.decodeForSlot(photoFile, slotWidth, slotHeight);
+    }
+
+    /** Resize "fill" + crop từ ảnh đã giải mã đầy đủ. */
+    @Benchmark
+    public BufferedImage fillCrop() throws IOException {
+        return JavaImageRenderer.fillCrop(photo, slotWidth, slotHeight);
+    }
+
+    /** Áp dụng preset lên một ô ảnh. */
+    @Benchmark
+    public int[] applyLut() {
+        System.arraycopy(tileSource, 0, tilePixels, 0, tileSource.length);
+        lut.apply(tilePixels, 0, tilePixels.length);
+        return tilePixels;
+    }
+
+    /** Ghép các ô và ảnh khung lên lớp nền trong suốt, như bước 2 của {@link JavaImageRenderer#render}. */
+    @Benchmark
+    public BufferedImage composite() {
+        BufferedImage result = new BufferedImage(template.getWidth(), template.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.SrcOver);
+            for (int i = 0; i < tiles.size(); i++) {
+                ImagePosition pos = positions.get(i);
+                g.drawImage(tiles.get(i), (int) pos.x(), (int) pos.y(), null);
+            }
+            g.drawImage(template, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    /** Mã hóa PNG song song trên tất cả các nhân, với tham số mặc định của ứng dụng. */
+    @Benchmark
+    public long encodePngParallel() throws IOException, InterruptedException {
+        OutputOptions options = OutputOptions.defaults();
+        new ParallelPngEncoder(options.compressionLevel(), options.pngFilter(), Runtime.getRuntime().availableProcessors()).encode(canvas, outputFile);
+        return outputFile.length();
+    }
+
+    /** Mã hóa PNG trên một luồng, để thấy phần tăng tốc của bộ mã hóa song song. */
+    @Benchmark
+    public long encodePngSingleThread() throws IOException, InterruptedException {
+        OutputOptions options = OutputOptions.defaults();
+        new ParallelPngEncoder(options.compressionLevel(), options.pngFilter(), 1).encode(canvas, outputFile);
+        return outputFile.length();
+    }
+
+    /** Mã hóa JPEG cho bản gửi khách. */
+    @Benchmark
+    public long encodeJpeg() throws IOException {
+        OutputEncoder.writeJpeg(canvas, outputFile, OutputOptions.defaults().jpegQuality());
+        return outputFile.length();
+    }
+}
@@ -0,0 +1,25 @@
+package com.photobooth.canvas;
+
+import com.photobooth.config.ImagePosition;
+
+import java.io.File;
+
+/**
+ * Một phần tử trên canvas: ảnh đã đặt vào mẫu, hoặc ô giữ chỗ (slot) từ một cấu hình đã lưu chưa được thả ảnh vào.
+ *
+ * @param id        Mã duy nhất trong canvas, cũng là id của node hiển thị.
+ * @param file      Tệp ảnh gốc, hoặc null nếu là ô giữ chỗ.
+ * @param placement Vị trí và kích thước trong hệ tọa độ của ảnh mẫu.
+ */
+public record CanvasItem(String id, File file, ImagePosition placement) {
+
+    /** @return true nếu là ô giữ chỗ (chưa có ảnh). */
+    public boolean isSlot() {
+        return file == null;
+    }
+
+    /** @return Bản sao với vị trí mới. */
+    public CanvasItem withPlacement(ImagePosition newPlacement) {
+        return new CanvasItem(id, file, newPlacement);
+    }
+}
@@ -0,0 +1,199 @@
+package com.photobooth.canvas;
+
+import com.photobooth.config.ImagePosition;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Mô hình của canvas: các ô giữ chỗ, ảnh đã đặt, vị trí của chúng và tệp gốc, tra cứu theo id.
+ * <p>
+ * Node JavaFX chỉ là phần hiển thị của mô hình: giao diện gọi các phương thức thay đổi ở đây (thả ảnh, kết thúc kéo,
+ * xóa...) rồi cập nhật node theo {@link Listener}. Mỗi thay đổi tạo một {@link CanvasSnapshot} mới (canvas chỉ có
+ * vài chục phần tử nên việc sao chép danh sách không đáng kể), nên hoàn tác/làm lại chỉ là đổi qua lại giữa các
+ * bản chụp đã giữ. Chỉ dùng trên một luồng (luồng FX).
+ */
+public class CanvasModel {
+
+    /** Nhận thông báo mỗi khi trạng thái canvas đổi. */
+    public interface Listener {
+        void changed(CanvasSnapshot before, CanvasSnapshot after);
+    }
+
+    /** Số bước hoàn tác tối đa được giữ. */
+    private static final int MAX_HISTORY = 100;
+
+    private CanvasSnapshot current = CanvasSnapshot.EMPTY;
+    private final Deque<CanvasSnapshot> undoStack = new ArrayDeque<>();
+    private final Deque<CanvasSnapshot> redoStack = new ArrayDeque<>();
+    private final List<Listener> listeners = new ArrayList<>();
+    /** Id của lần đặt vị trí gần nhất có thể gộp vào cùng một bước hoàn tác (kéo thanh trượt), hoặc null. */
+    private String mergeId;
+    private int nextId;
+
+    /** @return Trạng thái hiện tại. */
+    public CanvasSnapshot snapshot() {
+        return current;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Đặt một ảnh lên trên cùng canvas.
+     *
+     * @return Id của phần tử mới.
+     */
+    public String addPhoto(File file, ImagePosition placement) {
+        CanvasItem item = new CanvasItem(newId("photo"), file, placement);
+        List<CanvasItem> items = new ArrayList<>(current.items());
+        items.add(item);
+        commit(items, true);
+        return item.id();
+    }
+
+    /**
+     * Thả ảnh vào một ô giữ chỗ: ô được thay bằng ảnh cùng vị trí, trong một bước hoàn tác.
+     *
+     * @return Id của ảnh mới, hoặc null nếu không có ô giữ chỗ này.
+     */
+    public String fillSlot(String slotId, File file) {
+        CanvasItem slot = current.get(slotId);
+        if (slot == null || !slot.isSlot()) {
+            return null;
+        }
+        CanvasItem item = new CanvasItem(newId("photo"), file, slot.placement());
+        List<CanvasItem> items = new ArrayList<>(current.items());
+        items.remove(slot);
+        items.add(item);
+        commit(items, true);
+        return item.id();
+    }
+
+    /**
+     * Đổi vị trí/kích thước của một phần tử.
+     *
+     * @param merge true để gộp vào bước hoàn tác trước nếu bước đó cũng là đổi vị trí của cùng phần tử này
+     *              (các thay đổi liên tục từ thanh trượt), false để tạo một bước riêng (kết thúc một lần kéo).
+     */
+    public void place(String id, ImagePosition placement, boolean merge) {
+        CanvasItem item = current.get(id);
+        if (item == null || item.placement().equals(placement)) {
+            return;
+        }
+        List<CanvasItem> items = new ArrayList<>(current.items());
+        items.set(items.indexOf(item), item.withPlacement(placement));
+        boolean merged = merge && id.equals(mergeId) && !undoStack.isEmpty();
+        commit(items, !merged);
+        mergeId = merge ? id : null;
+    }
+
+    /** Bỏ một phần tử khỏi canvas. */
+    public void remove(String id) {
+        CanvasItem item = current.get(id);
+        if (item != null) {
+            List<CanvasItem> items = new ArrayList<>(current.items());
+            items.remove(item);
+            commit(items, true);
+        }
+    }
+
+    /** Bỏ mọi lần đặt của một tệp ảnh (khi ảnh bị xóa khỏi danh sách). */
+    public void removePhotosOf(File file) {
+        List<CanvasItem> items = new ArrayList<>(current.items());
+        if (items.removeIf(item -> file.equals(item.file()))) {
+            commit(items, true);
+        }
+    }
+
+    /**
+     * Đưa một phần tử lên trên cùng (khi được chọn). Không tạo bước hoàn tác riêng: chọn ảnh không phải là một lần sửa.
+     */
+    public void bringToFront(String id) {
+        CanvasItem item = current.get(id);
+        List<CanvasItem> items = current.items();
+        if (item == null || items.get(items.size() - 1) == item) {
+            return;
+        }
+        List<CanvasItem> reordered = new ArrayList<>(items);
+        reordered.remove(item);
+        reordered.add(item);
+        commit(reordered, false);
+    }
+
+    /** Xóa toàn bộ canvas (có thể hoàn tác). */
+    public void clear() {
+        if (!current.isEmpty()) {
+            commit(List.of(), true);
+        }
+    }
+
+    /** Thay toàn bộ canvas bằng các ô giữ chỗ của một cấu hình, trong một bước hoàn tác. */
+    public void loadSlots(List<ImagePosition> slots) {
+        List<CanvasItem> items = new ArrayList<>(slots.size());
+        for (ImagePosition slot : slots) {
+            items.add(new CanvasItem(newId("slot"), null, slot));
+        }
+        commit(items, true);
+    }
+
+    /** @return true nếu đã hoàn tác một bước. */
+    public boolean undo() {
+        return step(undoStack, redoStack);
+    }
+
+    /** @return true nếu đã làm lại một bước. */
+    public boolean redo() {
+        return step(redoStack, undoStack);
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    private boolean step(Deque<CanvasSnapshot> from, Deque<CanvasSnapshot> to) {
+        CanvasSnapshot target = from.pollFirst();
+        if (target == null) {
+            return false;
+        }
+        to.addFirst(current);
+        mergeId = null;
+        publish(target);
+        return true;
+    }
+
+    /**
+     * @param record true để giữ trạng thái trước làm một bước hoàn tác.
+     */
+    private void commit(List<CanvasItem> items, boolean record) {
+        if (record) {
+            undoStack.addFirst(current);
+            if (undoStack.size() > MAX_HISTORY) {
+                undoStack.removeLast();
+            }
+            redoStack.clear();
+            mergeId = null;
+        }
+        publish(new CanvasSnapshot(items));
+    }
+
+    private void publish(CanvasSnapshot next) {
+        CanvasSnapshot before = current;
+        current = next;
+        for (Listener listener : listeners) {
+            listener.changed(before, next);
+        }
+    }
+
+    private String newId(String prefix) {
+        return prefix + "-" + (++nextId);
+    }
+}
@@ -0,0 +1,78 @@
+package com.photobooth.canvas;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trạng thái bất biến của canvas tại một thời điểm: các phần tử theo thứ tự vẽ (phần tử sau nằm trên) và chỉ mục theo id.
+ * <p>
+ * Việc dựng ảnh và lưu cấu hình đọc trực tiếp từ đây, không duyệt đồ thị node JavaFX; vì bất biến nên có thể đưa sang
+ * luồng khác hoặc giữ lại làm một bước hoàn tác mà không cần sao chép.
+ */
+public final class CanvasSnapshot {
+
+    /** Canvas trống. */
+    public static final CanvasSnapshot EMPTY = new CanvasSnapshot(List.of());
+
+    private final List<CanvasItem> items;
+    private final Map<String, CanvasItem> byId;
+
+    CanvasSnapshot(List<CanvasItem> items) {
+        this.items = List.copyOf(items);
+        this.byId = new HashMap<>(items.size() * 2);
+        for (CanvasItem item : this.items) {
+            byId.put(item.id(), item);
+        }
+    }
+
+    /** @return Mọi phần tử theo thứ tự vẽ. */
+    public List<CanvasItem> items() {
+        return items;
+    }
+
+    /** @return Phần tử có id này, hoặc null. */
+    public CanvasItem get(String id) {
+        return byId.get(id);
+    }
+
+    /** @return Các ảnh đã đặt (bỏ ô giữ chỗ), theo thứ tự vẽ. */
+    public List<CanvasItem> photos() {
+        List<CanvasItem> photos = new ArrayList<>(items.size());
+        for (CanvasItem item : items) {
+            if (!item.isSlot()) {
+                photos.add(item);
+            }
+        }
+        return photos;
+    }
+
+    /** @return Các ô giữ chỗ, theo thứ tự vẽ. */
+    public List<CanvasItem> slots() {
+        List<CanvasItem> slots = new ArrayList<>();
+        for (CanvasItem item : items) {
+            if (item.isSlot()) {
+                slots.add(item);
+            }
+        }
+        return slots;
+    }
+
+    /** @return Các lần đặt của một tệp ảnh (một ảnh có thể được thả nhiều lần), theo thứ tự vẽ. */
+    public List<CanvasItem> photosOf(File file) {
+        List<CanvasItem> placed = new ArrayList<>();
+        for (CanvasItem item : items) {
+            if (file.equals(item.file())) {
+                placed.add(item);
+            }
+        }
+        return placed;
+    }
+
+    /** @return true nếu canvas không có phần tử nào. */
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+}
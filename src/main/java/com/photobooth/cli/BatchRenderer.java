@@ -0,0 +1,286 @@
+package com.photobooth.cli;
+
+import com.photobooth.config.ConfigManager;
+import com.photobooth.config.ImagePosition;
+import com.photobooth.config.TemplateConfig;
+import com.photobooth.diagnostics.MetricsRegistry;
+import com.photobooth.processing.ImageProcessor;
+import com.photobooth.processing.OutputOptions;
+import com.photobooth.processing.RenderEngine;
+import com.photobooth.processing.RenderResult;
+import com.photobooth.processing.TemplateAssetCache;
+import com.photobooth.processing.TileCache;
+import com.photobooth.watcher.FolderWatcher;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Điểm khởi chạy không giao diện (headless) để dựng hàng loạt dải ảnh từ dòng lệnh, không khởi động JavaFX.
+ * <p>
+ * Tải một cấu hình layout đã lưu theo tên, lấy ảnh từ một thư mục (theo thứ tự tên tệp) hoặc từ một tệp danh sách
+ * (mỗi dòng một đường dẫn), chia ảnh thành từng nhóm bằng số ô của layout và dựng mỗi nhóm thành một dải ảnh.
+ * Các dải được dựng song song trên nhiều nhân CPU. Ví dụ:
+ * <pre>
+ * java -cp photobooth.jar:gson.jar com.photobooth.cli.BatchRenderer \
+ *      --config "Wedding 4x6" --template frame.png --input ./photos --export ./out --engine JAVA --jobs 4
+ * </pre>
+ * Mã thoát: 0 nếu mọi dải đều thành công (hoặc với {@code --help}), 1 nếu có dải lỗi, 2 nếu tham số không hợp lệ.
+ */
+public final class BatchRenderer {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: BatchRenderer --config <name> --template <file> (--input <dir> | --list <file>) --export <dir> [options]",
+            "  --config <name>     Saved layout (TemplateConfig) name",
+            "  --template <file>   Frame image placed on top of every strip",
+            "  --input <dir>       Folder of photos, taken in file-name order",
+            "  --list <file>       Text file with one photo path per line (# for comments)",
+            "  --export <dir>      Output folder",
+            "  --preset <file>     Colour preset (.png Hald CLUT or .cube)",
+            "  --engine <name>     " + String.join(" | ", Stream.of(RenderEngine.values()).map(Enum::name).toList()) + " (default JAVA)",
+            "  --format <name>     PNG | JPEG (default from photobooth.output.format)",
+            "  --jobs <n>          Strips rendered at the same time (default: number of CPU cores)",
+            "  --metrics <file>    Write per-stage latency percentiles and counters to this file when done",
+            "  --allow-partial     Also render the last strip when it has fewer photos than slots");
+
+    private BatchRenderer() {
+    }
+
+    /** Kết quả dựng một dải: tệp kết quả hoặc lỗi. */
+    private record StripOutcome(int index, RenderResult result, Throwable error) {
+    }
+
+    /** Người dùng yêu cầu xem hướng dẫn ({@code --help}); không phải lỗi tham số. */
+    static final class HelpRequested extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        HelpRequested() {
+            super("help requested");
+        }
+    }
+
+    /** Tham số dòng lệnh đã phân tích. */
+    record Options(String configName, File template, Path input, Path list, File export, File preset,
+                   RenderEngine engine, OutputOptions.Format format, int jobs, boolean allowPartial, Path metrics) {
+    }
+
+    public static void main(String[] args) {
+        // Chỉ dùng ImageIO/Java2D ngoài màn hình; không cần (và không khởi động) bộ công cụ giao diện nào
+        System.setProperty("java.awt.headless", "true");
+        Options options;
+        try {
+            options = parse(args);
+        } catch (HelpRequested e) {
+            System.out.println(USAGE);
+            System.exit(0);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        try {
+            System.exit(run(options));
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Dựng tất cả các dải ảnh.
+     *
+     * @return Mã thoát (0 nếu tất cả thành công, 1 nếu có dải lỗi).
+     */
+    static int run(Options options) throws IOException, InterruptedException {
+        Optional<TemplateConfig> config = new ConfigManager().loadConfig(options.configName());
+        if (config.isEmpty()) {
+            throw new IOException("Layout not found: " + options.configName());
+        }
+        List<ImagePosition> positions = config.get().positions();
+        if (positions == null || positions.isEmpty()) {
+            throw new IOException("Layout has no image slots: " + options.configName());
+        }
+        if (!options.template().isFile()) {
+            throw new IOException("Template file not found: " + options.template());
+        }
+        Files.createDirectories(options.export().toPath());
+        Dimension templateSize = TemplateAssetCache.probe(options.template());
+
+        List<File> photos = options.input() != null ? listFolder(options.input()) : readList(options.list());
+        List<List<File>> strips = new ArrayList<>();
+        for (int i = 0; i < photos.size(); i += positions.size()) {
+            List<File> group = photos.subList(i, Math.min(photos.size(), i + positions.size()));
+            if (group.size() < positions.size() && !options.allowPartial()) {
+                System.err.println("Skipping last " + group.size() + " photo(s): fewer than " + positions.size() + " slots (use --allow-partial)");
+                break;
+            }
+            strips.add(group);
+        }
+        if (strips.isEmpty()) {
+            System.err.println("No strips to render.");
+            return 1;
+        }
+
+        int jobs = Math.min(options.jobs(), strips.size());
+        // Chia số nhân CPU cho các dải chạy đồng thời; mỗi dải vẫn xử lý các ô ảnh của nó song song
+        int perStrip = Math.max(1, Runtime.getRuntime().availableProcessors() / jobs);
+        OutputOptions outputOptions = options.format() != null
+                ? OutputOptions.defaults().withFormat(options.format())
+                : OutputOptions.defaults();
+        ImageProcessor processor = new ImageProcessor(perStrip, TileCache.getDefault(), outputOptions);
+        System.out.println("Rendering " + strips.size() + " strip(s) of " + positions.size() + " slot(s) with " + jobs + " job(s), engine " + options.engine());
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        int failed = 0;
+        try {
+            CompletionService<StripOutcome> completion = new ExecutorCompletionService<>(pool);
+            for (int i = 0; i < strips.size(); i++) {
+                final int index = i;
+                List<File> strip = strips.get(i);
+                List<ImagePosition> slots = positions.subList(0, strip.size());
+                completion.submit(() -> {
+                    try {
+                        return new StripOutcome(index, processor.render(strip, options.preset(), options.template(),
+                                templateSize.width, templateSize.height, options.export(), slots, options.engine()), null);
+                    } catch (IOException | RuntimeException e) {
+                        // Lỗi của một dải không dừng các dải khác
+                        return new StripOutcome(index, null, e instanceof RuntimeException && e.getCause() != null ? e.getCause() : e);
+                    }
+                });
+            }
+            for (int done = 1; done <= strips.size(); done++) {
+                StripOutcome outcome;
+                try {
+                    outcome = completion.take().get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Render task failed unexpectedly", e.getCause());
+                }
+                List<File> strip = strips.get(outcome.index());
+                String label = strip.get(0).getName() + (strip.size() > 1 ? " .. " + strip.get(strip.size() - 1).getName() : "");
+                if (outcome.error() == null) {
+                    System.out.println("[" + done + "/" + strips.size() + "] " + label + " -> " + outcome.result().outputFile().getName()
+                            + " (" + outcome.result().totalDuration().toMillis() + " ms)");
+                } else {
+                    failed++;
+                    System.err.println("[" + done + "/" + strips.size() + "] " + label + " failed: " + outcome.error().getMessage());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Finished " + (strips.size() - failed) + "/" + strips.size() + " strip(s) in " + elapsedMillis + " ms");
+        if (options.metrics() != null) {
+            MetricsRegistry.getDefault().dump(options.metrics());
+            System.out.println("Metrics written to " + options.metrics());
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    /** Ảnh trong thư mục (không đệ quy), theo thứ tự tên tệp. */
+    static List<File> listFolder(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            throw new IOException("Input folder not found: " + folder);
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(FolderWatcher::isImageFile)
+                    .sorted()
+                    .map(Path::toFile)
+                    .toList();
+        }
+    }
+
+    /** Tệp danh sách: mỗi dòng một đường dẫn ảnh, bỏ qua dòng trống và dòng bắt đầu bằng '#'. Đường dẫn tương đối tính từ thư mục của tệp danh sách. */
+    static List<File> readList(Path list) throws IOException {
+        Path base = list.toAbsolutePath().getParent();
+        List<File> photos = new ArrayList<>();
+        for (String line : Files.readAllLines(list)) {
+            String path = line.strip();
+            if (path.isEmpty() || path.startsWith("#")) continue;
+            Path photo = Paths.get(path);
+            if (!photo.isAbsolute() && base != null) {
+                photo = base.resolve(photo);
+            }
+            photos.add(photo.toFile());
+        }
+        return photos;
+    }
+
+    static Options parse(String[] args) {
+        String configName = null;
+        File template = null, export = null, preset = null;
+        Path input = null, list = null, metrics = null;
+        RenderEngine engine = RenderEngine.JAVA;
+        OutputOptions.Format format = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean allowPartial = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--allow-partial")) {
+                allowPartial = true;
+                continue;
+            }
+            if (arg.equals("--help") || arg.equals("-h")) {
+                throw new HelpRequested();
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--config" -> configName = value;
+                case "--template" -> template = new File(value);
+                case "--input" -> input = Paths.get(value);
+                case "--list" -> list = Paths.get(value);
+                case "--export" -> export = new File(value);
+                case "--preset" -> preset = new File(value);
+                case "--engine" -> engine = parseEnum(RenderEngine.class, value, arg);
+                case "--format" -> format = parseEnum(OutputOptions.Format.class, value, arg);
+                case "--metrics" -> metrics = Paths.get(value);
+                case "--jobs" -> {
+                    try {
+                        jobs = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid number for --jobs: " + value);
+                    }
+                    if (jobs < 1) throw new IllegalArgumentException("--jobs must be at least 1");
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (configName == null) throw new IllegalArgumentException("--config is required");
+        if (template == null) throw new IllegalArgumentException("--template is required");
+        if (export == null) throw new IllegalArgumentException("--export is required");
+        if ((input == null) == (list == null)) throw new IllegalArgumentException("Exactly one of --input or --list is required");
+        return new Options(configName, template, input, list, export, preset, engine, format, jobs, allowPartial, metrics);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String value, String option) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+    }
+}
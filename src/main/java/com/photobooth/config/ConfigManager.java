@@ -8,6 +8,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
@@ -88,6 +89,30 @@ public class ConfigManager {
         return configs;
     }
 
+    /**
+     * Tải một cấu hình theo tên. Đọc trực tiếp file tương ứng với tên (không duyệt cả thư mục),
+     * và chỉ tìm trong toàn bộ các cấu hình nếu không có file đó.
+     * @param configName Tên của cấu hình cần tải.
+     * @return Cấu hình tìm được, hoặc Optional rỗng nếu không có.
+     */
+    public Optional<TemplateConfig> loadConfig(String configName) {
+        // Tạo lại tên file an toàn giống như lúc lưu để tìm đúng file.
+        String fileName = configName.replaceAll("[^a-zA-Z0-9.-]", "_") + ".json";
+        Path configFile = CONFIG_DIR.resolve(fileName);
+        if (Files.isRegularFile(configFile)) {
+            try (Reader reader = new FileReader(configFile.toFile())) {
+                TemplateConfig config = gson.fromJson(reader, TemplateConfig.class);
+                if (config != null && configName.equals(config.name())) {
+                    return Optional.of(config);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Không thể tải file cấu hình: " + configFile + "; " + e.getMessage());
+            }
+        }
+        // Hai tên khác nhau có thể trùng tên file sau khi thay ký tự đặc biệt: tìm theo đúng tên trong tất cả cấu hình.
+        return loadAllConfigs().stream().filter(c -> configName.equals(c.name())).findFirst();
+    }
+
     /**
      * Xóa một file cấu hình dựa vào tên của nó.
      * @param configName Tên của cấu hình cần xóa.
@@ -0,0 +1,88 @@
+package com.photobooth.diagnostics;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Histogram độ trễ của một giai đoạn: bộ đếm tích lũy (số lần, số lần lỗi, tổng, lớn nhất) và một cửa sổ trượt
+ * gồm {@code windowSize} mẫu gần nhất để tính p50/p95/p99.
+ * <p>
+ * Phân vị được tính trên cửa sổ trượt chứ không trên toàn bộ lịch sử, nên phản ánh tình trạng hiện tại của máy
+ * (ví dụ một ổ USB vừa được cắm vào), không bị các lần chạy từ đầu buổi sự kiện làm loãng.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Ảnh chụp trạng thái histogram tại một thời điểm.
+     *
+     * @param count      Tổng số lần đo từ khi khởi động.
+     * @param failures   Số lần giai đoạn thất bại.
+     * @param windowSize Số mẫu trong cửa sổ dùng để tính phân vị.
+     * @param p50        Trung vị trên cửa sổ.
+     * @param p95        Phân vị 95 trên cửa sổ.
+     * @param p99        Phân vị 99 trên cửa sổ.
+     * @param max        Độ trễ lớn nhất từ khi khởi động.
+     * @param mean       Độ trễ trung bình từ khi khởi động.
+     */
+    public record Snapshot(long count, long failures, int windowSize, Duration p50, Duration p95, Duration p99, Duration max, Duration mean) {
+    }
+
+    private final long[] window;
+    private int next;
+    private int filled;
+    private long count;
+    private long failures;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * @param windowSize Số mẫu gần nhất được giữ lại để tính phân vị (tối thiểu 1).
+     */
+    public LatencyHistogram(int windowSize) {
+        this.window = new long[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Ghi nhận một lần đo.
+     *
+     * @param nanos   Độ trễ (nano giây).
+     * @param success false nếu giai đoạn kết thúc bằng lỗi.
+     */
+    public synchronized void record(long nanos, boolean success) {
+        window[next] = nanos;
+        next = (next + 1) % window.length;
+        filled = Math.min(filled + 1, window.length);
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+        if (!success) {
+            failures++;
+        }
+    }
+
+    /** Trả về trạng thái hiện tại; phần sắp xếp chạy trên bản sao nên không giữ khóa lâu. */
+    public Snapshot snapshot() {
+        long[] samples;
+        long count, failures, totalNanos, maxNanos;
+        synchronized (this) {
+            samples = Arrays.copyOf(window, filled);
+            count = this.count;
+            failures = this.failures;
+            totalNanos = this.totalNanos;
+            maxNanos = this.maxNanos;
+        }
+        Arrays.sort(samples);
+        return new Snapshot(count, failures, samples.length,
+                percentile(samples, 50), percentile(samples, 95), percentile(samples, 99),
+                Duration.ofNanos(maxNanos), Duration.ofNanos(count == 0 ? 0 : totalNanos / count));
+    }
+
+    /** Phân vị theo hạng gần nhất (nearest-rank) trên mảng đã sắp xếp. */
+    private static Duration percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return Duration.ZERO;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return Duration.ofNanos(sorted[Math.max(0, rank - 1)]);
+    }
+}
@@ -0,0 +1,169 @@
+package com.photobooth.diagnostics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bộ thu thập số liệu trong tiến trình: một {@link LatencyHistogram} cho mỗi {@link RenderStage} và các bộ đếm theo tên.
+ * <p>
+ * Dùng chung cho cả ứng dụng qua {@link #getDefault()}; mọi phương thức đều an toàn khi gọi từ nhiều luồng.
+ * Kích thước cửa sổ phân vị đọc từ system property {@code photobooth.metrics.window} (mặc định 1000 mẫu).
+ */
+public final class MetricsRegistry {
+
+    /** Số tiến trình ImageMagick đã khởi chạy. */
+    public static final String PROCESSES_SPAWNED = "imagemagick.processes";
+    /** Số ô ảnh lấy lại từ cache tile. */
+    public static final String TILE_CACHE_HITS = "tiles.cacheHits";
+    /** Số ô ảnh phải xử lý lại từ ảnh gốc. */
+    public static final String TILES_PROCESSED = "tiles.processed";
+    /** Số ô ảnh bị khung che kín nên được bỏ qua hoàn toàn. */
+    public static final String SLOTS_HIDDEN = "slots.hidden";
+    /** Số ô ảnh chỉ được dựng phần không bị khung che. */
+    public static final String SLOTS_CLIPPED = "slots.clipped";
+    /** Tổng số byte của các tệp kết quả đã ghi. */
+    public static final String OUTPUT_BYTES = "output.bytes";
+    /** Số ảnh thu nhỏ của danh sách ảnh lấy lại từ cache. */
+    public static final String THUMBNAIL_CACHE_HITS = "thumbnails.cacheHits";
+    /** Số ảnh thu nhỏ đọc lại từ kho trên đĩa. */
+    public static final String THUMBNAIL_STORE_HITS = "thumbnails.storeHits";
+    /** Số ảnh thu nhỏ phải giải mã từ ảnh gốc (hoặc ảnh xem trước nhúng trong ảnh gốc). */
+    public static final String THUMBNAILS_DECODED = "thumbnails.decoded";
+    /** Số lô ảnh mới đã được thêm vào danh sách trên giao diện (tối đa một lô mỗi nhịp vẽ). */
+    public static final String INGEST_BATCHES = "ingest.batches";
+    /** Số ảnh mới đã được thêm qua bộ đệm nhập (chia cho số lô để có kích thước lô trung bình). */
+    public static final String INGEST_FILES = "ingest.files";
+    /** Số lần báo trùng một ảnh đã có trong danh sách, bị bộ đệm nhập bỏ qua. */
+    public static final String INGEST_DUPLICATES = "ingest.duplicates";
+    /** Số ảnh khi nhập thư mục được lấy từ chỉ mục đã lưu (không đổi kể từ lần nhập trước, không phải đọc header). */
+    public static final String FOLDER_INDEX_HITS = "import.indexHits";
+    /** Số ảnh khi nhập thư mục phải đọc header để lấy kích thước (ảnh mới hoặc đã đổi). */
+    public static final String IMAGES_PROBED = "import.probed";
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry(Integer.getInteger("photobooth.metrics.window", 1000));
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /** Ảnh chụp số liệu của một giai đoạn. */
+    public record StageStats(RenderStage stage, LatencyHistogram.Snapshot latency) {
+    }
+
+    /**
+     * Ảnh chụp toàn bộ số liệu tại một thời điểm.
+     *
+     * @param takenAt  Thời điểm chụp.
+     * @param since    Thời điểm bắt đầu thu thập (khởi động ứng dụng).
+     * @param stages   Số liệu từng giai đoạn, theo thứ tự của {@link RenderStage}.
+     * @param counters Giá trị các bộ đếm, theo thứ tự tên.
+     */
+    public record Snapshot(Instant takenAt, Instant since, List<StageStats> stages, Map<String, Long> counters) {
+
+        /** Định dạng bảng văn bản dùng cho bảng chẩn đoán và tệp dump. */
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("PhotoBooth render metrics at ").append(TIME_FORMAT.format(takenAt))
+                    .append(" (since ").append(TIME_FORMAT.format(since)).append(")\n");
+            sb.append("Percentiles are over the most recent samples of each stage; max and mean are since start.\n\n");
+            sb.append(String.format("%-18s %7s %5s %6s %9s %9s %9s %9s %9s%n",
+                    "Stage", "Count", "Fail", "Window", "p50 ms", "p95 ms", "p99 ms", "max ms", "mean ms"));
+            for (StageStats stats : stages) {
+                LatencyHistogram.Snapshot l = stats.latency();
+                sb.append(String.format("%-18s %7d %5d %6d %9s %9s %9s %9s %9s%n",
+                        stats.stage().label(), l.count(), l.failures(), l.windowSize(),
+                        millis(l.p50()), millis(l.p95()), millis(l.p99()), millis(l.max()), millis(l.mean())));
+            }
+            if (!counters.isEmpty()) {
+                sb.append("\nCounters:\n");
+                counters.forEach((name, value) -> sb.append(String.format("  %-24s %d%n", name, value)));
+            }
+            return sb.toString();
+        }
+
+        private static String millis(Duration duration) {
+            return String.format("%.1f", duration.toNanos() / 1_000_000.0);
+        }
+    }
+
+    private final Map<RenderStage, LatencyHistogram> histograms = new EnumMap<>(RenderStage.class);
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Instant startedAt = Instant.now();
+
+    /**
+     * @param windowSize Số mẫu gần nhất dùng để tính phân vị cho mỗi giai đoạn.
+     */
+    public MetricsRegistry(int windowSize) {
+        // Mọi histogram được tạo sẵn nên map chỉ còn được đọc sau hàm khởi tạo, không cần đồng bộ
+        for (RenderStage stage : RenderStage.values()) {
+            histograms.put(stage, new LatencyHistogram(windowSize));
+        }
+    }
+
+    /**
+     * Trả về bộ thu thập dùng chung của ứng dụng.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Ghi nhận độ trễ của một giai đoạn.
+     *
+     * @param stage   Giai đoạn.
+     * @param nanos   Độ trễ (nano giây).
+     * @param success false nếu giai đoạn kết thúc bằng lỗi.
+     */
+    public void record(RenderStage stage, long nanos, boolean success) {
+        histograms.get(stage).record(nanos, success);
+    }
+
+    /** Tăng bộ đếm {@code name} thêm 1. */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /** Tăng bộ đếm {@code name} thêm {@code delta}. */
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Chụp lại toàn bộ số liệu hiện tại.
+     */
+    public Snapshot snapshot() {
+        List<StageStats> stages = new ArrayList<>();
+        for (RenderStage stage : RenderStage.values()) {
+            stages.add(new StageStats(stage, histograms.get(stage).snapshot()));
+        }
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, adder) -> values.put(name, adder.sum()));
+        return new Snapshot(Instant.now(), startedAt, List.copyOf(stages), Collections.unmodifiableMap(values));
+    }
+
+    /**
+     * Ghi bảng số liệu hiện tại ra tệp văn bản (ghi đè nếu đã có), để gửi kèm khi báo lỗi dựng ảnh chậm.
+     *
+     * @param file Tệp đích.
+     * @throws IOException Nếu không ghi được tệp.
+     */
+    public void dump(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(file, snapshot().format(), StandardCharsets.UTF_8);
+    }
+}
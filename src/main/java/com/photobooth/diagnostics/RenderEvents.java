@@ -0,0 +1,67 @@
+package com.photobooth.diagnostics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Các loại sự kiện JFR cụ thể, mỗi loại ứng với một {@link RenderStage}.
+ * <p>
+ * Ghi lại bằng {@code -XX:StartFlightRecording:filename=render.jfr} rồi mở bằng JDK Mission Control,
+ * hoặc lọc theo tên bằng {@code jfr print --events com.photobooth.* render.jfr}.
+ */
+final class RenderEvents {
+
+    private RenderEvents() {
+    }
+
+    @Name("com.photobooth.MagickProbe")
+    @Label("ImageMagick Probe")
+    static final class MagickProbe extends RenderStageEvent {
+    }
+
+    @Name("com.photobooth.ProcessSpawn")
+    @Label("Process Spawn")
+    static final class ProcessSpawn extends RenderStageEvent {
+    }
+
+    @Name("com.photobooth.SlotPreprocess")
+    @Label("Slot Preprocess")
+    static final class SlotPreprocess extends RenderStageEvent {
+    }
+
+    @Name("com.photobooth.Composite")
+    @Label("Composite")
+    static final class Composite extends RenderStageEvent {
+    }
+
+    @Name("com.photobooth.Encode")
+    @Label("Encode")
+    static final class Encode extends RenderStageEvent {
+    }
+
+    /** I/O ghi tệp nằm rải rác trong lúc mã hóa, nên tổng thời gian I/O được ghi vào một trường riêng thay vì thời lượng sự kiện. */
+    @Name("com.photobooth.FileWrite")
+    @Label("File Write")
+    static final class FileWrite extends RenderStageEvent {
+        @Label("I/O Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long ioTime;
+    }
+
+    @Name("com.photobooth.Render")
+    @Label("Render")
+    static final class Render extends RenderStageEvent {
+    }
+
+    @Name("com.photobooth.Ingest")
+    @Label("Ingest Batch")
+    static final class Ingest extends RenderStageEvent {
+        @Label("Batch Size")
+        int batchSize;
+
+        @Label("Oldest Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long oldestWait;
+    }
+}
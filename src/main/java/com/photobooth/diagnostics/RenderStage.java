@@ -0,0 +1,46 @@
+package com.photobooth.diagnostics;
+
+import java.util.function.Supplier;
+
+/**
+ * Các giai đoạn của một lần dựng ảnh được đo thời gian.
+ * Mỗi giai đoạn có một loại sự kiện JFR riêng và một histogram độ trễ riêng trong {@link MetricsRegistry}.
+ */
+public enum RenderStage {
+    /** Kiểm tra {@code magick -version} trước khi dùng engine ImageMagick. */
+    MAGICK_PROBE("ImageMagick probe", RenderEvents.MagickProbe::new),
+    /** Khởi chạy một tiến trình ImageMagick (chỉ phần tạo tiến trình, thời gian chạy được tính vào giai đoạn bao ngoài). */
+    PROCESS_SPAWN("Process spawn", RenderEvents.ProcessSpawn::new),
+    /** Giải mã, resize và chỉnh màu một ô ảnh (hoặc lấy lại từ cache tile). */
+    SLOT_PREPROCESS("Slot preprocess", RenderEvents.SlotPreprocess::new),
+    /** Ghép các ô ảnh và ảnh khung thành ảnh kết quả. */
+    COMPOSITE("Composite", RenderEvents.Composite::new),
+    /** Mã hóa ảnh kết quả (PNG/JPEG), bao gồm cả thời gian ghi ra tệp. */
+    ENCODE("Encode", RenderEvents.Encode::new),
+    /** Thời gian chờ I/O khi ghi tệp kết quả ra đĩa (một phần của ENCODE, tách riêng để thấy ổ đĩa/thư mục mạng chậm). */
+    FILE_WRITE("File write", RenderEvents.FileWrite::new),
+    /** Toàn bộ một lần dựng ảnh, từ khi nhận yêu cầu đến khi có tệp kết quả. */
+    RENDER("Render total", RenderEvents.Render::new),
+    /**
+     * Thời gian một ảnh mới chờ trong bộ đệm nhập, từ khi watcher báo đến khi ảnh được thêm vào danh sách trên giao diện
+     * (histogram theo từng ảnh; sự kiện JFR được phát theo từng lô, kèm kích thước lô và thời gian chờ lâu nhất).
+     */
+    INGEST("Ingest queue", RenderEvents.Ingest::new);
+
+    private final String label;
+    private final Supplier<RenderStageEvent> eventFactory;
+
+    RenderStage(String label, Supplier<RenderStageEvent> eventFactory) {
+        this.label = label;
+        this.eventFactory = eventFactory;
+    }
+
+    /** Tên hiển thị của giai đoạn. */
+    public String label() {
+        return label;
+    }
+
+    RenderStageEvent newEvent() {
+        return eventFactory.get();
+    }
+}
@@ -0,0 +1,42 @@
+package com.photobooth.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Lớp cơ sở của các sự kiện JDK Flight Recorder cho từng giai đoạn dựng ảnh.
+ * Các trường không áp dụng cho một giai đoạn được để giá trị mặc định (0, -1 hoặc null).
+ */
+@Category({"PhotoBooth", "Render"})
+@StackTrace(false)
+abstract class RenderStageEvent extends Event {
+
+    @Label("File")
+    @Description("Tên tệp liên quan (ảnh nguồn, ảnh khung hoặc ảnh kết quả)")
+    String file;
+
+    @Label("Detail")
+    @Description("Engine, tên bước ImageMagick hoặc nguồn của ô ảnh")
+    String detail;
+
+    @Label("Slot")
+    @Description("Vị trí ô ảnh trong layout, -1 nếu không áp dụng")
+    int slot = -1;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+}
@@ -0,0 +1,128 @@
+package com.photobooth.diagnostics;
+
+import java.io.File;
+
+/**
+ * Đo một giai đoạn dựng ảnh: phát một sự kiện JFR và ghi độ trễ vào {@link MetricsRegistry} khi đóng.
+ * <p>
+ * Dùng với try-with-resources; gọi {@link #success()} ở cuối khối try, nếu không giai đoạn được tính là thất bại:
+ * <pre>{@code
+ * try (StageSpan span = StageSpan.start(RenderStage.ENCODE)) {
+ *     OutputEncoder.write(canvas, outputFile, options);
+ *     span.file(outputFile).size(width, height).success();
+ * }
+ * }</pre>
+ * Một span chỉ được dùng trên một luồng.
+ */
+public final class StageSpan implements AutoCloseable {
+
+    private final RenderStage stage;
+    private final MetricsRegistry registry;
+    private final RenderStageEvent event;
+    private final long startNanos;
+
+    private StageSpan(RenderStage stage, MetricsRegistry registry) {
+        this.stage = stage;
+        this.registry = registry;
+        this.event = stage.newEvent();
+        event.begin();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Bắt đầu đo một giai đoạn, ghi vào bộ thu thập dùng chung.
+     */
+    public static StageSpan start(RenderStage stage) {
+        return new StageSpan(stage, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * Ghi nhận thời gian chờ I/O khi ghi một tệp kết quả. I/O nằm xen kẽ với phần nén nên không đo bằng một span liền mạch;
+     * nơi gọi tự cộng dồn thời gian I/O rồi báo lại một lần sau khi đóng tệp.
+     *
+     * @param file    Tệp đã ghi xong.
+     * @param ioNanos Tổng thời gian nằm trong các lệnh ghi/flush/đóng tệp (nano giây).
+     */
+    public static void recordFileWrite(File file, long ioNanos) {
+        RenderEvents.FileWrite event = new RenderEvents.FileWrite();
+        if (event.shouldCommit()) {
+            event.file = file.getName();
+            event.bytes = file.length();
+            event.ioTime = ioNanos;
+            event.success = true;
+            event.commit();
+        }
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        registry.record(RenderStage.FILE_WRITE, ioNanos, true);
+        registry.add(MetricsRegistry.OUTPUT_BYTES, file.length());
+    }
+
+    /**
+     * Ghi nhận một lô ảnh mới vừa được thêm vào danh sách trên giao diện. Các ảnh chờ trong bộ đệm nên không đo bằng span;
+     * nơi gọi tự tính thời gian chờ của từng ảnh rồi báo một lần cho cả lô.
+     *
+     * @param waitNanos  Thời gian chờ của từng ảnh trong lô (nano giây), chỉ {@code count} phần tử đầu được dùng.
+     * @param count      Số ảnh được thêm.
+     * @param duplicates Số lần báo trùng bị bỏ qua trong lô.
+     */
+    public static void recordIngest(long[] waitNanos, int count, int duplicates) {
+        MetricsRegistry registry = MetricsRegistry.getDefault();
+        long oldest = 0;
+        for (int i = 0; i < count; i++) {
+            registry.record(RenderStage.INGEST, waitNanos[i], true);
+            oldest = Math.max(oldest, waitNanos[i]);
+        }
+        RenderEvents.Ingest event = new RenderEvents.Ingest();
+        if (event.shouldCommit()) {
+            event.batchSize = count;
+            event.oldestWait = oldest;
+            event.success = true;
+            event.commit();
+        }
+        registry.increment(MetricsRegistry.INGEST_BATCHES);
+        registry.add(MetricsRegistry.INGEST_FILES, count);
+        if (duplicates > 0) {
+            registry.add(MetricsRegistry.INGEST_DUPLICATES, duplicates);
+        }
+    }
+
+    /** Gắn tên và kích thước (byte) của tệp liên quan. */
+    public StageSpan file(File file) {
+        if (file != null) {
+            event.file = file.getName();
+            event.bytes = file.length();
+        }
+        return this;
+    }
+
+    /** Gắn mô tả ngắn: engine, tên bước ImageMagick, nguồn của ô ảnh... */
+    public StageSpan detail(String detail) {
+        event.detail = detail;
+        return this;
+    }
+
+    /** Gắn vị trí ô ảnh trong layout. */
+    public StageSpan slot(int slot) {
+        event.slot = slot;
+        return this;
+    }
+
+    /** Gắn kích thước ảnh (ô ảnh, khung hoặc ảnh kết quả) của giai đoạn. */
+    public StageSpan size(int width, int height) {
+        event.width = width;
+        event.height = height;
+        return this;
+    }
+
+    /** Đánh dấu giai đoạn đã hoàn tất thành công. */
+    public void success() {
+        event.success = true;
+    }
+
+    @Override
+    public void close() {
+        long nanos = System.nanoTime() - startNanos;
+        event.commit(); // Tự kết thúc sự kiện; không tốn gì nếu không có bản ghi JFR nào đang chạy
+        registry.record(stage, nanos, event.success);
+    }
+}
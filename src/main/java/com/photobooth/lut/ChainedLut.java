@@ -0,0 +1,17 @@
+package com.photobooth.lut;
+
+/**
+ * Hai LUT được áp dụng nối tiếp, ví dụ đường cong "shaper" 1D trước rồi đến khối 3D
+ * (trường hợp tệp .cube chứa cả LUT_1D_SIZE và LUT_3D_SIZE).
+ *
+ * @param first  LUT áp dụng trước.
+ * @param second LUT áp dụng sau.
+ */
+public record ChainedLut(ColorLut first, ColorLut second) implements ColorLut {
+
+    @Override
+    public void apply(int[] argb, int offset, int length) {
+        first.apply(argb, offset, length);
+        second.apply(argb, offset, length);
+    }
+}
@@ -0,0 +1,57 @@
+package com.photobooth.lut;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Một bảng tra màu (LUT) đã được phân tích, có thể áp dụng trực tiếp lên các điểm ảnh ARGB.
+ * Các cài đặt phải bất biến (immutable) để có thể dùng chung giữa nhiều luồng và lưu trong cache.
+ */
+public interface ColorLut {
+
+    /**
+     * Áp dụng LUT lên một dãy điểm ảnh ARGB (tại chỗ). Kênh alpha được giữ nguyên.
+     *
+     * @param argb   Mảng điểm ảnh ARGB.
+     * @param offset Vị trí bắt đầu trong mảng.
+     * @param length Số điểm ảnh cần xử lý.
+     */
+    void apply(int[] argb, int offset, int length);
+
+    /**
+     * Tra cứu một màu (dùng khi cần lấy mẫu LUT, ví dụ để xuất ra Hald CLUT).
+     *
+     * @param argb Màu ARGB đầu vào.
+     * @return Màu ARGB sau khi áp dụng LUT.
+     */
+    default int lookup(int argb) {
+        int[] one = {argb};
+        apply(one, 0, 1);
+        return one[0];
+    }
+
+    /**
+     * Áp dụng LUT lên toàn bộ ảnh (tại chỗ).
+     * Với ảnh TYPE_INT_ARGB/TYPE_INT_RGB, mảng điểm ảnh được xử lý trực tiếp mà không cần sao chép.
+     *
+     * @param image Ảnh cần chỉnh màu.
+     */
+    default void apply(BufferedImage image) {
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt buffer
+                && image.getRaster().getParent() == null) {
+            int[] pixels = buffer.getData();
+            apply(pixels, 0, image.getWidth() * image.getHeight());
+            return;
+        }
+        // Trường hợp tổng quát: xử lý từng hàng qua getRGB/setRGB
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            apply(row, 0, width);
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.photobooth.lut;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Trình phân tích tệp LUT định dạng .cube (Adobe / DaVinci Resolve), đọc theo luồng từng dòng.
+ * <p>
+ * Hỗ trợ:
+ * <ul>
+ *   <li>LUT_1D_SIZE (2..65536) và LUT_3D_SIZE (2..65), kể cả khi có cả hai (shaper 1D + khối 3D).</li>
+ *   <li>DOMAIN_MIN / DOMAIN_MAX, cùng các biến thể LUT_1D_INPUT_RANGE / LUT_3D_INPUT_RANGE của Resolve.</li>
+ *   <li>Dòng chú thích (#), TITLE và các từ khóa không biết (bị bỏ qua).</li>
+ * </ul>
+ * Dữ liệu được đọc thẳng vào một mảng float đã cấp phát sẵn, không giữ lại chuỗi hay danh sách trung gian.
+ */
+public final class CubeLutParser {
+
+    private static final int MAX_1D_SIZE = 65536;
+    /**
+     * Kích thước 3D lớn nhất được chấp nhận. Bảng được cấp phát theo header trước khi đọc dữ liệu, nên giới hạn này
+     * chặn một dòng {@code LUT_3D_SIZE} sai hoặc cố ý lớn cấp phát hàng trăm MB (65³ chỉ khoảng 3 MB).
+     */
+    private static final int MAX_3D_SIZE = 65;
+
+    private CubeLutParser() {
+    }
+
+    /**
+     * Đọc và phân tích một tệp .cube.
+     *
+     * @param file          Tệp .cube.
+     * @param interpolation Phương pháp nội suy cho phần 3D.
+     * @return LUT đã sẵn sàng để áp dụng.
+     * @throws IOException Nếu không đọc được tệp hoặc nội dung không hợp lệ.
+     */
+    public static ColorLut load(File file, Interpolation interpolation) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return parse(reader, interpolation, file.getName());
+        }
+    }
+
+    /**
+     * Phân tích nội dung .cube từ một Reader.
+     *
+     * @param source Tên nguồn, chỉ dùng cho thông báo lỗi.
+     */
+    public static ColorLut parse(Reader in, Interpolation interpolation, String source) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader br ? br : new BufferedReader(in);
+
+        int size1D = 0, size3D = 0;
+        float[] domainMin = {0f, 0f, 0f}, domainMax = {1f, 1f, 1f};
+        float[] range1D = null, range3D = null;
+        float[] table1D = null, table3D = null;
+        int filled1D = 0, filled3D = 0;
+        float[] rgb = new float[3];
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') continue;
+
+            char first = line.charAt(0);
+            if (Character.isLetter(first)) {
+                // Từ khóa chỉ được phép xuất hiện trước dữ liệu
+                if (table1D != null || table3D != null) {
+                    throw error(source, lineNumber, "keyword after table data");
+                }
+                int space = indexOfWhitespace(line);
+                String keyword = space < 0 ? line : line.substring(0, space);
+                String args = space < 0 ? "" : line.substring(space + 1).trim();
+                switch (keyword) {
+                    case "LUT_1D_SIZE" -> size1D = parseSize(args, MAX_1D_SIZE, source, lineNumber);
+                    case "LUT_3D_SIZE" -> size3D = parseSize(args, MAX_3D_SIZE, source, lineNumber);
+                    case "DOMAIN_MIN" -> domainMin = parseTriple(args, source, lineNumber);
+                    case "DOMAIN_MAX" -> domainMax = parseTriple(args, source, lineNumber);
+                    case "LUT_1D_INPUT_RANGE" -> range1D = parseRange(args, source, lineNumber);
+                    case "LUT_3D_INPUT_RANGE" -> range3D = parseRange(args, source, lineNumber);
+                    default -> {
+                        // TITLE và các từ khóa mở rộng khác không ảnh hưởng đến màu
+                    }
+                }
+                continue;
+            }
+
+            // Dòng dữ liệu: phần 1D (nếu có) đứng trước phần 3D
+            if (table1D == null && table3D == null) {
+                if (size1D == 0 && size3D == 0) {
+                    throw error(source, lineNumber, "table data before LUT_1D_SIZE / LUT_3D_SIZE");
+                }
+                if (size1D > 0) table1D = new float[size1D * 3];
+                if (size3D > 0) table3D = new float[size3D * size3D * size3D * 3];
+            }
+            parseFloats(line, rgb, source, lineNumber);
+            if (table1D != null && filled1D < table1D.length) {
+                System.arraycopy(rgb, 0, table1D, filled1D, 3);
+                filled1D += 3;
+            } else if (table3D != null && filled3D < table3D.length) {
+                System.arraycopy(rgb, 0, table3D, filled3D, 3);
+                filled3D += 3;
+            } else {
+                throw error(source, lineNumber, "too many table entries");
+            }
+        }
+
+        if ((table1D == null && table3D == null) || (table1D != null && filled1D < table1D.length)
+                || (table3D != null && filled3D < table3D.length)) {
+            throw new IOException("Invalid .cube file " + source + ": table is incomplete");
+        }
+
+        // Miền đầu vào: DOMAIN_* áp dụng cho tầng đầu tiên; *_INPUT_RANGE (Resolve) áp dụng cho từng tầng
+        ColorLut lut1D = null, lut3D = null;
+        if (table1D != null) {
+            float[][] domain = range1D != null ? new float[][]{fill(range1D[0]), fill(range1D[1])} : new float[][]{domainMin, domainMax};
+            lut1D = new Lut1D(size1D, table1D, domain[0], domain[1]);
+        }
+        if (table3D != null) {
+            float[][] domain;
+            if (range3D != null) {
+                domain = new float[][]{fill(range3D[0]), fill(range3D[1])};
+            } else if (table1D != null) {
+                domain = new float[][]{fill(0f), fill(1f)};
+            } else {
+                domain = new float[][]{domainMin, domainMax};
+            }
+            lut3D = new Lut3D(size3D, table3D, interpolation, domain[0], domain[1]);
+        }
+        if (lut1D != null && lut3D != null) {
+            return new ChainedLut(lut1D, lut3D);
+        }
+        return lut1D != null ? lut1D : lut3D;
+    }
+
+    private static int parseSize(String args, int max, String source, int lineNumber) throws IOException {
+        try {
+            int size = Integer.parseInt(args.trim());
+            if (size < 2 || size > max) {
+                throw error(source, lineNumber, "unsupported LUT size " + size);
+            }
+            return size;
+        } catch (NumberFormatException e) {
+            throw error(source, lineNumber, "invalid LUT size '" + args + "'");
+        }
+    }
+
+    private static float[] parseTriple(String args, String source, int lineNumber) throws IOException {
+        float[] values = new float[3];
+        parseFloats(args, values, source, lineNumber);
+        return values;
+    }
+
+    private static float[] parseRange(String args, String source, int lineNumber) throws IOException {
+        float[] values = new float[2];
+        parseFloats(args, values, source, lineNumber);
+        return values;
+    }
+
+    /**
+     * Đọc đúng {@code out.length} số thực cách nhau bởi khoảng trắng, không dùng biểu thức chính quy.
+     */
+    private static void parseFloats(String text, float[] out, String source, int lineNumber) throws IOException {
+        int pos = 0, count = 0, length = text.length();
+        while (pos < length) {
+            while (pos < length && Character.isWhitespace(text.charAt(pos))) pos++;
+            if (pos >= length) break;
+            int start = pos;
+            while (pos < length && !Character.isWhitespace(text.charAt(pos))) pos++;
+            if (count == out.length) {
+                throw error(source, lineNumber, "expected " + out.length + " values");
+            }
+            try {
+                out[count++] = Float.parseFloat(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error(source, lineNumber, "invalid number '" + text.substring(start, pos) + "'");
+            }
+        }
+        if (count != out.length) {
+            throw error(source, lineNumber, "expected " + out.length + " values");
+        }
+    }
+
+    private static int indexOfWhitespace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isWhitespace(text.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    private static float[] fill(float value) {
+        return new float[]{value, value, value};
+    }
+
+    private static IOException error(String source, int lineNumber, String message) {
+        return new IOException("Invalid .cube file " + source + " (line " + lineNumber + "): " + message);
+    }
+}
@@ -0,0 +1,57 @@
+package com.photobooth.lut;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Đọc ảnh Hald CLUT (.png) và chuyển thành {@link Lut3D}.
+ * <p>
+ * Hald CLUT cấp L là ảnh vuông L³ x L³ chứa một khối màu cạnh L²;
+ * các điểm ảnh được đọc theo hàng và mỗi điểm ảnh là một nút của khối (đỏ thay đổi nhanh nhất).
+ */
+public final class HaldClutLoader {
+
+    private HaldClutLoader() {
+    }
+
+    /**
+     * Đọc và phân tích một tệp Hald CLUT.
+     *
+     * @param file          Tệp ảnh Hald CLUT.
+     * @param interpolation Phương pháp nội suy cho LUT kết quả.
+     * @return LUT 3D tương ứng.
+     * @throws IOException Nếu không đọc được tệp hoặc ảnh không phải Hald CLUT hợp lệ.
+     */
+    public static Lut3D load(File file, Interpolation interpolation) throws IOException {
+        BufferedImage hald = ImageIO.read(file);
+        if (hald == null) {
+            throw new IOException("Unsupported image format: " + file.getAbsolutePath());
+        }
+        return fromImage(hald, interpolation);
+    }
+
+    /**
+     * Chuyển một ảnh Hald CLUT đã giải mã thành {@link Lut3D}.
+     *
+     * @throws IOException Nếu ảnh không phải Hald CLUT hợp lệ.
+     */
+    public static Lut3D fromImage(BufferedImage hald, Interpolation interpolation) throws IOException {
+        int width = hald.getWidth();
+        int level = (int) Math.round(Math.cbrt(width));
+        if (width != hald.getHeight() || level * level * level != width || level < 2) {
+            throw new IOException("Preset is not a valid Hald CLUT image: " + width + "x" + hald.getHeight());
+        }
+        int cubeSize = level * level;
+        int[] pixels = hald.getRGB(0, 0, width, width, null, 0, width);
+        float[] table = new float[pixels.length * 3];
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            int p = pixels[i];
+            table[j] = ((p >> 16) & 0xFF) / 255f;
+            table[j + 1] = ((p >> 8) & 0xFF) / 255f;
+            table[j + 2] = (p & 0xFF) / 255f;
+        }
+        return new Lut3D(cubeSize, table, interpolation);
+    }
+}
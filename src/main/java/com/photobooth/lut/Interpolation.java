@@ -0,0 +1,11 @@
+package com.photobooth.lut;
+
+/**
+ * Phương pháp nội suy giữa các nút của khối LUT 3D.
+ */
+public enum Interpolation {
+    /** Nội suy tam tuyến tính (8 nút lân cận), giống {@code -hald-clut} của ImageMagick. */
+    TRILINEAR,
+    /** Nội suy tứ diện (4 nút lân cận): nhanh hơn và giữ đường xám trung tính tốt hơn. */
+    TETRAHEDRAL
+}
@@ -0,0 +1,68 @@
+package com.photobooth.lut;
+
+/**
+ * Bảng tra màu 1D: mỗi kênh R, G, B được ánh xạ độc lập qua một đường cong N điểm.
+ * <p>
+ * Dữ liệu gốc được lưu trong một mảng float nguyên thủy (N x 3). Vì đầu vào là ảnh 8-bit,
+ * kết quả cho cả 256 mức của mỗi kênh được nội suy tuyến tính và tính sẵn một lần,
+ * nên việc áp dụng chỉ còn là ba phép tra bảng cho mỗi điểm ảnh.
+ */
+public final class Lut1D implements ColorLut {
+
+    /** Số điểm trên đường cong. */
+    private final int size;
+    /** Giá trị đầu ra 0..255 đã tính sẵn cho từng kênh. */
+    private final int[] outR = new int[256], outG = new int[256], outB = new int[256];
+
+    /**
+     * Tạo LUT 1D.
+     *
+     * @param size      Số điểm trên đường cong (tối thiểu 2).
+     * @param table     Dữ liệu gồm size * 3 giá trị (R, G, B xen kẽ) trong khoảng [0, 1].
+     * @param domainMin Giá trị đầu vào nhỏ nhất cho từng kênh.
+     * @param domainMax Giá trị đầu vào lớn nhất cho từng kênh.
+     */
+    public Lut1D(int size, float[] table, float[] domainMin, float[] domainMax) {
+        if (size < 2) {
+            throw new IllegalArgumentException("LUT size must be at least 2: " + size);
+        }
+        if (table.length != size * 3) {
+            throw new IllegalArgumentException("LUT table has " + table.length + " values, expected " + (size * 3));
+        }
+        this.size = size;
+        fillChannel(outR, table, 0, domainMin[0], domainMax[0]);
+        fillChannel(outG, table, 1, domainMin[1], domainMax[1]);
+        fillChannel(outB, table, 2, domainMin[2], domainMax[2]);
+    }
+
+    /** Nội suy tuyến tính đường cong của một kênh cho 256 mức đầu vào. */
+    private void fillChannel(int[] out, float[] table, int channel, float min, float max) {
+        float range = max - min;
+        for (int v = 0; v < 256; v++) {
+            float normalized = range > 0 ? (v / 255f - min) / range : 0f;
+            float pos = Math.max(0f, Math.min(1f, normalized)) * (size - 1);
+            int base = Math.min((int) pos, size - 2);
+            float frac = pos - base;
+            float lo = table[base * 3 + channel];
+            float hi = table[(base + 1) * 3 + channel];
+            out[v] = Lut3D.toByte(lo + (hi - lo) * frac);
+        }
+    }
+
+    /** @return Số điểm trên đường cong. */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void apply(int[] argb, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int p = argb[i];
+            argb[i] = (p & 0xFF000000)
+                    | outR[(p >>> 16) & 0xFF] << 16
+                    | outG[(p >>> 8) & 0xFF] << 8
+                    | outB[p & 0xFF];
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.photobooth.lut;
+
+/**
+ * Bảng tra màu 3D dạng lưới (lattice) N x N x N, lưu gọn trong một mảng float nguyên thủy.
+ * <p>
+ * Bố cục mảng: mỗi nút gồm 3 giá trị (R, G, B) trong khoảng [0, 1]; chỉ số đỏ thay đổi nhanh nhất,
+ * sau đó đến xanh lá rồi xanh dương (giống cả Hald CLUT lẫn định dạng .cube).
+ * Để vòng lặp trên từng điểm ảnh không phải chia hay làm tròn, vị trí nút và phần lẻ của
+ * cả 256 mức đầu vào 8-bit được tính sẵn một lần khi tạo LUT.
+ */
+public final class Lut3D implements ColorLut {
+
+    /** Số nút trên mỗi cạnh của khối. */
+    private final int size;
+    /** Dữ liệu lưới: size³ nút x 3 kênh. */
+    private final float[] table;
+    private final Interpolation interpolation;
+    /** Miền giá trị đầu vào cho từng kênh R, G, B. */
+    private final float[] domainMin, domainMax;
+
+    /** Chỉ số (đã nhân 3) của nút dưới và phần lẻ, tính sẵn cho từng kênh và từng mức 0..255. */
+    private final int[] baseR = new int[256], baseG = new int[256], baseB = new int[256];
+    private final float[] fracR = new float[256], fracG = new float[256], fracB = new float[256];
+
+    /**
+     * Tạo LUT 3D với miền đầu vào mặc định [0, 1].
+     *
+     * @param size          Số nút trên mỗi cạnh (tối thiểu 2).
+     * @param table         Dữ liệu lưới gồm size³ * 3 giá trị; mảng được dùng trực tiếp, không sao chép.
+     * @param interpolation Phương pháp nội suy.
+     */
+    public Lut3D(int size, float[] table, Interpolation interpolation) {
+        this(size, table, interpolation, new float[]{0f, 0f, 0f}, new float[]{1f, 1f, 1f});
+    }
+
+    /**
+     * Tạo LUT 3D với miền đầu vào tùy chỉnh (DOMAIN_MIN / DOMAIN_MAX của định dạng .cube).
+     *
+     * @param domainMin Giá trị đầu vào nhỏ nhất cho từng kênh R, G, B.
+     * @param domainMax Giá trị đầu vào lớn nhất cho từng kênh R, G, B.
+     */
+    public Lut3D(int size, float[] table, Interpolation interpolation, float[] domainMin, float[] domainMax) {
+        if (size < 2) {
+            throw new IllegalArgumentException("LUT size must be at least 2: " + size);
+        }
+        if (table.length != size * size * size * 3) {
+            throw new IllegalArgumentException("LUT table has " + table.length + " values, expected " + (size * size * size * 3));
+        }
+        this.size = size;
+        this.table = table;
+        this.interpolation = interpolation;
+        this.domainMin = domainMin.clone();
+        this.domainMax = domainMax.clone();
+        fillIndexTables(baseR, fracR, domainMin[0], domainMax[0], 3);
+        fillIndexTables(baseG, fracG, domainMin[1], domainMax[1], 3 * size);
+        fillIndexTables(baseB, fracB, domainMin[2], domainMax[2], 3 * size * size);
+    }
+
+    /** Tính sẵn vị trí nút dưới (đã nhân bước nhảy) và phần lẻ cho 256 mức đầu vào của một kênh. */
+    private void fillIndexTables(int[] base, float[] frac, float min, float max, int stride) {
+        float range = max - min;
+        for (int v = 0; v < 256; v++) {
+            float normalized = range > 0 ? (v / 255f - min) / range : 0f;
+            float pos = Math.max(0f, Math.min(1f, normalized)) * (size - 1);
+            // Nút dưới tối đa là size - 2 để nút trên (base + 1) luôn hợp lệ; khi đó phần lẻ có thể bằng 1
+            int b = Math.min((int) pos, size - 2);
+            base[v] = b * stride;
+            frac[v] = pos - b;
+        }
+    }
+
+    /** @return Số nút trên mỗi cạnh của khối. */
+    public int size() {
+        return size;
+    }
+
+    /** @return Phương pháp nội suy đang dùng. */
+    public Interpolation interpolation() {
+        return interpolation;
+    }
+
+    /**
+     * Tạo một bản LUT dùng chung dữ liệu lưới nhưng với phương pháp nội suy khác.
+     *
+     * @param interpolation Phương pháp nội suy mới.
+     * @return LUT mới (hoặc chính nó nếu không đổi).
+     */
+    public Lut3D withInterpolation(Interpolation interpolation) {
+        if (interpolation == this.interpolation) {
+            return this;
+        }
+        return new Lut3D(size, table, interpolation, domainMin, domainMax);
+    }
+
+    @Override
+    public void apply(int[] argb, int offset, int length) {
+        if (interpolation == Interpolation.TETRAHEDRAL) {
+            applyTetrahedral(argb, offset, length);
+        } else {
+            applyTrilinear(argb, offset, length);
+        }
+    }
+
+    private void applyTrilinear(int[] argb, int offset, int length) {
+        final float[] t = table;
+        final int dr = 3, dg = 3 * size, db = 3 * size * size;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int p = argb[i];
+            int r = (p >>> 16) & 0xFF, g = (p >>> 8) & 0xFF, b = p & 0xFF;
+            int i000 = baseR[r] + baseG[g] + baseB[b];
+            float fr = fracR[r], fg = fracG[g], fb = fracB[b];
+            float w000 = (1 - fr) * (1 - fg) * (1 - fb);
+            float w100 = fr * (1 - fg) * (1 - fb);
+            float w010 = (1 - fr) * fg * (1 - fb);
+            float w110 = fr * fg * (1 - fb);
+            float w001 = (1 - fr) * (1 - fg) * fb;
+            float w101 = fr * (1 - fg) * fb;
+            float w011 = (1 - fr) * fg * fb;
+            float w111 = fr * fg * fb;
+            int i100 = i000 + dr, i010 = i000 + dg, i110 = i010 + dr;
+            int i001 = i000 + db, i101 = i001 + dr, i011 = i001 + dg, i111 = i011 + dr;
+
+            int out = p & 0xFF000000;
+            for (int c = 0; c < 3; c++) {
+                float v = w000 * t[i000 + c] + w100 * t[i100 + c] + w010 * t[i010 + c] + w110 * t[i110 + c]
+                        + w001 * t[i001 + c] + w101 * t[i101 + c] + w011 * t[i011 + c] + w111 * t[i111 + c];
+                out |= toByte(v) << (16 - 8 * c);
+            }
+            argb[i] = out;
+        }
+    }
+
+    private void applyTetrahedral(int[] argb, int offset, int length) {
+        final float[] t = table;
+        final int dr = 3, dg = 3 * size, db = 3 * size * size;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int p = argb[i];
+            int r = (p >>> 16) & 0xFF, g = (p >>> 8) & 0xFF, b = p & 0xFF;
+            int i000 = baseR[r] + baseG[g] + baseB[b];
+            int i111 = i000 + dr + dg + db;
+            float fr = fracR[r], fg = fracG[g], fb = fracB[b];
+
+            // Chọn 1 trong 6 tứ diện chứa điểm cần tra, dựa vào thứ tự của các phần lẻ
+            int i1, i2;
+            float w0, w1, w2, w3;
+            if (fr > fg) {
+                if (fg > fb) {
+                    i1 = i000 + dr; i2 = i000 + dr + dg;
+                    w0 = 1 - fr; w1 = fr - fg; w2 = fg - fb; w3 = fb;
+                } else if (fr > fb) {
+                    i1 = i000 + dr; i2 = i000 + dr + db;
+                    w0 = 1 - fr; w1 = fr - fb; w2 = fb - fg; w3 = fg;
+                } else {
+                    i1 = i000 + db; i2 = i000 + dr + db;
+                    w0 = 1 - fb; w1 = fb - fr; w2 = fr - fg; w3 = fg;
+                }
+            } else {
+                if (fb > fg) {
+                    i1 = i000 + db; i2 = i000 + dg + db;
+                    w0 = 1 - fb; w1 = fb - fg; w2 = fg - fr; w3 = fr;
+                } else if (fb > fr) {
+                    i1 = i000 + dg; i2 = i000 + dg + db;
+                    w0 = 1 - fg; w1 = fg - fb; w2 = fb - fr; w3 = fr;
+                } else {
+                    i1 = i000 + dg; i2 = i000 + dr + dg;
+                    w0 = 1 - fg; w1 = fg - fr; w2 = fr - fb; w3 = fb;
+                }
+            }
+
+            int out = p & 0xFF000000;
+            for (int c = 0; c < 3; c++) {
+                float v = w0 * t[i000 + c] + w1 * t[i1 + c] + w2 * t[i2 + c] + w3 * t[i111 + c];
+                out |= toByte(v) << (16 - 8 * c);
+            }
+            argb[i] = out;
+        }
+    }
+
+    /** Chuyển giá trị [0, 1] về 0..255 có làm tròn và giới hạn. */
+    static int toByte(float v) {
+        int x = (int) (v * 255f + 0.5f);
+        return x < 0 ? 0 : (x > 255 ? 255 : x);
+    }
+}
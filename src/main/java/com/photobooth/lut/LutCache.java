@@ -0,0 +1,166 @@
+package com.photobooth.lut;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache dùng chung cho các LUT đã phân tích, khóa theo đường dẫn tệp và thời điểm sửa đổi (mtime).
+ * <p>
+ * Với một sự kiện chụp ảnh, preset hầu như không đổi, nên mỗi tệp preset chỉ cần được đọc và phân tích
+ * một lần cho cả buổi thay vì một lần cho mỗi ô ảnh. Khi tệp preset bị sửa, mtime thay đổi và bản cũ bị loại bỏ.
+ */
+public final class LutCache {
+
+    /** Cache mặc định dùng chung cho toàn ứng dụng. */
+    private static final LutCache DEFAULT = new LutCache();
+
+    /** Khóa cache: một phiên bản cụ thể của một tệp preset với một phương pháp nội suy. */
+    private record Key(String path, long lastModified, long length, Interpolation interpolation) {
+    }
+
+    /** Cấp của ảnh Hald CLUT được tạo ra cho ImageMagick (cấp 8 = khối 64³, ảnh 512x512). */
+    private static final int EXPORT_HALD_LEVEL = 8;
+
+    private final Map<Key, ColorLut> entries = new ConcurrentHashMap<>();
+    /** Các tệp Hald CLUT đã được tạo từ preset .cube, dùng cho engine ImageMagick. */
+    private final Map<Key, File> haldFiles = new ConcurrentHashMap<>();
+
+    /** @return Cache mặc định dùng chung cho toàn ứng dụng. */
+    public static LutCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Kiểm tra xem tệp có phải là định dạng preset được hỗ trợ không.
+     *
+     * @param presetFile Tệp preset (có thể null).
+     * @return true nếu tệp tồn tại và có định dạng được hỗ trợ.
+     */
+    public static boolean isSupported(File presetFile) {
+        if (presetFile == null || !presetFile.isFile()) {
+            return false;
+        }
+        String name = presetFile.getName().toLowerCase();
+        return name.endsWith(".png") || name.endsWith(".cube");
+    }
+
+    /**
+     * Lấy LUT đã phân tích cho một tệp preset, đọc tệp nếu chưa có trong cache hoặc tệp đã thay đổi.
+     *
+     * @param presetFile    Tệp preset.
+     * @param interpolation Phương pháp nội suy mong muốn.
+     * @return LUT đã sẵn sàng để áp dụng.
+     * @throws IOException Nếu tệp không được hỗ trợ hoặc không đọc được.
+     */
+    public ColorLut get(File presetFile, Interpolation interpolation) throws IOException {
+        if (!isSupported(presetFile)) {
+            throw new IOException("Unsupported preset file: " + presetFile);
+        }
+        String path = presetFile.getAbsolutePath();
+        Key key = new Key(path, presetFile.lastModified(), presetFile.length(), interpolation);
+        ColorLut cached = entries.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        ColorLut loaded = presetFile.getName().toLowerCase().endsWith(".cube")
+                ? CubeLutParser.load(presetFile, interpolation)
+                : HaldClutLoader.load(presetFile, interpolation);
+        // Loại bỏ các phiên bản cũ của cùng tệp trước khi lưu phiên bản mới
+        entries.keySet().removeIf(k -> k.path().equals(path) && (k.lastModified() != key.lastModified() || k.length() != key.length()));
+        ColorLut previous = entries.putIfAbsent(key, loaded);
+        return previous != null ? previous : loaded;
+    }
+
+    /**
+     * Lấy một tệp Hald CLUT tương đương với preset để truyền cho {@code magick ... -hald-clut}.
+     * <p>
+     * Preset .png được trả về nguyên trạng. Preset .cube được phân tích (qua cache) và lấy mẫu thành một ảnh Hald
+     * trong thư mục tạm; tệp này được tạo một lần cho mỗi phiên bản của preset và dùng lại cho mọi ô ảnh. Khi preset
+     * bị sửa, tệp Hald của phiên bản cũ bị xóa ngay để các tệp tạm không dồn lại trong một buổi chụp dài.
+     *
+     * @param presetFile Tệp preset.
+     * @return Tệp Hald CLUT.
+     * @throws IOException Nếu preset không được hỗ trợ hoặc không ghi được tệp Hald.
+     */
+    public File haldFileFor(File presetFile) throws IOException {
+        if (!isSupported(presetFile)) {
+            throw new IOException("Unsupported preset file: " + presetFile);
+        }
+        if (presetFile.getName().toLowerCase().endsWith(".png")) {
+            return presetFile;
+        }
+        Key key = new Key(presetFile.getAbsolutePath(), presetFile.lastModified(), presetFile.length(), Interpolation.TRILINEAR);
+        File cached = haldFiles.get(key);
+        if (cached != null && cached.isFile()) {
+            return cached;
+        }
+        synchronized (haldFiles) {
+            cached = haldFiles.get(key);
+            if (cached != null && cached.isFile()) {
+                return cached;
+            }
+            File hald = writeHald(get(presetFile, Interpolation.TRILINEAR));
+            haldFiles.entrySet().removeIf(e -> {
+                if (!e.getKey().path().equals(key.path())) {
+                    return false;
+                }
+                deleteHald(e.getValue());
+                return true;
+            });
+            haldFiles.put(key, hald);
+            return hald;
+        }
+    }
+
+    /** Lấy mẫu LUT tại mọi nút của một khối Hald và ghi ra tệp PNG tạm. */
+    private static File writeHald(ColorLut lut) throws IOException {
+        int cubeSize = EXPORT_HALD_LEVEL * EXPORT_HALD_LEVEL;
+        int width = cubeSize * EXPORT_HALD_LEVEL;
+        int[] pixels = new int[width * width];
+        for (int b = 0, i = 0; b < cubeSize; b++) {
+            for (int g = 0; g < cubeSize; g++) {
+                for (int r = 0; r < cubeSize; r++, i++) {
+                    pixels[i] = 0xFF000000
+                            | Math.round(r * 255f / (cubeSize - 1)) << 16
+                            | Math.round(g * 255f / (cubeSize - 1)) << 8
+                            | Math.round(b * 255f / (cubeSize - 1));
+                }
+            }
+        }
+        lut.apply(pixels, 0, pixels.length);
+
+        BufferedImage image = new BufferedImage(width, width, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, width, pixels, 0, width);
+        File file = Files.createTempFile("photobooth_lut_", ".png").toFile();
+        file.deleteOnExit();
+        if (!ImageIO.write(image, "png", file)) {
+            deleteHald(file);
+            throw new IOException("No PNG writer available.");
+        }
+        return file;
+    }
+
+    /** Xóa một tệp Hald tạm không còn dùng; nếu đang bị khóa (Windows), tệp vẫn được xóa khi thoát nhờ deleteOnExit. */
+    private static void deleteHald(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            System.err.println("Không xóa được tệp Hald tạm " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** Xóa toàn bộ cache (và các tệp Hald tạm đã tạo). */
+    public void clear() {
+        entries.clear();
+        synchronized (haldFiles) {
+            haldFiles.values().forEach(LutCache::deleteHald);
+            haldFiles.clear();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.photobooth.processing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Trình đọc EXIF tối giản cho tệp JPEG: chỉ đọc phần đầu tệp (các segment trước dữ liệu ảnh),
+ * không giải mã điểm ảnh.
+ */
+public final class ExifReader {
+
+    /** Thẻ EXIF "Orientation". */
+    private static final int TAG_ORIENTATION = 0x0112;
+    /** Thẻ vị trí và độ dài của ảnh xem trước JPEG trong IFD1 (JPEGInterchangeFormat / JPEGInterchangeFormatLength). */
+    private static final int TAG_PREVIEW_OFFSET = 0x0201;
+    private static final int TAG_PREVIEW_LENGTH = 0x0202;
+
+    private static final byte[] EXIF_SIGNATURE = {'E', 'x', 'i', 'f', 0, 0};
+    /** Phần mở rộng JFIF (APP0 "JFXX"), mã 0x10 là ảnh xem trước dạng JPEG. */
+    private static final byte[] JFXX_JPEG_SIGNATURE = {'J', 'F', 'X', 'X', 0, 0x10};
+
+    private ExifReader() {
+    }
+
+    /**
+     * Đọc giá trị hướng ảnh (EXIF Orientation) của một tệp JPEG.
+     *
+     * @param file Tệp ảnh.
+     * @return Giá trị 1..8 theo chuẩn EXIF; 1 (không xoay) nếu tệp không phải JPEG hoặc không có thông tin hướng.
+     */
+    public static int readOrientation(File file) {
+        try {
+            byte[] tiff = readExifSegment(file);
+            if (tiff == null) {
+                return 1;
+            }
+            TiffData data = new TiffData(tiff);
+            int ifd0 = data.int32(4);
+            int orientation = data.findShortTag(ifd0, TAG_ORIENTATION);
+            return orientation >= 1 && orientation <= 8 ? orientation : 1;
+        } catch (IOException | RuntimeException e) {
+            // Thông tin EXIF hỏng không được làm hỏng việc xử lý ảnh
+            return 1;
+        }
+    }
+
+    /**
+     * Đọc ảnh xem trước nhúng trong phần đầu tệp JPEG mà không giải mã ảnh chính: ảnh thu nhỏ EXIF (IFD1 của segment
+     * APP1, máy ảnh thường ghi sẵn khoảng 160x120), hoặc nếu không có thì ảnh xem trước JPEG của phần mở rộng JFIF
+     * (APP0 "JFXX").
+     * <p>
+     * Ảnh xem trước EXIF được lưu theo chiều của cảm biến như ảnh chính, cần xoay theo {@link #readOrientation}.
+     *
+     * @param file Tệp ảnh.
+     * @return Dữ liệu JPEG của ảnh xem trước, hoặc null nếu tệp không phải JPEG hoặc không có ảnh xem trước.
+     */
+    public static byte[] readPreview(File file) {
+        try {
+            byte[] tiff = readExifSegment(file);
+            if (tiff != null) {
+                TiffData data = new TiffData(tiff);
+                int ifd1 = data.nextIfd(data.int32(4));
+                int offset = data.findShortTag(ifd1, TAG_PREVIEW_OFFSET);
+                int length = data.findShortTag(ifd1, TAG_PREVIEW_LENGTH);
+                if (offset > 0 && length > 0 && offset + length <= tiff.length) {
+                    byte[] preview = new byte[length];
+                    System.arraycopy(tiff, offset, preview, 0, length);
+                    if (isJpeg(preview)) {
+                        return preview;
+                    }
+                }
+            }
+            byte[] jfxx = readAppSegment(file, 0xFFE0, JFXX_JPEG_SIGNATURE);
+            return jfxx != null && isJpeg(jfxx) ? jfxx : null;
+        } catch (IOException | RuntimeException e) {
+            // Ảnh xem trước hỏng: nơi gọi giải mã ảnh chính
+            return null;
+        }
+    }
+
+    private static boolean isJpeg(byte[] data) {
+        return data.length > 4 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8;
+    }
+
+    /**
+     * Đọc nội dung TIFF của segment APP1 "Exif" (phần sau tiêu đề "Exif\0\0").
+     *
+     * @return Mảng byte của khối TIFF, hoặc null nếu tệp không phải JPEG hoặc không có EXIF.
+     */
+    static byte[] readExifSegment(File file) throws IOException {
+        return readAppSegment(file, 0xFFE1, EXIF_SIGNATURE);
+    }
+
+    /**
+     * Đọc phần dữ liệu (sau chữ ký) của segment đầu tiên có mã {@code marker} và bắt đầu bằng {@code signature},
+     * chỉ duyệt các segment trước dữ liệu ảnh.
+     *
+     * @return Mảng byte sau chữ ký, hoặc null nếu tệp không phải JPEG hoặc không có segment như vậy.
+     */
+    private static byte[] readAppSegment(File file, int wantedMarker, byte[] signature) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return null; // Không phải JPEG
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+                    return null; // Đã tới dữ liệu ảnh (SOS) hoặc cấu trúc không hợp lệ
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker == wantedMarker && length > signature.length) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (Arrays.equals(segment, 0, signature.length, signature, 0, signature.length)) {
+                        return Arrays.copyOfRange(segment, signature.length, length);
+                    }
+                } else {
+                    skipFully(in, length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Truy cập dữ liệu trong một khối TIFF, theo thứ tự byte khai báo trong tiêu đề ("II" hoặc "MM").
+     */
+    static final class TiffData {
+        private final byte[] data;
+        private final boolean littleEndian;
+
+        TiffData(byte[] data) throws IOException {
+            if (data.length < 8) {
+                throw new IOException("TIFF header too short");
+            }
+            this.data = data;
+            if (data[0] == 'I' && data[1] == 'I') {
+                littleEndian = true;
+            } else if (data[0] == 'M' && data[1] == 'M') {
+                littleEndian = false;
+            } else {
+                throw new IOException("Invalid TIFF byte order");
+            }
+        }
+
+        int int16(int offset) {
+            int a = data[offset] & 0xFF, b = data[offset + 1] & 0xFF;
+            return littleEndian ? (b << 8) | a : (a << 8) | b;
+        }
+
+        int int32(int offset) {
+            int a = data[offset] & 0xFF, b = data[offset + 1] & 0xFF, c = data[offset + 2] & 0xFF, d = data[offset + 3] & 0xFF;
+            return littleEndian ? (d << 24) | (c << 16) | (b << 8) | a : (a << 24) | (b << 16) | (c << 8) | d;
+        }
+
+        /**
+         * @return Vị trí của IFD kế tiếp (ví dụ IFD1 chứa ảnh thu nhỏ sau IFD0), hoặc 0 nếu không có.
+         */
+        int nextIfd(int ifdOffset) {
+            if (ifdOffset <= 0 || ifdOffset + 2 > data.length) {
+                return 0;
+            }
+            int link = ifdOffset + 2 + int16(ifdOffset) * 12;
+            return link + 4 <= data.length ? int32(link) : 0;
+        }
+
+        /**
+         * Tìm giá trị của một thẻ trong IFD tại {@code ifdOffset}.
+         *
+         * @return Giá trị (SHORT hoặc LONG) của thẻ, hoặc -1 nếu không có.
+         */
+        int findShortTag(int ifdOffset, int tag) {
+            if (ifdOffset <= 0 || ifdOffset + 2 > data.length) {
+                return -1;
+            }
+            int count = int16(ifdOffset);
+            for (int i = 0; i < count; i++) {
+                int entry = ifdOffset + 2 + i * 12;
+                if (entry + 12 > data.length) {
+                    return -1;
+                }
+                if (int16(entry) == tag) {
+                    int type = int16(entry + 2);
+                    return type == 4 ? int32(entry + 8) : int16(entry + 8);
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.photobooth.processing;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Giải mã ảnh từ máy ảnh một cách tiết kiệm: chỉ đọc phần header để lấy kích thước,
+ * và khi dựng ô ảnh thì chỉ giải mã vùng cần thiết (ROI) với hệ số lấy mẫu thưa (subsampling) phù hợp.
+ * <p>
+ * Ảnh JPEG 24–45 MP thường chỉ được dùng cho một ô rộng dưới 1000 px. Thay vì giải mã toàn bộ khung hình
+ * rồi thu nhỏ 6 lần, bộ giải mã tính vùng mà phép crop "fill" ở giữa thực sự cần, đọc vùng đó với
+ * hệ số subsampling lớn nhất mà vẫn giữ ít nhất gấp đôi số điểm ảnh của ô đích, rồi resample chất lượng cao
+ * về đúng kích thước. Hướng ảnh EXIF được tính đến để vùng ROI luôn đúng với ảnh hiển thị.
+ */
+public final class ImageDecoder {
+
+    /** Độ phân giải tối thiểu (so với ô đích) phải giữ lại sau khi subsampling, để resample cuối cùng vẫn sắc nét. */
+    private static final int OVERSAMPLE = 2;
+    /** Viền (điểm ảnh của ô) dựng thêm quanh vùng nhìn thấy khi chỉ dựng một phần ô. */
+    private static final int CLIP_MARGIN = 4;
+
+    private ImageDecoder() {
+    }
+
+    /**
+     * Đọc kích thước ảnh từ header mà không giải mã điểm ảnh.
+     *
+     * @param file Tệp ảnh.
+     * @return Kích thước lưu trong tệp (chưa tính hướng EXIF).
+     * @throws IOException Nếu định dạng không được hỗ trợ hoặc không đọc được tệp.
+     */
+    public static Dimension readDimensions(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Đọc kích thước ảnh khi hiển thị (đã tính hướng EXIF: ảnh xoay 90° có chiều rộng và cao đổi chỗ) từ header,
+     * không giải mã điểm ảnh.
+     *
+     * @param file Tệp ảnh.
+     * @return Kích thước hiển thị.
+     * @throws IOException Nếu định dạng không được hỗ trợ hoặc không đọc được tệp.
+     */
+    public static Dimension readDisplayDimensions(File file) throws IOException {
+        Dimension raw = readDimensions(file);
+        return ExifReader.readOrientation(file) >= 5 ? new Dimension(raw.height, raw.width) : raw;
+    }
+
+    /**
+     * Giải mã ảnh thu nhỏ vừa trong khung {@code maxSize} x {@code maxSize} (giữ tỷ lệ, đã xoay theo EXIF).
+     * <p>
+     * Nếu tệp JPEG có ảnh xem trước nhúng ({@link ExifReader#readPreview}) đủ lớn, chỉ ảnh xem trước được giải mã
+     * (vài KB thay vì cả ảnh chính). Ngược lại ảnh được đọc với hệ số subsampling lớn nhất mà vẫn còn ít nhất gấp đôi
+     * số điểm ảnh cần thiết.
+     *
+     * @param file    Tệp ảnh nguồn.
+     * @param maxSize Cạnh dài nhất của ảnh thu nhỏ.
+     * @return Ảnh ARGB nhân trước alpha ({@code TYPE_INT_ARGB_PRE}), cạnh dài nhất bằng {@code maxSize}
+     *         (hoặc nhỏ hơn nếu ảnh gốc nhỏ hơn).
+     * @throws IOException Nếu không giải mã được ảnh.
+     */
+    public static BufferedImage decodeThumbnail(File file, int maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IOException("Invalid thumbnail size: " + maxSize);
+        }
+        int orientation = ExifReader.readOrientation(file);
+        BufferedImage preview = decodePreview(file, maxSize);
+        if (preview != null) {
+            return fitThumbnail(applyOrientation(preview, orientation), maxSize);
+        }
+        BufferedImage decoded;
+        int rawWidth, rawHeight;
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                rawWidth = reader.getWidth(0);
+                rawHeight = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(rawWidth, rawHeight) / (maxSize * OVERSAMPLE));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                decoded = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (decoded == null) {
+            throw new IOException("Unsupported image format: " + file.getAbsolutePath());
+        }
+        return fitThumbnail(applyOrientation(decoded, orientation), maxSize);
+    }
+
+    /**
+     * Giải mã ảnh xem trước nhúng trong tệp (chưa xoay theo EXIF), cắt bỏ dải đen nếu máy ảnh ghi ảnh xem trước 4:3
+     * cho ảnh 3:2.
+     *
+     * @return Ảnh xem trước, hoặc null nếu không có, hỏng, hoặc nhỏ hơn {@code maxSize}.
+     */
+    private static BufferedImage decodePreview(File file, int maxSize) {
+        byte[] data = ExifReader.readPreview(file);
+        if (data == null) {
+            return null;
+        }
+        try {
+            BufferedImage preview = ImageIO.read(new ByteArrayInputStream(data));
+            if (preview == null || Math.max(preview.getWidth(), preview.getHeight()) < maxSize) {
+                return null;
+            }
+            Dimension full = readDimensions(file);
+            double fullAspect = (double) full.width / full.height;
+            double previewAspect = (double) preview.getWidth() / preview.getHeight();
+            if (Math.abs(fullAspect - previewAspect) > 0.02) {
+                // Dải đen nằm đều hai bên: giữ phần giữa có cùng tỷ lệ với ảnh chính
+                int width = preview.getWidth(), height = preview.getHeight();
+                if (fullAspect > previewAspect) {
+                    height = Math.max(1, (int) Math.round(width / fullAspect));
+                } else {
+                    width = Math.max(1, (int) Math.round(height * fullAspect));
+                }
+                preview = preview.getSubimage((preview.getWidth() - width) / 2, (preview.getHeight() - height) / 2, width, height);
+                if (Math.max(width, height) < maxSize) {
+                    return null;
+                }
+            }
+            return preview;
+        } catch (IOException | RuntimeException e) {
+            return null; // Ảnh xem trước hỏng: giải mã ảnh chính
+        }
+    }
+
+    /**
+     * Thu nhỏ ảnh (đã xoay đúng chiều) cho vừa khung {@code maxSize} x {@code maxSize}, giữ tỷ lệ.
+     *
+     * @return Ảnh {@code TYPE_INT_ARGB_PRE}.
+     */
+    static BufferedImage fitThumbnail(BufferedImage shown, int maxSize) {
+        double scale = Math.min(1.0, (double) maxSize / Math.max(shown.getWidth(), shown.getHeight()));
+        int width = Math.max(1, (int) Math.round(shown.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(shown.getHeight() * scale));
+        BufferedImage reduced = JavaImageRenderer.downscaleBySteps(shown, width, height);
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = thumbnail.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.drawImage(reduced, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Giải mã một ảnh thành ô ảnh WxH theo kiểu "fill" (tương đương {@code -auto-orient -resize WxH^ -gravity center -extent WxH}).
+     *
+     * @param file   Tệp ảnh nguồn.
+     * @param width  Chiều rộng ô đích.
+     * @param height Chiều cao ô đích.
+     * @return Ảnh ARGB có kích thước đúng bằng WxH.
+     * @throws IOException Nếu không giải mã được ảnh hoặc kích thước ô không hợp lệ.
+     */
+    public static BufferedImage decodeForSlot(File file, int width, int height) throws IOException {
+        return decodeForSlot(file, width, height, null);
+    }
+
+    /**
+     * Giải mã một ảnh thành ô ảnh WxH theo kiểu "fill", nhưng chỉ dựng phần {@code visible} của ô.
+     * <p>
+     * Dùng khi phần còn lại của ô bị ảnh khung đục che kín: chỉ vùng ảnh gốc tương ứng với {@code visible}
+     * (cộng một viền nhỏ cho bộ lọc resample) được giải mã và resample, nên cả I/O, giải mã lẫn resize đều tỷ lệ
+     * với phần nhìn thấy. Điểm ảnh ngoài vùng này (và viền) để trong suốt.
+     *
+     * @param visible Vùng cần dựng, trong tọa độ ô (0,0 là góc trên trái của ô); null để dựng toàn bộ ô.
+     * @return Ảnh ARGB có kích thước đúng bằng WxH.
+     * @throws IOException Nếu không giải mã được ảnh hoặc kích thước ô không hợp lệ.
+     */
+    public static BufferedImage decodeForSlot(File file, int width, int height, Rectangle visible) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid slot size: " + width + "x" + height);
+        }
+        Rectangle target = null;
+        if (visible != null) {
+            // Viền thêm quanh vùng nhìn thấy nằm dưới phần khung đục, để sai khác ở mép bộ lọc bicubic không bao giờ lộ ra
+            Rectangle padded = new Rectangle(visible.x - CLIP_MARGIN, visible.y - CLIP_MARGIN, visible.width + 2 * CLIP_MARGIN, visible.height + 2 * CLIP_MARGIN);
+            target = padded.intersection(new Rectangle(0, 0, width, height));
+            if (target.isEmpty()) {
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+            if (target.width == width && target.height == height) {
+                target = null; // Gần như cả ô đều nhìn thấy: dựng đầy đủ như bình thường
+            }
+        }
+        int orientation = ExifReader.readOrientation(file);
+        boolean swapsAxes = orientation >= 5;
+
+        BufferedImage decoded;
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                int rawWidth = reader.getWidth(0);
+                int rawHeight = reader.getHeight(0);
+                int shownWidth = swapsAxes ? rawHeight : rawWidth;
+                int shownHeight = swapsAxes ? rawWidth : rawHeight;
+
+                // Vùng cần giữ lại trong ảnh hiển thị (sau khi xoay theo EXIF): phần giữa có cùng tỷ lệ với ô đích
+                double scale = Math.max((double) width / shownWidth, (double) height / shownHeight);
+                double cropWidth = Math.min(shownWidth, width / scale);
+                double cropHeight = Math.min(shownHeight, height / scale);
+                double cropX = (shownWidth - cropWidth) / 2;
+                double cropY = (shownHeight - cropHeight) / 2;
+
+                // Hệ số subsampling lớn nhất mà vùng crop vẫn lớn hơn ô đích ít nhất OVERSAMPLE lần. Khi chỉ dựng một phần ô,
+                // hệ số vẫn tính theo cả ô để phần dựng được có cùng mật độ lấy mẫu (và cùng kết quả) như khi dựng đầy đủ
+                Rectangle region = toRawRegion(orientation, cropX, cropY, cropWidth, cropHeight, rawWidth, rawHeight);
+                int targetAlongRawX = swapsAxes ? height : width;
+                int targetAlongRawY = swapsAxes ? width : height;
+                int subsampling = Math.max(1, Math.min(
+                        region.width / (targetAlongRawX * OVERSAMPLE),
+                        region.height / (targetAlongRawY * OVERSAMPLE)));
+                if (target != null) {
+                    // Chỉ phần ảnh hiển thị nằm dưới vùng cần dựng của ô
+                    region = toRawRegion(orientation, cropX + target.x / scale, cropY + target.y / scale,
+                            target.width / scale, target.height / scale, rawWidth, rawHeight);
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                decoded = reader.read(0, param);
+                if (target != null && decoded != null) {
+                    return placeInSlot(applyOrientation(decoded, orientation), orientation, region, subsampling,
+                            rawWidth, rawHeight, scale, cropX, cropY, width, height, target);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (decoded == null) {
+            throw new IOException("Unsupported image format: " + file.getAbsolutePath());
+        }
+        // Phần resample và căn chỉnh cuối cùng dùng chung với engine Java
+        return JavaImageRenderer.fillCrop(applyOrientation(decoded, orientation), width, height);
+    }
+
+    /**
+     * Resample phần ảnh đã giải mã (đã xoay theo EXIF) vào đúng vị trí của nó trong ô WxH, chỉ vẽ trong {@code target}.
+     * Vị trí được tính chính xác từ vùng đọc và hệ số subsampling (kể cả khi trục bị lật), nên phần dựng được
+     * khớp với ô dựng đầy đủ trong sai số dưới một điểm ảnh.
+     */
+    private static BufferedImage placeInSlot(BufferedImage shown, int orientation, Rectangle region, int subsampling,
+                                             int rawWidth, int rawHeight, double scale, double cropX, double cropY,
+                                             int width, int height, Rectangle target) {
+        boolean swapsAxes = orientation >= 5;
+        // Trục ngang/dọc của ảnh hiển thị ứng với trục nào của ảnh lưu trữ, và có bị lật không
+        boolean flipsX = orientation == 2 || orientation == 3 || orientation == 6 || orientation == 7;
+        boolean flipsY = orientation == 3 || orientation == 4 || orientation == 7 || orientation == 8;
+        int startX = swapsAxes ? region.y : region.x;
+        int startY = swapsAxes ? region.x : region.y;
+        int lengthX = swapsAxes ? rawHeight : rawWidth;
+        int lengthY = swapsAxes ? rawWidth : rawHeight;
+        // Mỗi điểm ảnh đã giải mã phủ đúng "subsampling" điểm ảnh gốc, bắt đầu từ mép vùng đọc phía trục không bị lật
+        double spanX = (double) shown.getWidth() * subsampling;
+        double spanY = (double) shown.getHeight() * subsampling;
+        double originX = flipsX ? lengthX - startX - spanX : startX;
+        double originY = flipsY ? lengthY - startY - spanY : startY;
+
+        double destX = (originX - cropX) * scale;
+        double destY = (originY - cropY) * scale;
+        double destWidth = spanX * scale;
+        double destHeight = spanY * scale;
+        BufferedImage reduced = JavaImageRenderer.downscaleBySteps(shown,
+                Math.max(1, (int) Math.ceil(destWidth)), Math.max(1, (int) Math.ceil(destHeight)));
+
+        BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = tile.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.clip(target);
+            AffineTransform transform = new AffineTransform();
+            transform.translate(destX, destY);
+            transform.scale(destWidth / reduced.getWidth(), destHeight / reduced.getHeight());
+            g.drawImage(reduced, transform, null);
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * Chuyển một hình chữ nhật trong ảnh hiển thị về vùng tương ứng trong dữ liệu ảnh lưu trữ (trước khi xoay theo EXIF).
+     * Vùng được mở rộng ra số nguyên điểm ảnh bao quanh và giới hạn trong ảnh.
+     */
+    static Rectangle toRawRegion(int orientation, double x, double y, double w, double h, int rawWidth, int rawHeight) {
+        double[] xs = {x, x + w};
+        double[] ys = {y, y + h};
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (double px : xs) {
+            for (double py : ys) {
+                double rx, ry;
+                switch (orientation) {
+                    case 2 -> { rx = rawWidth - px; ry = py; }                  // lật ngang
+                    case 3 -> { rx = rawWidth - px; ry = rawHeight - py; }      // xoay 180°
+                    case 4 -> { rx = px; ry = rawHeight - py; }                 // lật dọc
+                    case 5 -> { rx = py; ry = px; }                             // chuyển vị
+                    case 6 -> { rx = py; ry = rawHeight - px; }                 // xoay 90° theo chiều kim đồng hồ
+                    case 7 -> { rx = rawWidth - py; ry = rawHeight - px; }      // chuyển vị ngược
+                    case 8 -> { rx = rawWidth - py; ry = px; }                  // xoay 90° ngược chiều kim đồng hồ
+                    default -> { rx = px; ry = py; }
+                }
+                minX = Math.min(minX, rx);
+                minY = Math.min(minY, ry);
+                maxX = Math.max(maxX, rx);
+                maxY = Math.max(maxY, ry);
+            }
+        }
+        int left = Math.max(0, (int) Math.floor(minX));
+        int top = Math.max(0, (int) Math.floor(minY));
+        int right = Math.min(rawWidth, (int) Math.ceil(maxX));
+        int bottom = Math.min(rawHeight, (int) Math.ceil(maxY));
+        return new Rectangle(left, top, Math.max(1, right - left), Math.max(1, bottom - top));
+    }
+
+    /**
+     * Xoay/lật ảnh đã giải mã theo giá trị EXIF Orientation để được ảnh hiển thị đúng chiều.
+     */
+    static BufferedImage applyOrientation(BufferedImage raw, int orientation) {
+        if (orientation <= 1 || orientation > 8) {
+            return raw;
+        }
+        int w = raw.getWidth(), h = raw.getHeight();
+        boolean swapsAxes = orientation >= 5;
+        int outWidth = swapsAxes ? h : w;
+        int outHeight = swapsAxes ? w : h;
+        int[] src = raw.getRGB(0, 0, w, h, null, 0, w);
+        int[] dst = new int[src.length];
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int sx, sy;
+                switch (orientation) {
+                    case 2 -> { sx = w - 1 - x; sy = y; }
+                    case 3 -> { sx = w - 1 - x; sy = h - 1 - y; }
+                    case 4 -> { sx = x; sy = h - 1 - y; }
+                    case 5 -> { sx = y; sy = x; }
+                    case 6 -> { sx = y; sy = h - 1 - x; }
+                    case 7 -> { sx = w - 1 - y; sy = h - 1 - x; }
+                    default -> { sx = w - 1 - y; sy = x; } // 8
+                }
+                dst[y * outWidth + x] = src[sy * w + sx];
+            }
+        }
+        BufferedImage out = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_ARGB);
+        out.setRGB(0, 0, outWidth, outHeight, dst, 0, outWidth);
+        return out;
+    }
+
+    private static ImageReader readerFor(ImageInputStream input, File file) throws IOException {
+        if (input == null) {
+            throw new IOException("Cannot open image: " + file.getAbsolutePath());
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + file.getAbsolutePath());
+        }
+        return readers.next();
+    }
+}
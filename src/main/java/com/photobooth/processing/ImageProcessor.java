@@ -1,18 +1,80 @@
 package com.photobooth.processing;
 
 import com.photobooth.config.ImagePosition;
+import com.photobooth.diagnostics.MetricsRegistry;
+import com.photobooth.diagnostics.RenderStage;
+import com.photobooth.diagnostics.StageSpan;
+import com.photobooth.lut.Interpolation;
+import com.photobooth.lut.LutCache;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ImageProcessor {
 
+    /** Số hàng của mỗi dải khi dựng theo dải (engine {@link RenderEngine#JAVA_BANDED}); đọc từ system property {@code photobooth.render.stripeHeight}. */
+    private static final int STRIPE_HEIGHT = Integer.getInteger("photobooth.render.stripeHeight", 256);
+
+    /** Số luồng tối đa dùng để xử lý trước các ô ảnh song song. */
+    private final int parallelism;
+    /** Cache các ô ảnh đã xử lý, dùng lại khi xuất lại hoặc in lại; null để không dùng cache. */
+    private final TileCache tileCache;
+    /** Định dạng và tham số nén của ảnh kết quả. */
+    private final OutputOptions outputOptions;
+
+    /**
+     * Khởi tạo bộ xử lý với số luồng bằng số nhân CPU hiện có.
+     */
+    public ImageProcessor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Khởi tạo bộ xử lý với số luồng xử lý song song tùy chỉnh.
+     *
+     * @param parallelism Số ô ảnh tối đa được xử lý cùng lúc (tối thiểu là 1).
+     */
+    public ImageProcessor(int parallelism) {
+        this(parallelism, TileCache.getDefault());
+    }
+
+    /**
+     * Khởi tạo bộ xử lý với số luồng và cache tile tùy chỉnh.
+     *
+     * @param parallelism Số ô ảnh tối đa được xử lý cùng lúc (tối thiểu là 1).
+     * @param tileCache   Cache các ô ảnh đã xử lý, hoặc null để luôn xử lý lại.
+     */
+    public ImageProcessor(int parallelism, TileCache tileCache) {
+        this(parallelism, tileCache, OutputOptions.defaults());
+    }
+
+    /**
+     * Khởi tạo bộ xử lý với số luồng, cache tile và tùy chọn mã hóa ảnh kết quả.
+     *
+     * @param parallelism   Số ô ảnh tối đa được xử lý cùng lúc (tối thiểu là 1).
+     * @param tileCache     Cache các ô ảnh đã xử lý, hoặc null để luôn xử lý lại.
+     * @param outputOptions Định dạng (PNG/JPEG) và tham số nén của ảnh kết quả.
+     */
+    public ImageProcessor(int parallelism, TileCache tileCache, OutputOptions outputOptions) {
+        this.parallelism = Math.max(1, parallelism);
+        this.tileCache = tileCache;
+        this.outputOptions = outputOptions;
+    }
+
     /**
      * Xử lý và ghép nhiều ảnh vào một ảnh khung (template) duy nhất sử dụng ImageMagick.
      * <p>
@@ -22,7 +84,7 @@ public class ImageProcessor {
      * 3. Dọn dẹp: Xóa tất cả các tệp tạm đã tạo.
      *
      * @param images         Danh sách các tệp ảnh nguồn cần ghép.
-     * @param presetFile     Tệp preset màu (ảnh Hald CLUT .png) để áp dụng.
+     * @param presetFile     Tệp preset màu (ảnh Hald CLUT .png hoặc tệp .cube) để áp dụng.
      * @param templateFile   Tệp ảnh khung (frame) sẽ được đặt lên trên cùng.
      * @param templateWidth  Chiều rộng của ảnh khung.
      * @param templateHeight Chiều cao của ảnh khung.
@@ -33,10 +95,43 @@ public class ImageProcessor {
      * @throws InterruptedException Nếu luồng bị ngắt.
      */
     public File processImages(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions) throws IOException, InterruptedException {
+        return processImages(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions, RenderEngine.IMAGEMAGICK);
+    }
+
+    /**
+     * Giống {@link #processImages(List, File, File, int, int, File, List)} nhưng cho phép chọn engine dựng ảnh cho lần xử lý này.
+     *
+     * @param engine Engine dùng để dựng ảnh (ImageMagick hoặc Java trong tiến trình).
+     */
+    public File processImages(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions, RenderEngine engine) throws IOException, InterruptedException {
+        return render(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions, engine).outputFile();
+    }
+
+    /**
+     * Dựng ảnh kết quả và trả về kèm theo thời gian xử lý của từng ô ảnh.
+     * Các ô ảnh được xử lý trước song song trên một pool luồng giới hạn, sau đó mới ghép lại.
+     *
+     * @param engine Engine dùng để dựng ảnh.
+     * @return Tệp kết quả cùng số liệu thời gian.
+     * @throws IOException          Nếu có lỗi về file hoặc lỗi khi dựng ảnh; ô ảnh lỗi đầu tiên sẽ hủy các ô còn lại.
+     * @throws InterruptedException Nếu luồng bị ngắt.
+     */
+    public RenderResult render(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions, RenderEngine engine) throws IOException, InterruptedException {
+        // Mỗi lần dựng được đo trọn vẹn (sự kiện JFR + histogram), kể cả khi thất bại
+        try (StageSpan span = StageSpan.start(RenderStage.RENDER)) {
+            span.detail(engine.name()).size(templateWidth, templateHeight);
+            RenderResult result = renderWithEngine(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions, engine);
+            span.file(result.outputFile()).success();
+            return result;
+        }
+    }
+
+    private RenderResult renderWithEngine(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions, RenderEngine engine) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
 
         // --- KIỂM TRA ĐIỀU KIỆN ĐẦU VÀO ---
-        // Kiểm tra xem ImageMagick đã được cài đặt và có trong PATH hệ thống chưa
-        if (!isImageMagickInstalled()) {
+        // Kiểm tra xem ImageMagick đã được cài đặt và có trong PATH hệ thống chưa (chỉ cần khi dùng engine ImageMagick)
+        if (engine.usesImageMagick() && !isImageMagickInstalled()) {
             throw new IOException("ImageMagick not found. Ensure 'magick' is installed and added to PATH.");
         }
         // Kiểm tra sự tồn tại của các tệp tin cần thiết
@@ -51,10 +146,51 @@ public class ImageProcessor {
             }
         });
 
+        // Chế độ một lệnh: toàn bộ quy trình chạy trong một tiến trình ImageMagick duy nhất
+        if (engine == RenderEngine.IMAGEMAGICK_SINGLE_COMMAND) {
+            File outputFile = processWithSingleCommand(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions);
+            return new RenderResult(outputFile, List.of(), Duration.ofNanos(System.nanoTime() - startNanos));
+        }
+
+        // Pool luồng giới hạn cho lần dựng ảnh này; không tạo nhiều luồng hơn số ô ảnh
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, images.size())));
+        try {
+            // Engine Java xử lý toàn bộ trong bộ nhớ, không cần tệp tạm
+            if (engine == RenderEngine.JAVA) {
+                JavaImageRenderer.Output output = new JavaImageRenderer(Interpolation.TRILINEAR, tileCache, outputOptions).render(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions, pool);
+                return new RenderResult(output.outputFile(), output.slotTimings(), Duration.ofNanos(System.nanoTime() - startNanos));
+            }
+            // Engine Java theo dải: không cấp phát toàn bộ khung, mỗi dải được ghi ra tệp ngay khi ghép xong
+            if (engine == RenderEngine.JAVA_BANDED) {
+                JavaImageRenderer.Output output = new JavaImageRenderer(Interpolation.TRILINEAR, tileCache, outputOptions).renderBanded(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions, STRIPE_HEIGHT, pool);
+                return new RenderResult(output.outputFile(), output.slotTimings(), Duration.ofNanos(System.nanoTime() - startNanos));
+            }
+            List<SlotTiming> slotTimings = new ArrayList<>();
+            File outputFile = processWithSteps(images, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions, pool, slotTimings);
+            return new RenderResult(outputFile, slotTimings, Duration.ofNanos(System.nanoTime() - startNanos));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Quy trình ImageMagick nhiều bước: mỗi ô ảnh được xử lý bởi một tiến trình riêng (chạy song song), rồi ghép lại bằng một tiến trình cuối.
+     *
+     * @param pool        Pool luồng dùng cho bước xử lý trước.
+     * @param slotTimings Danh sách nhận thời gian xử lý của từng ô ảnh.
+     */
+    private File processWithSteps(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions, ExecutorService pool, List<SlotTiming> slotTimings) throws IOException, InterruptedException {
+        // Preset (.png hoặc .cube) được quy về một tệp Hald CLUT; tệp .cube chỉ được phân tích một lần cho mọi ô ảnh
+        File haldFile = LutCache.isSupported(presetFile) ? LutCache.getDefault().haldFileFor(presetFile) : null;
+
         // Danh sách để lưu trữ các tệp tạm thời sẽ được tạo ra
         List<File> tempFiles = new ArrayList<>();
+        // Các tiến trình ImageMagick đang chạy, để có thể dừng chúng ngay khi một ô ảnh bị lỗi
+        Set<Process> runningProcesses = ConcurrentHashMap.newKeySet();
         try {
-            //--- BƯỚC 1: XỬ LÝ TRƯỚC TỪNG ẢNH VÀ LƯU VÀO FILE TẠM ---
+            //--- BƯỚC 1: XỬ LÝ TRƯỚC TỪNG ẢNH VÀ LƯU VÀO FILE TẠM (SONG SONG) ---
+            List<Integer> slotIndexes = new ArrayList<>();
+            List<Callable<SlotTiming>> tasks = new ArrayList<>();
             for (int i = 0; i < images.size(); i++) {
                 File image = images.get(i);
                 ImagePosition pos = positions.get(i);
@@ -63,11 +199,14 @@ public class ImageProcessor {
                 // Tạo một tệp tạm thời với tiền tố và hậu tố ".png" trong thư mục tạm của hệ thống
                 File tempOut = Files.createTempFile("photobooth_temp_", ".png").toFile();
                 tempFiles.add(tempOut); // Thêm vào danh sách để dọn dẹp sau này.
+                slotIndexes.add(i); // Ghi nhớ ô ảnh tương ứng để ghép đúng vị trí ở bước 2
 
                 // Xây dựng câu lệnh ImageMagick để xử lý một ảnh duy nhất
                 List<String> singleImageCommand = new ArrayList<>();
                 singleImageCommand.add("magick");
+                singleImageCommand.addAll(decodeSizeHint(image, pos)); // Cho phép libjpeg giải mã ở độ phân giải thấp hơn
                 singleImageCommand.add(image.getAbsolutePath()); // Ảnh đầu vào
+                singleImageCommand.add("-auto-orient"); // Xoay ảnh theo thông tin EXIF
                 singleImageCommand.add("-resize");
                 // Thay đổi kích thước: fill đầy vùng chứa mà không làm méo ảnh, phần thừa sẽ được cắt
                 singleImageCommand.add((int) pos.width() + "x" + (int) pos.height() + "^");
@@ -79,17 +218,46 @@ public class ImageProcessor {
                 singleImageCommand.add("-strip"); // Xóa bỏ các metadata không cần thiết (EXIF, v.v.)
 
                 // Nếu có tệp preset được cung cấp thì áp dụng nó
-                if (presetFile != null && presetFile.exists() && presetFile.getName().toLowerCase().endsWith(".png")) {
-                    singleImageCommand.add(presetFile.getAbsolutePath()); // Tệp LUT
+                if (haldFile != null) {
+                    singleImageCommand.add(haldFile.getAbsolutePath()); // Tệp LUT
                     singleImageCommand.add("-hald-clut"); // Toán tử áp dụng LUT
                 }
                 singleImageCommand.add(tempOut.getAbsolutePath()); // Tệp output tạm thời
 
-                // Thực thi câu lệnh cho ảnh này
-                executeCommand(singleImageCommand, "Processing " + image.getName());
+                // Mỗi ô ảnh là một tác vụ độc lập, được đo thời gian riêng
+                final int slotIndex = i;
+                tasks.add(() -> {
+                    long slotStart = System.nanoTime();
+                    // Ô ảnh đã được xử lý ở lần xuất trước: chỉ cần ghi lại tile nhỏ từ cache, không gọi ImageMagick
+                    TileCache.TileKey key = tileCache != null
+                            ? tileCache.keyFor(image, (int) pos.width(), (int) pos.height(), haldFile != null ? presetFile : null, "magick")
+                            : null;
+                    try (StageSpan span = StageSpan.start(RenderStage.SLOT_PREPROCESS)) {
+                        span.file(image).slot(slotIndex).size((int) pos.width(), (int) pos.height());
+                        BufferedImage cached = key != null ? tileCache.get(key) : null;
+                        if (cached != null) {
+                            ImageIO.write(cached, "png", tempOut);
+                            span.detail("cache hit");
+                            MetricsRegistry.getDefault().increment(MetricsRegistry.TILE_CACHE_HITS);
+                        } else {
+                            executeCommand(singleImageCommand, "Processing " + image.getName(), runningProcesses);
+                            if (key != null) {
+                                // Tầng đĩa chép thẳng tệp PNG; chỉ giải mã lại nếu tầng bộ nhớ sẽ giữ tile
+                                tileCache.putEncoded(key, tempOut.toPath());
+                            }
+                            span.detail("magick");
+                            MetricsRegistry.getDefault().increment(MetricsRegistry.TILES_PROCESSED);
+                        }
+                        span.success();
+                    }
+                    return new SlotTiming(slotIndex, image, Duration.ofNanos(System.nanoTime() - slotStart));
+                });
             }
 
-            //--- BƯỚC 2: GHÉP CÁC FILE TẠM ĐÃ XỬ LÝ VÀO ẢNH KHUNG ---
+            // Chạy song song và chờ tất cả hoàn tất; lỗi đầu tiên sẽ hủy các ô còn lại và dừng các tiến trình đang chạy
+            slotTimings.addAll(SlotTaskRunner.invokeAll(pool, tasks, () -> runningProcesses.forEach(Process::destroyForcibly)));
+
+        //--- BƯỚC 2: GHÉP CÁC FILE TẠM ĐÃ XỬ LÝ VÀO ẢNH KHUNG ---
             List<String> finalCompositeCommand = new ArrayList<>();
             finalCompositeCommand.add("magick");
 
@@ -101,7 +269,7 @@ public class ImageProcessor {
             // Ghép lần lượt các ảnh tạm đã xử lý vào nền trong suốt tại đúng vị trí
             for (int i = 0; i < tempFiles.size(); i++) {
                 File tempImage = tempFiles.get(i);
-                ImagePosition pos = positions.get(i);
+                ImagePosition pos = positions.get(slotIndexes.get(i));
 
                 finalCompositeCommand.add(tempImage.getAbsolutePath()); // Ảnh cần ghép
                 finalCompositeCommand.add("-geometry");
@@ -112,20 +280,26 @@ public class ImageProcessor {
             // Cuối cùng, ghép ảnh khung lên trên tất cả các lớp đã có
             finalCompositeCommand.add(templateFile.getAbsolutePath());
             finalCompositeCommand.add("-composite");
+            finalCompositeCommand.addAll(outputEncodingArgs(outputOptions));
 
             // Xác định tên và đường dẫn cho tệp output cuối cùng
-            String outputFileName = "output_" + System.currentTimeMillis() + ".png";
+            String outputFileName = outputOptions.newOutputName();
             String outputFilePath = new File(exportFolder, outputFileName).getAbsolutePath();
             finalCompositeCommand.add(outputFilePath);
 
-            // Thực thi câu lệnh ghép cuối cùng
-            executeCommand(finalCompositeCommand, "Final compositing");
-
             File outputFile = new File(outputFilePath);
-            // Kiểm tra lại xem file output có thực sự được tạo ra không
-            if (!outputFile.exists() || outputFile.length() == 0) {
-                throw new IOException("Final output file was not created or is empty.");
+            // Thực thi câu lệnh ghép cuối cùng; ImageMagick ghép, mã hóa và ghi tệp trong cùng một tiến trình
+            try (StageSpan span = StageSpan.start(RenderStage.COMPOSITE)) {
+                span.size(templateWidth, templateHeight).detail("magick (composite + encode)");
+                executeCommand(finalCompositeCommand, "Final compositing");
+
+                // Kiểm tra lại xem file output có thực sự được tạo ra không
+                if (!outputFile.exists() || outputFile.length() == 0) {
+                    throw new IOException("Final output file was not created or is empty.");
+                }
+                span.file(outputFile).success();
             }
+            MetricsRegistry.getDefault().add(MetricsRegistry.OUTPUT_BYTES, outputFile.length());
             // Trả về đối tượng File của ảnh kết quả
             return outputFile;
 
@@ -140,6 +314,116 @@ public class ImageProcessor {
         }
     }
 
+    /**
+     * Dựng ảnh kết quả bằng MỘT câu lệnh ImageMagick duy nhất.
+     * <p>
+     * Mỗi ảnh con được xử lý trong một cặp ngoặc "( ... )" (resize, crop, áp dụng preset) rồi ghép ngay vào nền,
+     * nên không cần ghi/đọc lại các tệp PNG tạm và chỉ tạo một tiến trình cho cả dải ảnh.
+     *
+     * @return Tệp ảnh kết quả đã được xử lý.
+     * @throws IOException          Nếu lệnh ImageMagick thất bại hoặc không tạo ra tệp kết quả.
+     * @throws InterruptedException Nếu luồng bị ngắt.
+     */
+    private File processWithSingleCommand(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions) throws IOException, InterruptedException {
+        // Preset (.png hoặc .cube) được quy về một tệp Hald CLUT dùng chung cho mọi ô ảnh
+        File haldFile = LutCache.isSupported(presetFile) ? LutCache.getDefault().haldFileFor(presetFile) : null;
+
+        List<String> command = new ArrayList<>();
+        command.add("magick");
+
+        // Lớp nền trong suốt có kích thước bằng ảnh khung
+        command.add("-size");
+        command.add(templateWidth + "x" + templateHeight);
+        command.add("xc:transparent");
+
+        for (int i = 0; i < images.size(); i++) {
+            File image = images.get(i);
+            ImagePosition pos = positions.get(i);
+            if (image == null) continue;
+
+            // Xử lý ảnh con trong một danh sách ảnh riêng (trong ngoặc) để -hald-clut chỉ tác động lên ảnh này
+            command.add("(");
+            command.addAll(decodeSizeHint(image, pos));
+            command.add(image.getAbsolutePath());
+            command.add("-auto-orient");
+            command.add("-resize");
+            command.add((int) pos.width() + "x" + (int) pos.height() + "^");
+            command.add("-gravity");
+            command.add("center");
+            command.add("-extent");
+            command.add((int) pos.width() + "x" + (int) pos.height());
+            // Trả gravity về mặc định, nếu không -geometry của bước ghép sẽ bị tính từ tâm ảnh
+            command.add("+gravity");
+            command.add("-strip");
+            if (haldFile != null) {
+                command.add(haldFile.getAbsolutePath());
+                command.add("-hald-clut");
+            }
+            command.add(")");
+
+            // Ghép ảnh con vừa xử lý vào nền tại đúng vị trí
+            command.add("-geometry");
+            command.add("+" + (int) pos.x() + "+" + (int) pos.y());
+            command.add("-composite");
+        }
+
+        // Ảnh khung luôn được đặt tại gốc tọa độ, phủ lên trên tất cả
+        command.add("-geometry");
+        command.add("+0+0");
+        command.add(templateFile.getAbsolutePath());
+        command.add("-composite");
+        command.addAll(outputEncodingArgs(outputOptions));
+
+        File outputFile = new File(exportFolder, outputOptions.newOutputName());
+        command.add(outputFile.getAbsolutePath());
+
+        // Một tiến trình làm tất cả: xử lý từng ô, ghép, mã hóa và ghi tệp
+        try (StageSpan span = StageSpan.start(RenderStage.COMPOSITE)) {
+            span.size(templateWidth, templateHeight).detail("magick single command (preprocess + composite + encode)");
+            executeCommand(command, "Single-command compositing");
+
+            if (!outputFile.exists() || outputFile.length() == 0) {
+                throw new IOException("Final output file was not created or is empty.");
+            }
+            span.file(outputFile).success();
+        }
+        MetricsRegistry.getDefault().add(MetricsRegistry.OUTPUT_BYTES, outputFile.length());
+        return outputFile;
+    }
+
+    /**
+     * Tham số mã hóa ảnh kết quả cho ImageMagick, tương ứng với {@link OutputOptions}.
+     * PNG: mức nén và bộ lọc hàng ({@code png:compression-level}, {@code png:compression-filter}).
+     * JPEG: phủ nền trắng thay cho vùng trong suốt và đặt chất lượng, giống engine Java.
+     *
+     * @return Các tham số cần chèn ngay trước tên tệp kết quả.
+     */
+    static List<String> outputEncodingArgs(OutputOptions options) {
+        if (options.format() == OutputOptions.Format.JPEG) {
+            return List.of("-background", "white", "-alpha", "remove", "-alpha", "off", "-quality", String.valueOf(options.jpegQuality()));
+        }
+        return List.of(
+                "-define", "png:compression-level=" + options.compressionLevel(),
+                "-define", "png:compression-filter=" + options.pngFilter().code());
+    }
+
+    /**
+     * Tạo gợi ý kích thước giải mã cho ảnh JPEG ({@code -define jpeg:size=...}).
+     * libjpeg sẽ giải mã trực tiếp ở tỷ lệ 1/2, 1/4 hoặc 1/8 miễn là ảnh vẫn lớn hơn kích thước gợi ý,
+     * nên ảnh 24–45 MP không phải giải mã toàn bộ chỉ để thu nhỏ về một ô vài trăm điểm ảnh.
+     * Kích thước gợi ý được lấy vuông (gấp đôi cạnh lớn của ô) để vẫn an toàn khi ảnh được xoay theo EXIF.
+     *
+     * @return Các tham số cần chèn trước tên tệp đầu vào, hoặc danh sách rỗng nếu không phải JPEG.
+     */
+    private static List<String> decodeSizeHint(File image, ImagePosition pos) {
+        String name = image.getName().toLowerCase();
+        if (!name.endsWith(".jpg") && !name.endsWith(".jpeg")) {
+            return List.of();
+        }
+        int side = 2 * Math.max((int) pos.width(), (int) pos.height());
+        return List.of("-define", "jpeg:size=" + side + "x" + side);
+    }
+
     /**
      * Phương thức trợ giúp để thực thi một câu lệnh dòng lệnh bên ngoài (như ImageMagick).
      * Nó sẽ chạy lệnh, ghi lại output, và ném ra một ngoại lệ (exception) nếu lệnh thất bại.
@@ -150,6 +434,21 @@ public class ImageProcessor {
      * @throws InterruptedException Nếu luồng hiện tại bị ngắt trong khi đang chờ tiến trình kết thúc.
      */
     private void executeCommand(List<String> commandList, String stepName) throws IOException, InterruptedException {
+        executeCommand(commandList, stepName, null);
+    }
+
+    /**
+     * Giống {@link #executeCommand(List, String)} nhưng ghi nhận tiến trình đang chạy vào một tập hợp,
+     * để nơi gọi có thể dừng nó khi cần (ví dụ: khi một ô ảnh khác bị lỗi).
+     *
+     * @param runningProcesses Tập hợp các tiến trình đang chạy, có thể null.
+     */
+    private void executeCommand(List<String> commandList, String stepName, Set<Process> runningProcesses) throws IOException, InterruptedException {
+        // Không khởi chạy tiến trình mới nếu tác vụ đã bị hủy
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("Step [" + stepName + "] cancelled");
+        }
+
         // In ra câu lệnh sắp được thực thi để dễ dàng theo dõi và gỡ lỗi
         System.out.println("Executing Step [" + stepName + "]: " + commandList);
 
@@ -160,8 +459,37 @@ public class ImageProcessor {
         // Điều này giúp chúng ta bắt được tất cả các thông báo, kể cả lỗi, từ tiến trình
         pb.redirectErrorStream(true);
 
-        // Bắt đầu chạy tiến trình
-        Process process = pb.start();
+        // Bắt đầu chạy tiến trình; riêng việc tạo tiến trình cũng được đo (có thể chậm trên Windows khi bị phần mềm diệt virus quét)
+        Process process;
+        try (StageSpan span = StageSpan.start(RenderStage.PROCESS_SPAWN)) {
+            span.detail(stepName);
+            process = pb.start();
+            span.success();
+        }
+        MetricsRegistry.getDefault().increment(MetricsRegistry.PROCESSES_SPAWNED);
+        if (runningProcesses != null) {
+            runningProcesses.add(process);
+            // Tác vụ bị hủy sau lần kiểm tra ở đầu nhưng trước khi tiến trình được ghi nhận: lần dọn dẹp của nơi gọi
+            // có thể đã chạy xong mà không thấy tiến trình này, nên phải tự dừng nó (cờ ngắt được đặt trước khi dọn)
+            if (Thread.currentThread().isInterrupted()) {
+                runningProcesses.remove(process);
+                process.destroyForcibly();
+                throw new InterruptedException("Step [" + stepName + "] cancelled");
+            }
+        }
+        try {
+            waitForCommand(process, stepName);
+        } finally {
+            if (runningProcesses != null) {
+                runningProcesses.remove(process);
+            }
+        }
+    }
+
+    /**
+     * Đọc toàn bộ output của tiến trình, chờ nó kết thúc và kiểm tra mã thoát.
+     */
+    private void waitForCommand(Process process, String stepName) throws IOException, InterruptedException {
 
         // Dùng StringBuilder để thu thập toàn bộ output từ tiến trình
         StringBuilder processOutput = new StringBuilder();
@@ -190,11 +518,16 @@ public class ImageProcessor {
     }
 
     private boolean isImageMagickInstalled() {
-        try {
+        try (StageSpan span = StageSpan.start(RenderStage.MAGICK_PROBE)) {
+            span.detail("magick -version");
             ProcessBuilder pb = new ProcessBuilder("magick", "-version");
             pb.redirectErrorStream(true);
             Process process = pb.start();
-            return process.waitFor() == 0;
+            boolean installed = process.waitFor() == 0;
+            if (installed) {
+                span.success();
+            }
+            return installed;
         } catch (IOException | InterruptedException e) {
             return false;
         }
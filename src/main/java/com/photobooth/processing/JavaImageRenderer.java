@@ -0,0 +1,431 @@
+package com.photobooth.processing;
+
+import com.photobooth.config.ImagePosition;
+import com.photobooth.diagnostics.MetricsRegistry;
+import com.photobooth.diagnostics.RenderStage;
+import com.photobooth.diagnostics.StageSpan;
+import com.photobooth.lut.ColorLut;
+import com.photobooth.lut.Interpolation;
+import com.photobooth.lut.LutCache;
+
+import javax.imageio.ImageIO;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Engine dựng ảnh thuần Java, thay thế cho việc gọi tiến trình ImageMagick bên ngoài.
+ * <p>
+ * Toàn bộ quy trình diễn ra trong bộ nhớ, không tạo tệp tạm:
+ * giải mã bằng ImageIO (chỉ vùng cần thiết, có tính hướng EXIF), resize + crop kiểu "fill"
+ * (tương đương {@code -auto-orient -resize WxH^ -gravity center -extent WxH}),
+ * áp dụng Hald CLUT (tương đương {@code -hald-clut}), ghép vào từng {@link ImagePosition}, rồi đặt ảnh khung lên trên cùng.
+ * Kết quả được thiết kế để khớp với đường xử lý ImageMagick trong một sai số nhỏ trên từng điểm ảnh.
+ */
+public class JavaImageRenderer {
+
+    /** Phương pháp nội suy khi áp dụng LUT; mặc định là tam tuyến tính để khớp với ImageMagick. */
+    private final Interpolation interpolation;
+    /** Cache các ô ảnh đã xử lý, hoặc null để luôn xử lý lại. */
+    private final TileCache tileCache;
+    /** Định dạng và tham số nén của ảnh kết quả. */
+    private final OutputOptions outputOptions;
+
+    /**
+     * Khởi tạo engine với nội suy tam tuyến tính (giống {@code -hald-clut}) và cache tile mặc định.
+     */
+    public JavaImageRenderer() {
+        this(Interpolation.TRILINEAR, TileCache.getDefault());
+    }
+
+    /**
+     * Khởi tạo engine với phương pháp nội suy LUT và cache tile tùy chọn.
+     *
+     * @param interpolation Phương pháp nội suy khi áp dụng preset.
+     * @param tileCache     Cache các ô ảnh đã xử lý, hoặc null để không dùng cache.
+     */
+    public JavaImageRenderer(Interpolation interpolation, TileCache tileCache) {
+        this(interpolation, tileCache, OutputOptions.defaults());
+    }
+
+    /**
+     * Khởi tạo engine với phương pháp nội suy LUT, cache tile và tùy chọn mã hóa ảnh kết quả.
+     *
+     * @param interpolation Phương pháp nội suy khi áp dụng preset.
+     * @param tileCache     Cache các ô ảnh đã xử lý, hoặc null để không dùng cache.
+     * @param outputOptions Định dạng (PNG/JPEG) và tham số nén của ảnh kết quả.
+     */
+    public JavaImageRenderer(Interpolation interpolation, TileCache tileCache, OutputOptions outputOptions) {
+        this.interpolation = interpolation;
+        this.tileCache = tileCache;
+        this.outputOptions = outputOptions;
+    }
+
+    /**
+     * Kết quả dựng ảnh của engine Java.
+     *
+     * @param outputFile  Tệp ảnh kết quả (PNG hoặc JPEG).
+     * @param slotTimings Thời gian xử lý trước của từng ô ảnh.
+     */
+    public record Output(File outputFile, List<SlotTiming> slotTimings) {
+    }
+
+    /**
+     * Dựng ảnh kết quả với cùng tham số như {@link ImageProcessor#processImages}.
+     * Các ô ảnh được giải mã, resize và chỉnh màu song song trên {@code pool}, sau đó ghép tuần tự theo đúng thứ tự lớp.
+     * Phần ô ảnh nằm dưới vùng khung đục hoàn toàn (theo {@link TemplateCoverage}) không được dựng cũng không được ghép.
+     *
+     * @param pool Pool luồng dùng cho bước xử lý trước từng ô ảnh.
+     * @return Tệp ảnh kết quả trong thư mục xuất, kèm thời gian xử lý từng ô.
+     * @throws IOException          Nếu không đọc được ảnh đầu vào hoặc không ghi được ảnh kết quả.
+     * @throws InterruptedException Nếu luồng bị ngắt trong khi chờ các ô ảnh.
+     */
+    public Output render(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions, ExecutorService pool) throws IOException, InterruptedException {
+        // Bản giải mã khung dùng chung với giao diện, không đọc lại tệp; bản đồ độ phủ của nó cho biết phần ô ảnh nào bị che
+        TemplateAssetCache.TemplateAsset template = TemplateAssetCache.getDefault().get(templateFile);
+        TemplateCoverage coverage = template.width() == templateWidth && template.height() == templateHeight ? template.coverage() : null;
+
+        // Bước 1: xử lý trước song song các ô ảnh còn nhìn thấy được
+        PreparedTiles prepared = prepareTiles(images, presetFile, positions, coverage, pool);
+
+        // Bước 2: lớp nền trong suốt có kích thước bằng ảnh khung (tương đương "xc:transparent")
+        BufferedImage canvas = new BufferedImage(templateWidth, templateHeight, BufferedImage.TYPE_INT_ARGB);
+        try (StageSpan span = StageSpan.start(RenderStage.COMPOSITE)) {
+            span.file(templateFile).size(templateWidth, templateHeight).detail("java");
+            Graphics2D g = canvas.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.SrcOver);
+                for (int i = 0; i < prepared.tiles().size(); i++) {
+                    ImagePosition pos = positions.get(prepared.slotIndexes().get(i));
+                    drawVisible(g, prepared.tiles().get(i), (int) pos.x(), (int) pos.y(), coverage);
+                }
+                // Cuối cùng, ghép ảnh khung lên trên tất cả các lớp đã có
+                g.drawImage(template.image(), 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            span.success();
+        }
+
+        // PNG được nén song song theo từng khối hàng; JPEG dùng cho bản gửi khách
+        File outputFile = new File(exportFolder, outputOptions.newOutputName());
+        try (StageSpan span = StageSpan.start(RenderStage.ENCODE)) {
+            OutputEncoder.write(canvas, outputFile, outputOptions);
+            checkOutput(outputFile);
+            span.file(outputFile).size(templateWidth, templateHeight).detail(outputOptions.format().name()).success();
+        }
+        return new Output(outputFile, prepared.timings(images));
+    }
+
+    /**
+     * Dựng ảnh kết quả theo từng dải ngang (banded), dành cho ảnh khung khổ lớn (banner, poster 300 dpi).
+     * <p>
+     * Không cấp phát toàn bộ khung WxH: mỗi dải cao {@code stripeHeight} hàng được ghép từ các ô ảnh giao với dải đó,
+     * phủ phần tương ứng của ảnh khung lên trên (đọc theo từng hàng nếu ảnh khung là PNG), rồi được nén và ghi ra tệp PNG
+     * ngay lập tức. Bộ nhớ đỉnh vì vậy phụ thuộc vào chiều cao dải và kích thước các ô ảnh, không phụ thuộc kích thước khung.
+     * Chế độ này không cắt ô ảnh theo bản đồ độ phủ của khung như {@link #render}, nên kết quả chỉ giống hệt
+     * {@link #render} ngoài mép các ô bị cắt; tại mép đó, giá trị lấy mẫu lại có thể lệch nhẹ.
+     *
+     * @param stripeHeight Số hàng của mỗi dải.
+     * @param pool         Pool luồng dùng cho bước xử lý trước từng ô ảnh.
+     * @return Tệp ảnh PNG kết quả trong thư mục xuất, kèm thời gian xử lý từng ô.
+     * @throws IOException          Nếu không đọc được ảnh đầu vào hoặc không ghi được ảnh kết quả.
+     * @throws InterruptedException Nếu luồng bị ngắt trong khi chờ các ô ảnh.
+     */
+    public Output renderBanded(List<File> images, File presetFile, File templateFile, int templateWidth, int templateHeight, File exportFolder, List<ImagePosition> positions, int stripeHeight, ExecutorService pool) throws IOException, InterruptedException {
+        if (stripeHeight <= 0) {
+            throw new IOException("Invalid stripe height: " + stripeHeight);
+        }
+        // Chế độ dải không giữ toàn bộ khung trong bộ nhớ nên không có bản đồ độ phủ; mọi ô ảnh đều được dựng đầy đủ
+        PreparedTiles prepared = prepareTiles(images, presetFile, positions, null, pool);
+
+        int stripe = Math.min(stripeHeight, templateHeight);
+        // Một dải dùng lại cho mọi lần ghép, và một dải cho các hàng tương ứng của ảnh khung
+        BufferedImage band = new BufferedImage(templateWidth, stripe, BufferedImage.TYPE_INT_ARGB);
+        int[] bandPixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        BufferedImage templateBand = new BufferedImage(templateWidth, stripe, BufferedImage.TYPE_INT_ARGB);
+        int[] templatePixels = ((DataBufferInt) templateBand.getRaster().getDataBuffer()).getData();
+
+        // Chỉ PNG ghi được theo từng dải; với tùy chọn JPEG, chế độ dải vẫn ghi PNG để giữ bộ nhớ giới hạn
+        if (outputOptions.format() != OutputOptions.Format.PNG) {
+            System.out.println("Banded render always writes PNG; ignoring output format " + outputOptions.format());
+        }
+        File outputFile = new File(exportFolder, outputOptions.withFormat(OutputOptions.Format.PNG).newOutputName());
+        StreamingPngReader templateRows = null;
+        BufferedImage template = null;
+        // Ghép và nén diễn ra xen kẽ theo từng dải, nên cả vòng lặp được đo như một giai đoạn ghép (thời gian I/O vẫn tách riêng)
+        StageSpan compositeSpan = StageSpan.start(RenderStage.COMPOSITE);
+        compositeSpan.file(templateFile).size(templateWidth, templateHeight).detail("java-banded (composite + encode)");
+        try (compositeSpan; StreamingPngWriter writer = new StreamingPngWriter(outputFile, templateWidth, templateHeight, outputOptions.compressionLevel(), outputOptions.pngFilter())) {
+            templateRows = openTemplateRows(templateFile, templateWidth, templateHeight);
+            if (templateRows == null) {
+                // Ảnh khung không đọc được theo hàng (JPEG, PNG xen kẽ, 16-bit...): giải mã toàn bộ một lần như engine thường
+                System.out.println("Template cannot be streamed, decoding it fully: " + templateFile.getName());
+                template = readImage(templateFile);
+            }
+            for (int y0 = 0; y0 < templateHeight; y0 += stripe) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Banded render was interrupted");
+                }
+                int rows = Math.min(stripe, templateHeight - y0);
+                Arrays.fill(bandPixels, 0); // Nền trong suốt cho dải mới
+
+                Graphics2D g = band.createGraphics();
+                try {
+                    g.setComposite(AlphaComposite.SrcOver);
+                    // Chỉ vẽ các ô ảnh giao với dải hiện tại, theo đúng thứ tự lớp
+                    for (int i = 0; i < prepared.tiles().size(); i++) {
+                        BufferedImage tile = prepared.tiles().get(i);
+                        ImagePosition pos = positions.get(prepared.slotIndexes().get(i));
+                        int y = (int) pos.y();
+                        if (y < y0 + rows && y + tile.getHeight() > y0) {
+                            g.drawImage(tile, (int) pos.x(), y - y0, null);
+                        }
+                    }
+                    if (templateRows != null) {
+                        templateRows.readRows(templatePixels, 0, rows);
+                        g.drawImage(templateBand, 0, 0, null);
+                    } else {
+                        g.drawImage(template, 0, -y0, null);
+                    }
+                } finally {
+                    g.dispose();
+                }
+                writer.writeRows(bandPixels, 0, rows);
+            }
+            compositeSpan.success();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            outputFile.delete(); // Không để lại tệp kết quả ghi dở
+            throw e;
+        } finally {
+            if (templateRows != null) {
+                templateRows.close();
+            }
+        }
+        checkOutput(outputFile);
+        return new Output(outputFile, prepared.timings(images));
+    }
+
+    /**
+     * Mở ảnh khung để đọc theo từng hàng.
+     *
+     * @return Bộ đọc theo hàng, hoặc null nếu ảnh khung không phải PNG đọc được theo hàng hoặc có kích thước khác với khung.
+     */
+    private static StreamingPngReader openTemplateRows(File templateFile, int templateWidth, int templateHeight) throws IOException {
+        if (!StreamingPngReader.isSupported(templateFile)) {
+            return null;
+        }
+        StreamingPngReader reader = new StreamingPngReader(templateFile);
+        if (reader.getWidth() != templateWidth || reader.getHeight() != templateHeight) {
+            reader.close();
+            return null;
+        }
+        return reader;
+    }
+
+    /**
+     * Các ô ảnh đã xử lý trước, theo thứ tự ghép.
+     *
+     * @param slotIndexes Vị trí (trong danh sách ảnh) của từng ô đã xử lý.
+     * @param tiles       Ô ảnh tương ứng.
+     * @param slotNanos   Thời gian xử lý theo vị trí ảnh.
+     */
+    private record PreparedTiles(List<Integer> slotIndexes, List<BufferedImage> tiles, long[] slotNanos) {
+
+        List<SlotTiming> timings(List<File> images) {
+            List<SlotTiming> slotTimings = new ArrayList<>();
+            for (int slotIndex : slotIndexes) {
+                slotTimings.add(new SlotTiming(slotIndex, images.get(slotIndex), Duration.ofNanos(slotNanos[slotIndex])));
+            }
+            return slotTimings;
+        }
+    }
+
+    /**
+     * Ghép một ô ảnh lên ảnh kết quả, bỏ qua phần nằm dưới các ô khung đục hoàn toàn (khung sẽ phủ đè lên đúng từng điểm ảnh đó).
+     */
+    private static void drawVisible(Graphics2D g, BufferedImage tile, int x, int y, TemplateCoverage coverage) {
+        if (coverage == null) {
+            g.drawImage(tile, x, y, null);
+            return;
+        }
+        for (Rectangle r : coverage.visibleRegions(new Rectangle(x, y, tile.getWidth(), tile.getHeight()))) {
+            g.drawImage(tile, r.x, r.y, r.x + r.width, r.y + r.height,
+                    r.x - x, r.y - y, r.x - x + r.width, r.y - y + r.height, null);
+        }
+    }
+
+    /**
+     * Giải mã, resize và chỉnh màu từng ô ảnh song song trên {@code pool} (mỗi tác vụ chỉ ghi vào ảnh của riêng nó).
+     * Với bản đồ độ phủ của khung, ô ảnh bị che kín được bỏ qua và ô bị che một phần chỉ được dựng phần nhìn thấy.
+     *
+     * @param coverage Bản đồ độ phủ của khung, hoặc null để dựng đầy đủ mọi ô ảnh.
+     */
+    private PreparedTiles prepareTiles(List<File> images, File presetFile, List<ImagePosition> positions, TemplateCoverage coverage, ExecutorService pool) throws IOException, InterruptedException {
+        // Preset được phân tích một lần và lấy từ cache dùng chung, không đọc lại cho từng ô ảnh
+        final ColorLut lut = LutCache.isSupported(presetFile) ? LutCache.getDefault().get(presetFile, interpolation) : null;
+
+        List<Integer> slotIndexes = new ArrayList<>();
+        List<Callable<BufferedImage>> tasks = new ArrayList<>();
+        long[] slotNanos = new long[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            File image = images.get(i);
+            if (image == null) continue;
+            ImagePosition pos = positions.get(i);
+            final int slotIndex = i;
+            // Phần ô nhìn thấy được (tọa độ ô), hoặc null nếu cả ô nhìn thấy
+            Rectangle visible = null;
+            if (coverage != null) {
+                Rectangle slot = new Rectangle((int) pos.x(), (int) pos.y(), (int) pos.width(), (int) pos.height());
+                visible = coverage.visibleBounds(slot);
+                if (visible == null) {
+                    System.out.println("Slot " + i + " is fully covered by the template, skipping " + image.getName());
+                    MetricsRegistry.getDefault().increment(MetricsRegistry.SLOTS_HIDDEN);
+                    continue;
+                }
+                visible.translate(-slot.x, -slot.y);
+                if (visible.width == slot.width && visible.height == slot.height) {
+                    visible = null;
+                } else {
+                    MetricsRegistry.getDefault().increment(MetricsRegistry.SLOTS_CLIPPED);
+                }
+            }
+            final Rectangle clip = visible;
+            slotIndexes.add(i);
+            tasks.add(() -> {
+                long slotStart = System.nanoTime();
+                int width = (int) pos.width(), height = (int) pos.height();
+                // Ô ảnh không đổi so với lần xuất trước thì lấy lại từ cache, không cần giải mã/resize/chỉnh màu lại.
+                // Ô chỉ dựng một phần được lưu riêng theo vùng dựng, không lẫn với ô dựng đầy đủ
+                String pipeline = "java-" + interpolation + (clip != null ? "-clip" + clip.x + "," + clip.y + "," + clip.width + "x" + clip.height : "");
+                TileCache.TileKey key = tileCache != null
+                        ? tileCache.keyFor(image, width, height, lut != null ? presetFile : null, pipeline)
+                        : null;
+                try (StageSpan span = StageSpan.start(RenderStage.SLOT_PREPROCESS)) {
+                    span.file(image).slot(slotIndex).size(width, height);
+                    BufferedImage tile = key != null ? tileCache.get(key) : null;
+                    if (tile == null) {
+                        // Chỉ giải mã vùng cần thiết với subsampling, thay vì toàn bộ ảnh gốc
+                        tile = ImageDecoder.decodeForSlot(image, width, height, clip);
+                        if (lut != null) {
+                            applyLut(lut, tile, clip);
+                        }
+                        if (key != null) {
+                            tileCache.put(key, tile);
+                        }
+                        span.detail(clip != null ? "decoded " + clip.width + "x" + clip.height + " visible" : "decoded");
+                        MetricsRegistry.getDefault().increment(MetricsRegistry.TILES_PROCESSED);
+                    } else {
+                        span.detail("cache hit");
+                        MetricsRegistry.getDefault().increment(MetricsRegistry.TILE_CACHE_HITS);
+                    }
+                    span.success();
+                    slotNanos[slotIndex] = System.nanoTime() - slotStart;
+                    return tile;
+                }
+            });
+        }
+        List<BufferedImage> tiles = SlotTaskRunner.invokeAll(pool, tasks, null);
+        return new PreparedTiles(slotIndexes, tiles, slotNanos);
+    }
+
+    /** Chỉnh màu cả ô ảnh, hoặc chỉ các hàng của vùng {@code region} (tọa độ ô) nếu có. */
+    private static void applyLut(ColorLut lut, BufferedImage tile, Rectangle region) {
+        if (region == null) {
+            lut.apply(tile);
+            return;
+        }
+        // Ô ảnh do ImageDecoder tạo luôn là TYPE_INT_ARGB không chia sẻ raster, nên xử lý trực tiếp trên mảng điểm ảnh
+        int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        int width = tile.getWidth();
+        for (int y = region.y; y < region.y + region.height; y++) {
+            lut.apply(pixels, y * width + region.x, region.width);
+        }
+    }
+
+    private static void checkOutput(File outputFile) throws IOException {
+        if (!outputFile.exists() || outputFile.length() == 0) {
+            throw new IOException("Final output file was not created or is empty.");
+        }
+    }
+
+    /**
+     * Resize ảnh sao cho phủ kín vùng WxH mà không méo, sau đó cắt phần thừa ở giữa.
+     * Tương đương {@code -resize WxH^ -gravity center -extent WxH} của ImageMagick.
+     *
+     * @param source Ảnh nguồn.
+     * @param width  Chiều rộng ô đích.
+     * @param height Chiều cao ô đích.
+     * @return Ảnh ARGB có kích thước đúng bằng WxH.
+     * @throws IOException Nếu kích thước ô không hợp lệ.
+     */
+    static BufferedImage fillCrop(BufferedImage source, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid slot size: " + width + "x" + height);
+        }
+        // Tỷ lệ "^": lấy tỷ lệ lớn hơn để cả hai chiều đều phủ kín ô
+        double scale = Math.max((double) width / source.getWidth(), (double) height / source.getHeight());
+        int scaledWidth = Math.max(width, (int) Math.round(source.getWidth() * scale));
+        int scaledHeight = Math.max(height, (int) Math.round(source.getHeight() * scale));
+        // "-gravity center -extent": phần thừa được chia đều hai bên
+        int offsetX = (scaledWidth - width) / 2;
+        int offsetY = (scaledHeight - height) / 2;
+
+        BufferedImage reduced = downscaleBySteps(source, scaledWidth, scaledHeight);
+
+        BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = tile.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(reduced, -offsetX, -offsetY, scaledWidth, scaledHeight, null);
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * Thu nhỏ ảnh theo từng bước một nửa (bilinear) cho đến khi còn cách kích thước đích không quá 2 lần.
+     * Cách này tránh hiện tượng răng cưa khi thu nhỏ một lần với hệ số lớn, cho chất lượng gần với bộ lọc của ImageMagick.
+     */
+    static BufferedImage downscaleBySteps(BufferedImage source, int targetWidth, int targetHeight) {
+        BufferedImage current = source;
+        int w = source.getWidth();
+        int h = source.getHeight();
+        while (w / 2 >= targetWidth && h / 2 >= targetHeight) {
+            w /= 2;
+            h /= 2;
+            BufferedImage step = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = step.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(current, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+            current = step;
+        }
+        return current;
+    }
+
+    /** Đọc ảnh bằng ImageIO, báo lỗi rõ ràng nếu định dạng không được hỗ trợ. */
+    static BufferedImage readImage(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + file.getAbsolutePath());
+        }
+        return image;
+    }
+}
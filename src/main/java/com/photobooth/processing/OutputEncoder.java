@@ -0,0 +1,78 @@
+package com.photobooth.processing;
+
+import com.photobooth.diagnostics.StageSpan;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+/**
+ * Ghi ảnh kết quả ra tệp theo {@link OutputOptions}: PNG bằng {@link ParallelPngEncoder}, hoặc JPEG
+ * (nền trắng thay cho vùng trong suốt) với chất lượng tùy chỉnh.
+ */
+public final class OutputEncoder {
+
+    private OutputEncoder() {
+    }
+
+    /**
+     * Ghi ảnh theo định dạng và tham số nén đã chọn.
+     *
+     * @param image   Ảnh kết quả (ARGB).
+     * @param file    Tệp đích.
+     * @param options Tùy chọn mã hóa.
+     * @throws IOException          Nếu không ghi được tệp.
+     * @throws InterruptedException Nếu luồng bị ngắt trong khi mã hóa.
+     */
+    public static void write(BufferedImage image, File file, OutputOptions options) throws IOException, InterruptedException {
+        if (options.format() == OutputOptions.Format.JPEG) {
+            writeJpeg(image, file, options.jpegQuality());
+        } else {
+            new ParallelPngEncoder(options.compressionLevel(), options.pngFilter(), Runtime.getRuntime().availableProcessors()).encode(image, file);
+        }
+    }
+
+    /**
+     * Ghi JPEG với chất lượng cho trước. JPEG không có kênh alpha nên ảnh được phủ lên nền trắng
+     * (tương đương {@code -background white -alpha remove} của ImageMagick).
+     */
+    static void writeJpeg(BufferedImage image, File file, int quality) throws IOException {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer available.");
+        }
+        ImageWriter writer = writers.next();
+        // Ghi qua luồng tệp thường (cắt ngắn tệp cũ) để đo được thời gian chờ I/O; bộ đệm bộ nhớ được đẩy xuống tệp liên tục
+        TimedOutputStream fileOut = new TimedOutputStream(Files.newOutputStream(file.toPath()));
+        try (fileOut; ImageOutputStream out = new MemoryCacheImageOutputStream(fileOut)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100f);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        StageSpan.recordFileWrite(file, fileOut.elapsedNanos());
+    }
+}
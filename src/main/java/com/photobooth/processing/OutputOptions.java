@@ -0,0 +1,78 @@
+package com.photobooth.processing;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tùy chọn mã hóa ảnh kết quả cuối cùng.
+ * <p>
+ * Bản in dùng PNG (không mất dữ liệu, giữ kênh alpha); bản gửi khách qua mạng có thể dùng JPEG
+ * với chất lượng tùy chỉnh để xuất nhanh và nhẹ hơn nhiều.
+ * Cấu hình mặc định đọc từ các system property {@code photobooth.output.*}.
+ *
+ * @param format           Định dạng tệp kết quả.
+ * @param compressionLevel Mức nén deflate của PNG (0..9).
+ * @param pngFilter        Chiến lược lọc hàng của PNG.
+ * @param jpegQuality      Chất lượng JPEG (1..100).
+ */
+public record OutputOptions(Format format, int compressionLevel, PngFilter pngFilter, int jpegQuality) {
+
+    /** Mốc thời gian đã dùng gần nhất cho tên tệp kết quả, để các lần dựng song song không ghi đè lên nhau. */
+    private static final AtomicLong LAST_STAMP = new AtomicLong();
+
+    /** Định dạng của ảnh kết quả. */
+    public enum Format {
+        PNG("png"),
+        JPEG("jpg");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /** @return Phần mở rộng tệp (không có dấu chấm). */
+        public String extension() {
+            return extension;
+        }
+    }
+
+    public OutputOptions {
+        if (format == null) {
+            format = Format.PNG;
+        }
+        if (pngFilter == null) {
+            pngFilter = PngFilter.ADAPTIVE;
+        }
+        compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+        jpegQuality = Math.max(1, Math.min(100, jpegQuality));
+    }
+
+    /**
+     * Tùy chọn mặc định: PNG mức nén 6 với bộ lọc thích ứng, JPEG chất lượng 90.
+     * Có thể ghi đè bằng {@code photobooth.output.format}, {@code photobooth.output.compressionLevel},
+     * {@code photobooth.output.pngFilter} và {@code photobooth.output.jpegQuality}.
+     */
+    public static OutputOptions defaults() {
+        return new OutputOptions(
+                Format.valueOf(System.getProperty("photobooth.output.format", "PNG").toUpperCase(Locale.ROOT)),
+                Integer.getInteger("photobooth.output.compressionLevel", 6),
+                PngFilter.valueOf(System.getProperty("photobooth.output.pngFilter", "ADAPTIVE").toUpperCase(Locale.ROOT)),
+                Integer.getInteger("photobooth.output.jpegQuality", 90));
+    }
+
+    /** @return Bản sao với định dạng khác, giữ nguyên các tham số còn lại. */
+    public OutputOptions withFormat(Format newFormat) {
+        return new OutputOptions(newFormat, compressionLevel, pngFilter, jpegQuality);
+    }
+
+    /**
+     * Tạo tên tệp kết quả mới theo quy ước {@code output_<millis>.<ext>}.
+     * Mốc thời gian luôn tăng dần, nên hai lần dựng kết thúc trong cùng một mili giây vẫn có tên khác nhau.
+     */
+    String newOutputName() {
+        long now = System.currentTimeMillis();
+        long stamp = LAST_STAMP.updateAndGet(previous -> Math.max(previous + 1, now));
+        return "output_" + stamp + "." + format.extension();
+    }
+}
@@ -0,0 +1,231 @@
+package com.photobooth.processing;
+
+import com.photobooth.diagnostics.StageSpan;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Bộ mã hóa PNG song song cho ảnh kết quả cuối cùng.
+ * <p>
+ * Ảnh được chia thành các khối hàng liên tiếp. Mỗi khối được lọc và nén deflate độc lập trên một luồng riêng,
+ * dùng 32 KB dữ liệu cuối của khối trước làm từ điển (giống pigz) nên tỷ lệ nén gần như bằng nén tuần tự.
+ * Các khối kết thúc bằng SYNC_FLUSH để nối tiếp được với nhau, khối cuối cùng kết thúc luồng; các mã Adler-32
+ * của từng khối được ghép lại, nên kết quả là một luồng zlib và một tệp PNG chuẩn duy nhất.
+ */
+public class ParallelPngEncoder {
+
+    /** Kích thước cửa sổ deflate, cũng là kích thước từ điển tối đa cho mỗi khối. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /** Kích thước dữ liệu (chưa nén) mục tiêu của một khối. */
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private final int compressionLevel;
+    private final PngFilter filter;
+    private final int parallelism;
+
+    /**
+     * @param compressionLevel Mức nén deflate (0..9).
+     * @param filter           Chiến lược lọc hàng.
+     * @param parallelism      Số luồng nén tối đa.
+     */
+    public ParallelPngEncoder(int compressionLevel, PngFilter filter, int parallelism) {
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /** Kết quả nén một khối: dữ liệu deflate, mã Adler-32 và độ dài dữ liệu chưa nén. */
+    private record Chunk(byte[] compressed, long adler, long length) {
+    }
+
+    /**
+     * Mã hóa ảnh thành tệp PNG (RGBA 8-bit).
+     *
+     * @param image Ảnh cần ghi.
+     * @param file  Tệp đích.
+     * @throws IOException          Nếu ghi lỗi hoặc nén lỗi.
+     * @throws InterruptedException Nếu luồng bị ngắt trong khi chờ các khối.
+     */
+    public void encode(BufferedImage image, File file) throws IOException, InterruptedException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowBytes = width * 4 + 1;
+        int chunkRows = Math.max(1, CHUNK_BYTES / rowBytes);
+        int chunkCount = (height + chunkRows - 1) / chunkRows;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, chunkCount));
+        TimedOutputStream fileOut = new TimedOutputStream(Files.newOutputStream(file.toPath()));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            out.write(StreamingPngWriter.SIGNATURE);
+            StreamingPngWriter.writeHeader(out, width, height);
+
+            // Giới hạn số khối đang chờ ghi để bộ nhớ không tăng theo kích thước ảnh
+            Deque<Future<Chunk>> pending = new ArrayDeque<>();
+            int nextChunk = 0;
+            long adler = 1;
+            for (int written = 0; written < chunkCount; written++) {
+                while (nextChunk < chunkCount && pending.size() < parallelism * 2) {
+                    final int y0 = nextChunk * chunkRows;
+                    final int rows = Math.min(chunkRows, height - y0);
+                    final boolean last = nextChunk == chunkCount - 1;
+                    pending.add(pool.submit(() -> compressChunk(image, y0, rows, last)));
+                    nextChunk++;
+                }
+                Chunk chunk = await(pending.poll());
+                adler = combineAdler(adler, chunk.adler(), chunk.length());
+
+                ByteArrayOutputStream idat = new ByteArrayOutputStream(chunk.compressed().length + 6);
+                if (written == 0) {
+                    idat.write(zlibHeader(compressionLevel));
+                }
+                idat.write(chunk.compressed());
+                if (written == chunkCount - 1) {
+                    // Mã Adler-32 của toàn bộ dữ liệu chưa nén kết thúc luồng zlib
+                    idat.write(new byte[]{(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler});
+                }
+                StreamingPngWriter.writeChunk(out, "IDAT", idat.toByteArray(), 0, idat.size());
+            }
+            StreamingPngWriter.writeChunk(out, "IEND", new byte[0], 0, 0);
+        } finally {
+            pool.shutdownNow();
+        }
+        StageSpan.recordFileWrite(file, fileOut.elapsedNanos());
+    }
+
+    /**
+     * Lọc và nén các hàng {@code [y0, y0 + rows)}. Từ điển là phần đuôi đã lọc của khối trước,
+     * được lọc lại tại chỗ (kết quả lọc chỉ phụ thuộc dữ liệu ảnh) nên các khối không phải chờ nhau.
+     */
+    private Chunk compressChunk(BufferedImage image, int y0, int rows, boolean last) {
+        int width = image.getWidth();
+        int rowBytes = width * 4 + 1;
+        int dictionaryRows = y0 == 0 ? 0 : Math.min(y0, (DICTIONARY_SIZE + rowBytes - 1) / rowBytes);
+        int firstRow = y0 - dictionaryRows;
+        int totalRows = dictionaryRows + rows;
+
+        // Ảnh ARGB thông thường được đọc thẳng từ mảng điểm ảnh, tránh chuyển đổi qua getRGB cho từng hàng
+        int[] pixels = image.getType() == BufferedImage.TYPE_INT_ARGB && image.getRaster().getParent() == null
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt buffer && buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+                ? buffer.getData() : null;
+        int[] argb = pixels != null ? pixels : new int[width];
+
+        // Lọc cả các hàng từ điển và các hàng của khối; hàng ngay trước firstRow chỉ dùng làm "hàng trước"
+        byte[] previous = new byte[width * 4];
+        byte[] current = new byte[width * 4];
+        if (firstRow > 0) {
+            StreamingPngWriter.toRgba(argb, rowOffset(image, pixels, firstRow - 1, argb), previous);
+        }
+        byte[][] filtered = new byte[5][rowBytes];
+        for (int i = 0; i < filtered.length; i++) {
+            filtered[i][0] = (byte) i;
+        }
+        byte[] data = new byte[totalRows * rowBytes];
+        for (int r = 0; r < totalRows; r++) {
+            StreamingPngWriter.toRgba(argb, rowOffset(image, pixels, firstRow + r, argb), current);
+            byte[] best = StreamingPngWriter.filterRow(current, previous, filtered, filter);
+            System.arraycopy(best, 0, data, r * rowBytes, rowBytes);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int dataStart = dictionaryRows * rowBytes;
+        int dataLength = rows * rowBytes;
+        Deflater deflater = new Deflater(compressionLevel, true); // deflate thô, header zlib do luồng ghi tự thêm
+        try {
+            if (dictionaryRows > 0) {
+                int dictionaryLength = Math.min(DICTIONARY_SIZE, dataStart);
+                deflater.setDictionary(data, dataStart - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(data, dataStart, dataLength);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(dataLength / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, n);
+                }
+            } else {
+                // SYNC_FLUSH kết thúc khối trên ranh giới byte, để khối sau nối tiếp trực tiếp vào cùng luồng
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            Adler32 adler = new Adler32();
+            adler.update(data, dataStart, dataLength);
+            return new Chunk(compressed.toByteArray(), adler.getValue(), dataLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Vị trí của hàng {@code y} trong {@code argb}: đọc trực tiếp từ mảng điểm ảnh, hoặc chép hàng vào bộ đệm bằng getRGB. */
+    private static int rowOffset(BufferedImage image, int[] pixels, int y, int[] argb) {
+        int width = image.getWidth();
+        if (pixels != null) {
+            return y * width;
+        }
+        image.getRGB(0, y, width, 1, argb, 0, width);
+        return 0;
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("PNG encoding failed: " + cause.getMessage(), cause);
+        } catch (CancellationException e) {
+            throw new InterruptedException("PNG encoding was cancelled");
+        }
+    }
+
+    /** Header zlib (CMF, FLG) với mức nén khai báo tương ứng, không dùng từ điển định sẵn. */
+    static byte[] zlibHeader(int compressionLevel) {
+        int levelFlag = compressionLevel < 0 ? 2 : compressionLevel <= 1 ? 0 : compressionLevel <= 5 ? 1 : compressionLevel == 6 ? 2 : 3;
+        int cmf = 0x78; // deflate, cửa sổ 32 KB
+        int flg = levelFlag << 6;
+        flg += (31 - ((cmf << 8) + flg) % 31) % 31; // FCHECK: (CMF * 256 + FLG) phải chia hết cho 31
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Ghép hai mã Adler-32: trả về mã của dữ liệu A nối với B, khi biết mã của A, mã của B và độ dài của B
+     * (tương đương {@code adler32_combine} của zlib).
+     */
+    static long combineAdler(long adlerA, long adlerB, long lengthB) {
+        long remainder = lengthB % ADLER_BASE;
+        long sum1 = adlerA & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adlerB & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adlerA >>> 16) & 0xFFFF) + ((adlerB >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= ((long) ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+}
@@ -0,0 +1,27 @@
+package com.photobooth.processing;
+
+/**
+ * Chiến lược lọc (filter) hàng khi mã hóa PNG.
+ * Bộ lọc cố định nhanh hơn; {@link #ADAPTIVE} thử cả 5 bộ lọc cho từng hàng và thường cho tệp nhỏ nhất.
+ */
+public enum PngFilter {
+    NONE(0),
+    SUB(1),
+    UP(2),
+    AVERAGE(3),
+    PAETH(4),
+    /** Chọn bộ lọc cho từng hàng theo tổng trị tuyệt đối nhỏ nhất (heuristic của libpng). */
+    ADAPTIVE(5);
+
+    /** Mã bộ lọc trong PNG (0..4), hoặc 5 cho chế độ thích ứng (cùng quy ước với {@code png:compression-filter} của ImageMagick). */
+    private final int code;
+
+    PngFilter(int code) {
+        this.code = code;
+    }
+
+    /** @return Mã bộ lọc, dùng cả cho byte loại bộ lọc của PNG và cho ImageMagick. */
+    public int code() {
+        return code;
+    }
+}
@@ -0,0 +1,33 @@
+package com.photobooth.processing;
+
+/**
+ * Các "động cơ" (engine) có thể dùng để dựng ảnh kết quả.
+ * Người dùng có thể chọn engine cho từng lần xuất ảnh.
+ */
+public enum RenderEngine {
+    /** Gọi tiến trình ImageMagick ('magick') bên ngoài cho từng bước xử lý. */
+    IMAGEMAGICK("ImageMagick"),
+    /** Gọi ImageMagick một lần duy nhất: xử lý từng ảnh con trong ngoặc và ghép ngay, không tạo tệp tạm. */
+    IMAGEMAGICK_SINGLE_COMMAND("ImageMagick (single command)"),
+    /** Xử lý hoàn toàn trong bộ nhớ bằng Java (ImageIO + Java2D), không cần ImageMagick. */
+    JAVA("Java (in-process)"),
+    /** Như {@link #JAVA} nhưng ghép và ghi ảnh theo từng dải ngang, cho ảnh khung khổ lớn với bộ nhớ giới hạn. */
+    JAVA_BANDED("Java (banded, low memory)");
+
+    /** Tên hiển thị trên giao diện. */
+    private final String displayName;
+
+    RenderEngine(String displayName) {
+        this.displayName = displayName;
+    }
+
+    /** @return true nếu engine này cần tiến trình 'magick' trong PATH. */
+    public boolean usesImageMagick() {
+        return this == IMAGEMAGICK || this == IMAGEMAGICK_SINGLE_COMMAND;
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
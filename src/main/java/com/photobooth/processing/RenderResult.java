@@ -0,0 +1,15 @@
+package com.photobooth.processing;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Kết quả của một lần dựng ảnh, kèm theo số liệu thời gian để theo dõi hiệu năng.
+ *
+ * @param outputFile    Tệp ảnh kết quả.
+ * @param slotTimings   Thời gian xử lý trước của từng ô ảnh.
+ * @param totalDuration Tổng thời gian của cả lần dựng ảnh.
+ */
+public record RenderResult(File outputFile, List<SlotTiming> slotTimings, Duration totalDuration) {
+}
@@ -0,0 +1,149 @@
+package com.photobooth.processing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tiện ích chạy song song các tác vụ xử lý ô ảnh trên một pool luồng giới hạn.
+ * Tác vụ thất bại đầu tiên sẽ hủy tất cả các tác vụ anh em còn lại.
+ */
+final class SlotTaskRunner {
+
+    /**
+     * Bọc một tác vụ để biết nó đã bắt đầu chạy hay chưa và chờ được nó kết thúc. {@code Future.get()} của tác vụ đã
+     * bị hủy trả về ngay, dù luồng của tác vụ vẫn đang chạy, nên không dùng được để chờ.
+     */
+    private static final class Tracked<T> implements Callable<T> {
+        private final Callable<T> task;
+        /** Được giành bởi luồng chạy tác vụ (khi bắt đầu) hoặc bởi nơi hủy (nếu tác vụ chưa bắt đầu). */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        Tracked(Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (!claimed.compareAndSet(false, true)) {
+                throw new CancellationException(); // Đã bị hủy trước khi bắt đầu
+            }
+            try {
+                return task.call();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /** Chờ tác vụ kết thúc nếu nó đã bắt đầu; tác vụ chưa bắt đầu sẽ không bao giờ chạy. Không bị ngắt giữa chừng. */
+        void awaitIfStarted() {
+            if (claimed.compareAndSet(false, true)) {
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private SlotTaskRunner() {
+    }
+
+    /**
+     * Chạy tất cả tác vụ và chờ cho đến khi hoàn tất (join) trước khi trả về. Khi có tác vụ thất bại (hoặc luồng gọi
+     * bị ngắt), các tác vụ còn lại bị hủy và phương thức chỉ trả về sau khi những tác vụ đã bắt đầu thực sự kết thúc,
+     * để nơi gọi có thể dọn tệp tạm mà không còn tác vụ nào đang ghi vào.
+     *
+     * @param pool      Pool luồng dùng để chạy tác vụ.
+     * @param tasks     Danh sách tác vụ; kết quả trả về giữ đúng thứ tự này.
+     * @param onFailure Hành động dọn dẹp khi có tác vụ thất bại (ví dụ: hủy các tiến trình con đang chạy), có thể null.
+     * @return Kết quả của từng tác vụ theo đúng thứ tự đầu vào.
+     * @throws IOException          Lỗi của tác vụ thất bại đầu tiên.
+     * @throws InterruptedException Nếu luồng gọi bị ngắt trong khi chờ.
+     */
+    static <T> List<T> invokeAll(ExecutorService pool, List<Callable<T>> tasks, Runnable onFailure) throws IOException, InterruptedException {
+        CompletionService<T> completionService = new ExecutorCompletionService<>(pool);
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        List<Tracked<T>> tracked = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                Tracked<T> wrapped = new Tracked<>(task);
+                tracked.add(wrapped);
+                futures.add(completionService.submit(wrapped));
+            }
+            // Nhận kết quả theo thứ tự hoàn thành để phát hiện lỗi sớm nhất có thể
+            for (int i = 0; i < tasks.size(); i++) {
+                Future<T> done = completionService.take();
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    cancelAll(futures, tracked, onFailure);
+                    throw unwrap(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures, tracked, onFailure);
+            throw e;
+        }
+
+        List<T> results = new ArrayList<>(futures.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // Không xảy ra: mọi tác vụ đã được kiểm tra thành công ở vòng lặp trên
+                throw unwrap(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Hủy tất cả tác vụ chưa xong, chạy hành động dọn dẹp rồi chờ các tác vụ đã bắt đầu kết thúc. Cờ ngắt được đặt
+     * (cancel) trước khi dọn dẹp, nên tác vụ nào khởi chạy tiến trình sau lần dọn dẹp sẽ thấy cờ và tự dừng.
+     */
+    private static void cancelAll(List<? extends Future<?>> futures, List<? extends Tracked<?>> tracked, Runnable onFailure) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        if (onFailure != null) {
+            onFailure.run();
+        }
+        for (Tracked<?> task : tracked) {
+            task.awaitIfStarted();
+        }
+    }
+
+    /** Chuyển nguyên nhân lỗi của tác vụ về IOException (hoặc ném lại nếu là lỗi runtime). */
+    private static IOException unwrap(Throwable cause) {
+        if (cause instanceof IOException io) {
+            return io;
+        }
+        if (cause instanceof RuntimeException re) {
+            throw re;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        return new IOException(cause);
+    }
+}
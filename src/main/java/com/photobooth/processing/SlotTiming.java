@@ -0,0 +1,14 @@
+package com.photobooth.processing;
+
+import java.io.File;
+import java.time.Duration;
+
+/**
+ * Thời gian xử lý trước (pre-process) của một ô ảnh trong một lần dựng ảnh.
+ *
+ * @param slotIndex Chỉ số của ô ảnh (theo thứ tự danh sách vị trí).
+ * @param image     Tệp ảnh nguồn của ô.
+ * @param duration  Thời gian xử lý ô này.
+ */
+public record SlotTiming(int slotIndex, File image, Duration duration) {
+}
@@ -0,0 +1,329 @@
+package com.photobooth.processing;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Bộ đọc PNG theo từng hàng: giải nén và bỏ lọc (unfilter) tuần tự, chỉ giữ hai hàng trong bộ nhớ.
+ * <p>
+ * Dùng để đọc ảnh khung khổ lớn (banner, poster 300 dpi) theo từng dải khi dựng ảnh banded,
+ * thay vì giải mã toàn bộ ảnh khung một lần. Hỗ trợ các PNG 8-bit không xen kẽ:
+ * xám, xám + alpha, RGB, RGBA và bảng màu (kèm tRNS). Các trường hợp khác trả về false ở {@link #isSupported(File)}.
+ */
+public final class StreamingPngReader implements Closeable {
+
+    /** Mã kiểu chunk "IHDR" dưới dạng số nguyên big-endian. */
+    private static final int IHDR = 0x49484452;
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bytesPerPixel;
+    /** Bảng màu ARGB cho ảnh kiểu bảng màu (colorType 3). */
+    private int[] palette;
+    /** Màu trong suốt (tRNS) cho ảnh xám / RGB, hoặc -1 nếu không có. */
+    private int transparentKey = -1;
+
+    private byte[] previousRow;
+    private byte[] currentRow;
+    /** Số byte IDAT còn lại trong chunk hiện tại. */
+    private int idatRemaining;
+    private final byte[] inputBuffer = new byte[64 * 1024];
+    private boolean idatFinished;
+    private int rowsRead;
+
+    /**
+     * Mở tệp PNG và đọc các chunk header (tới chunk IDAT đầu tiên).
+     *
+     * @param file Tệp PNG.
+     * @throws IOException Nếu tệp không phải PNG hoặc có định dạng không được hỗ trợ.
+     */
+    public StreamingPngReader(File file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 64 * 1024));
+        try {
+            byte[] signature = new byte[8];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, StreamingPngWriter.SIGNATURE)) {
+                throw new IOException("Not a PNG file: " + file.getAbsolutePath());
+            }
+            int length = in.readInt();
+            if (!"IHDR".equals(readType()) || length != 13) {
+                throw new IOException("Invalid PNG header: " + file.getAbsolutePath());
+            }
+            width = in.readInt();
+            height = in.readInt();
+            int bitDepth = in.readUnsignedByte();
+            colorType = in.readUnsignedByte();
+            in.readUnsignedByte(); // nén
+            in.readUnsignedByte(); // bộ lọc
+            int interlace = in.readUnsignedByte();
+            in.readInt(); // CRC
+            if (bitDepth != 8 || interlace != 0) {
+                throw new IOException("Unsupported PNG layout (bit depth " + bitDepth + ", interlace " + interlace + ")");
+            }
+            bytesPerPixel = switch (colorType) {
+                case 0, 3 -> 1;
+                case 4 -> 2;
+                case 2 -> 3;
+                case 6 -> 4;
+                default -> throw new IOException("Unsupported PNG color type: " + colorType);
+            };
+            previousRow = new byte[width * bytesPerPixel];
+            currentRow = new byte[width * bytesPerPixel];
+            readUntilImageData();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Kiểm tra nhanh (chỉ đọc header) xem tệp có thể đọc theo từng hàng hay không.
+     *
+     * @param file Tệp cần kiểm tra.
+     * @return true nếu là PNG 8-bit không xen kẽ với kiểu màu được hỗ trợ.
+     */
+    public static boolean isSupported(File file) {
+        try (DataInputStream probe = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 64))) {
+            byte[] signature = new byte[8];
+            probe.readFully(signature);
+            if (!Arrays.equals(signature, StreamingPngWriter.SIGNATURE) || probe.readInt() != 13) {
+                return false;
+            }
+            probe.skipBytes(4 + 8); // "IHDR", chiều rộng, chiều cao
+            int bitDepth = probe.readUnsignedByte();
+            int colorType = probe.readUnsignedByte();
+            probe.skipBytes(2);
+            int interlace = probe.readUnsignedByte();
+            return bitDepth == 8 && interlace == 0 && colorType != 1 && colorType != 5 && colorType <= 6;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Đọc kích thước ảnh từ chunk IHDR (33 byte đầu tệp), không giải mã điểm ảnh và không cần ImageIO.
+     *
+     * @param file Tệp cần đọc.
+     * @return Kích thước ảnh, hoặc null nếu tệp không phải PNG.
+     * @throws IOException Nếu không đọc được tệp.
+     */
+    static Dimension readSize(File file) throws IOException {
+        try (DataInputStream probe = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 64))) {
+            byte[] signature = new byte[8];
+            probe.readFully(signature);
+            if (!Arrays.equals(signature, StreamingPngWriter.SIGNATURE) || probe.readInt() != 13 || probe.readInt() != IHDR) {
+                return null;
+            }
+            int width = probe.readInt();
+            int height = probe.readInt();
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Invalid PNG size " + width + "x" + height + ": " + file.getAbsolutePath());
+            }
+            return new Dimension(width, height);
+        } catch (EOFException e) {
+            return null; // Tệp quá ngắn để là PNG
+        }
+    }
+
+    /** @return Chiều rộng ảnh. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** @return Chiều cao ảnh. */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Đọc các hàng tiếp theo dưới dạng ARGB (không nhân trước alpha).
+     *
+     * @param argb   Mảng đích, mỗi hàng dài đúng bằng chiều rộng ảnh.
+     * @param offset Vị trí bắt đầu trong mảng.
+     * @param rows   Số hàng cần đọc.
+     * @throws IOException Nếu dữ liệu hỏng hoặc đọc quá số hàng của ảnh.
+     */
+    public void readRows(int[] argb, int offset, int rows) throws IOException {
+        if (rowsRead + rows > height) {
+            throw new IOException("Too many rows requested: " + (rowsRead + rows) + " > " + height);
+        }
+        for (int r = 0; r < rows; r++) {
+            int filterType = inflateByte();
+            inflateFully(currentRow);
+            unfilter(filterType, currentRow, previousRow, bytesPerPixel);
+            convertRow(currentRow, argb, offset + r * width);
+
+            byte[] swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+            rowsRead++;
+        }
+    }
+
+    /** Bỏ lọc một hàng theo 5 bộ lọc chuẩn của PNG. */
+    static void unfilter(int filterType, byte[] row, byte[] previous, int bpp) throws IOException {
+        switch (filterType) {
+            case 0 -> { }
+            case 1 -> {
+                for (int i = bpp; i < row.length; i++) row[i] += row[i - bpp];
+            }
+            case 2 -> {
+                for (int i = 0; i < row.length; i++) row[i] += previous[i];
+            }
+            case 3 -> {
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((a + (previous[i] & 0xFF)) >>> 1);
+                }
+            }
+            case 4 -> {
+                for (int i = 0; i < row.length; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) StreamingPngWriter.paethPredictor(a, previous[i] & 0xFF, c);
+                }
+            }
+            default -> throw new IOException("Invalid PNG filter type: " + filterType);
+        }
+    }
+
+    private void convertRow(byte[] row, int[] argb, int offset) {
+        for (int x = 0; x < width; x++) {
+            int p;
+            switch (colorType) {
+                case 0 -> {
+                    int v = row[x] & 0xFF;
+                    p = (v == transparentKey ? 0 : 0xFF000000) | v << 16 | v << 8 | v;
+                }
+                case 3 -> p = palette[row[x] & 0xFF];
+                case 4 -> {
+                    int v = row[2 * x] & 0xFF;
+                    p = (row[2 * x + 1] & 0xFF) << 24 | v << 16 | v << 8 | v;
+                }
+                case 2 -> {
+                    int rgb = (row[3 * x] & 0xFF) << 16 | (row[3 * x + 1] & 0xFF) << 8 | (row[3 * x + 2] & 0xFF);
+                    p = (rgb == transparentKey ? 0 : 0xFF000000) | rgb;
+                }
+                default -> p = (row[4 * x + 3] & 0xFF) << 24 | (row[4 * x] & 0xFF) << 16 | (row[4 * x + 1] & 0xFF) << 8 | (row[4 * x + 2] & 0xFF);
+            }
+            argb[offset + x] = p;
+        }
+    }
+
+    /** Đọc các chunk phụ (PLTE, tRNS...) cho tới khi gặp chunk IDAT đầu tiên. */
+    private void readUntilImageData() throws IOException {
+        while (true) {
+            int length = in.readInt();
+            String type = readType();
+            switch (type) {
+                case "IDAT" -> {
+                    if (colorType == 3 && palette == null) {
+                        throw new IOException("Palette PNG without PLTE chunk");
+                    }
+                    idatRemaining = length;
+                    return;
+                }
+                case "PLTE" -> {
+                    palette = new int[256];
+                    for (int i = 0; i < length / 3; i++) {
+                        palette[i] = 0xFF000000 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+                    }
+                    in.skipBytes(length % 3);
+                }
+                case "tRNS" -> {
+                    if (colorType == 3 && palette != null) {
+                        for (int i = 0; i < length; i++) {
+                            int alpha = in.readUnsignedByte();
+                            if (i < 256) palette[i] = (palette[i] & 0x00FFFFFF) | alpha << 24;
+                        }
+                    } else if (colorType == 0 && length >= 2) {
+                        transparentKey = in.readUnsignedShort() & 0xFF;
+                        in.skipBytes(length - 2);
+                    } else if (colorType == 2 && length >= 6) {
+                        transparentKey = (in.readUnsignedShort() & 0xFF) << 16 | (in.readUnsignedShort() & 0xFF) << 8 | (in.readUnsignedShort() & 0xFF);
+                        in.skipBytes(length - 6);
+                    } else {
+                        in.skipBytes(length);
+                    }
+                }
+                case "IEND" -> throw new IOException("PNG has no image data");
+                default -> in.skipBytes(length);
+            }
+            in.readInt(); // CRC
+        }
+    }
+
+    private String readType() throws IOException {
+        byte[] type = new byte[4];
+        in.readFully(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    private int inflateByte() throws IOException {
+        byte[] one = new byte[1];
+        inflateFully(one);
+        return one[0] & 0xFF;
+    }
+
+    /** Giải nén đúng {@code target.length} byte, nạp thêm dữ liệu từ các chunk IDAT kế tiếp khi cần. */
+    private void inflateFully(byte[] target) throws IOException {
+        int filled = 0;
+        try {
+            while (filled < target.length) {
+                int n = inflater.inflate(target, filled, target.length - filled);
+                filled += n;
+                if (n == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new EOFException("PNG image data ended early");
+                    }
+                    if (inflater.needsInput()) {
+                        feedInflater();
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PNG image data", e);
+        }
+    }
+
+    private void feedInflater() throws IOException {
+        while (idatRemaining == 0) {
+            if (idatFinished) {
+                throw new EOFException("PNG image data ended early");
+            }
+            in.readInt(); // CRC của chunk IDAT trước
+            int length = in.readInt();
+            String type = readType();
+            if (!"IDAT".equals(type)) {
+                idatFinished = true;
+                throw new EOFException("PNG image data ended early");
+            }
+            idatRemaining = length;
+        }
+        int n = in.read(inputBuffer, 0, Math.min(inputBuffer.length, idatRemaining));
+        if (n < 0) {
+            throw new EOFException("Unexpected end of PNG file");
+        }
+        idatRemaining -= n;
+        inflater.setInput(inputBuffer, 0, n);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,282 @@
+package com.photobooth.processing;
+
+import com.photobooth.diagnostics.StageSpan;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Bộ ghi PNG (RGBA 8-bit) nhận dữ liệu theo từng hàng, để ảnh lớn có thể được ghi ra ngay khi từng dải được dựng xong
+ * mà không cần giữ toàn bộ ảnh trong bộ nhớ.
+ * <p>
+ * Mỗi hàng được lọc (filter) theo kiểu thích ứng của PNG: thử cả 5 bộ lọc và chọn bộ lọc có tổng trị tuyệt đối nhỏ nhất,
+ * sau đó được nén liên tục và chia thành các chunk IDAT.
+ */
+public class StreamingPngWriter implements Closeable {
+
+    /** Chữ ký bắt đầu của mọi tệp PNG. */
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    /** Kích thước tối đa của một chunk IDAT. */
+    private static final int IDAT_SIZE = 64 * 1024;
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final TimedOutputStream fileOut;
+    private final DataOutputStream out;
+    private final IdatOutputStream idat;
+    private final DeflaterOutputStream deflaterStream;
+    private final Deflater deflater;
+    private final PngFilter filter;
+
+    /** Hàng trước đó (đã chuyển sang RGBA), cần cho bộ lọc Up và Paeth. */
+    private byte[] previousRow;
+    private byte[] currentRow;
+    /** Bộ đệm cho các phiên bản đã lọc của hàng hiện tại (mỗi bộ lọc một hàng, kèm byte loại bộ lọc). */
+    private final byte[][] filtered = new byte[5][];
+    private int rowsWritten;
+
+    /**
+     * Mở một tệp PNG mới để ghi.
+     *
+     * @param file             Tệp đích.
+     * @param width            Chiều rộng ảnh.
+     * @param height           Chiều cao ảnh.
+     * @param compressionLevel Mức nén deflate (0..9).
+     * @param filter           Chiến lược lọc hàng.
+     * @throws IOException Nếu không mở được tệp.
+     */
+    public StreamingPngWriter(File file, int width, int height, int compressionLevel, PngFilter filter) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid image size: " + width + "x" + height);
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.filter = filter;
+        this.fileOut = new TimedOutputStream(Files.newOutputStream(file.toPath()));
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, IDAT_SIZE + 12));
+        this.previousRow = new byte[width * 4];
+        this.currentRow = new byte[width * 4];
+        for (int i = 0; i < filtered.length; i++) {
+            filtered[i] = new byte[width * 4 + 1];
+            filtered[i][0] = (byte) i;
+        }
+
+        out.write(SIGNATURE);
+        writeHeader(out, width, height);
+
+        this.deflater = new Deflater(compressionLevel);
+        this.idat = new IdatOutputStream(out);
+        this.deflaterStream = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+    }
+
+    /**
+     * Ghi các hàng tiếp theo của ảnh.
+     *
+     * @param argb   Mảng điểm ảnh ARGB (không nhân trước alpha), mỗi hàng dài đúng bằng chiều rộng ảnh.
+     * @param offset Vị trí bắt đầu trong mảng.
+     * @param rows   Số hàng cần ghi.
+     * @throws IOException Nếu ghi lỗi hoặc ghi quá số hàng của ảnh.
+     */
+    public void writeRows(int[] argb, int offset, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IOException("Too many rows: " + (rowsWritten + rows) + " > " + height);
+        }
+        for (int r = 0; r < rows; r++) {
+            toRgba(argb, offset + r * width, currentRow);
+            byte[] best = filterRow(currentRow, previousRow, filtered, filter);
+            deflaterStream.write(best, 0, best.length);
+
+            byte[] swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+            rowsWritten++;
+        }
+    }
+
+    /**
+     * Kết thúc luồng nén, ghi chunk IEND và đóng tệp.
+     *
+     * @throws IOException Nếu chưa ghi đủ số hàng hoặc ghi lỗi.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+            }
+            deflaterStream.finish();
+            idat.flush(); // Đẩy phần dữ liệu nén còn lại thành chunk IDAT cuối cùng
+            writeChunk(out, "IEND", new byte[0], 0, 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+        StageSpan.recordFileWrite(file, fileOut.elapsedNanos());
+    }
+
+    /** Chuyển một hàng ARGB sang thứ tự byte RGBA của PNG. */
+    static void toRgba(int[] argb, int offset, byte[] row) {
+        for (int x = offset, j = 0; j < row.length; x++, j += 4) {
+            int p = argb[x];
+            row[j] = (byte) (p >>> 16);
+            row[j + 1] = (byte) (p >>> 8);
+            row[j + 2] = (byte) p;
+            row[j + 3] = (byte) (p >>> 24);
+        }
+    }
+
+    /**
+     * Lọc một hàng RGBA theo chiến lược đã chọn. Với {@link PngFilter#ADAPTIVE}, thử cả 5 bộ lọc
+     * và trả về phiên bản có tổng trị tuyệt đối nhỏ nhất.
+     *
+     * @param row      Hàng hiện tại.
+     * @param previous Hàng trước đó (toàn số 0 với hàng đầu tiên).
+     * @param filtered Bộ đệm 5 hàng, phần tử đầu tiên của mỗi hàng là loại bộ lọc.
+     * @param filter   Chiến lược lọc.
+     * @return Hàng đã lọc được chọn (kèm byte loại bộ lọc ở đầu).
+     */
+    static byte[] filterRow(byte[] row, byte[] previous, byte[][] filtered, PngFilter filter) {
+        final int bpp = 4;
+        if (filter != PngFilter.ADAPTIVE) {
+            byte[] out = filtered[filter.code()];
+            for (int i = 0; i < row.length; i++) {
+                int x = row[i] & 0xFF;
+                int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                int b = previous[i] & 0xFF;
+                int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                out[i + 1] = (byte) switch (filter) {
+                    case NONE -> x;
+                    case SUB -> x - a;
+                    case UP -> x - b;
+                    case AVERAGE -> x - ((a + b) >>> 1);
+                    default -> x - paethPredictor(a, b, c);
+                };
+            }
+            return out;
+        }
+        byte[] none = filtered[0], sub = filtered[1], up = filtered[2], avg = filtered[3], paeth = filtered[4];
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAvg = 0, sumPaeth = 0;
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+
+            byte vNone = (byte) x;
+            byte vSub = (byte) (x - a);
+            byte vUp = (byte) (x - b);
+            byte vAvg = (byte) (x - ((a + b) >>> 1));
+            byte vPaeth = (byte) (x - paethPredictor(a, b, c));
+            none[i + 1] = vNone;
+            sub[i + 1] = vSub;
+            up[i + 1] = vUp;
+            avg[i + 1] = vAvg;
+            paeth[i + 1] = vPaeth;
+            // Heuristic chuẩn của libpng: coi byte đã lọc là số có dấu và cộng trị tuyệt đối
+            sumNone += Math.abs(vNone);
+            sumSub += Math.abs(vSub);
+            sumUp += Math.abs(vUp);
+            sumAvg += Math.abs(vAvg);
+            sumPaeth += Math.abs(vPaeth);
+        }
+        byte[] best = none;
+        long bestSum = sumNone;
+        if (sumSub < bestSum) { best = sub; bestSum = sumSub; }
+        if (sumUp < bestSum) { best = up; bestSum = sumUp; }
+        if (sumAvg < bestSum) { best = avg; bestSum = sumAvg; }
+        if (sumPaeth < bestSum) { best = paeth; }
+        return best;
+    }
+
+    static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    /** Ghi chunk IHDR cho ảnh RGBA 8-bit, không xen kẽ (non-interlaced). */
+    static void writeHeader(DataOutputStream out, int width, int height) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8);  // độ sâu bit
+        data.writeByte(6);  // kiểu màu: RGBA
+        data.writeByte(0);  // nén: deflate
+        data.writeByte(0);  // bộ lọc: chuẩn
+        data.writeByte(0);  // không xen kẽ
+        writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+    }
+
+    /** Ghi một chunk PNG hoàn chỉnh (độ dài, loại, dữ liệu, CRC). */
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Luồng trung gian gom dữ liệu đã nén thành các chunk IDAT có kích thước tối đa {@link #IDAT_SIZE}.
+     */
+    private static final class IdatOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[IDAT_SIZE];
+        private int count;
+
+        IdatOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                flushChunk();
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            writeChunk(out, "IDAT", buffer, 0, count);
+            count = 0;
+        }
+    }
+}
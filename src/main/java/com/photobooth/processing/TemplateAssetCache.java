@@ -0,0 +1,291 @@
+package com.photobooth.processing;
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Dịch vụ tải ảnh khung (template) dùng chung cho vùng làm việc trên giao diện và cho engine dựng ảnh.
+ * <p>
+ * Mỗi tệp khung chỉ được giải mã một lần, trên một luồng nền riêng (không chặn luồng giao diện) và có báo tiến độ.
+ * Bản giải mã ({@link BufferedImage} kiểu {@code TYPE_INT_ARGB_PRE}) được giữ trong cache và dùng chung: giao diện
+ * bọc trực tiếp mảng điểm ảnh của nó để hiển thị, engine Java vẽ nó lên ảnh kết quả, không ai phải đọc lại tệp.
+ * Cùng với bản giải mã, cache giữ {@link TemplateCoverage} của khung để engine bỏ qua phần ô ảnh bị khung che kín.
+ * Mỗi lần truy cập đều so sánh mtime và kích thước tệp; khi tệp khung bị sửa, bản cũ bị loại bỏ, các listener
+ * được báo và tệp được giải mã lại.
+ * Số khung giữ cùng lúc đọc từ system property {@code photobooth.templateCache.entries} (mặc định 2).
+ */
+public final class TemplateAssetCache {
+
+    private static final TemplateAssetCache DEFAULT = new TemplateAssetCache(Integer.getInteger("photobooth.templateCache.entries", 2));
+
+    /** Số hàng đọc mỗi lần khi giải mã theo hàng, cũng là bước báo tiến độ. */
+    private static final int ROWS_PER_STEP = 64;
+
+    /**
+     * Ảnh khung đã giải mã.
+     *
+     * @param file         Tệp khung.
+     * @param lastModified mtime của tệp tại thời điểm giải mã.
+     * @param length       Kích thước tệp tại thời điểm giải mã.
+     * @param image        Ảnh ARGB nhân trước alpha; dùng chung, không được sửa.
+     * @param coverage     Bản đồ độ phủ alpha của khung, tính một lần khi giải mã.
+     */
+    public record TemplateAsset(File file, long lastModified, long length, BufferedImage image, TemplateCoverage coverage) {
+
+        public int width() {
+            return image.getWidth();
+        }
+
+        public int height() {
+            return image.getHeight();
+        }
+
+        /**
+         * Mảng điểm ảnh ARGB nhân trước alpha (width * height phần tử, hàng nối tiếp nhau), để giao diện hiển thị
+         * mà không phải sao chép. Chỉ được đọc.
+         */
+        public int[] pixels() {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        /** @return true nếu tệp trên đĩa vẫn là phiên bản đã được giải mã. */
+        public boolean isCurrent() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /** Một lần giải mã (đang chạy hoặc đã xong) cho một phiên bản của tệp, kèm những nơi đang chờ tiến độ. */
+    private record Entry(long lastModified, long length, CompletableFuture<TemplateAsset> future, List<DoubleConsumer> progressListeners) {
+
+        boolean matches(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+
+        void progress(double fraction) {
+            for (DoubleConsumer listener : progressListeners) {
+                listener.accept(fraction);
+            }
+        }
+    }
+
+    private final int maxEntries;
+    /** Các khung theo đường dẫn tuyệt đối, thứ tự truy cập (LRU); được bảo vệ bởi khóa của chính map. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(4, 0.75f, true);
+    private final List<Consumer<File>> invalidationListeners = new CopyOnWriteArrayList<>();
+    /** Một luồng giải mã nền: các khung được giải mã lần lượt, không tranh CPU với nhau. */
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "template-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxEntries Số khung đã giải mã giữ trong bộ nhớ cùng lúc (tối thiểu 1).
+     */
+    public TemplateAssetCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /** @return Cache mặc định dùng chung cho toàn ứng dụng. */
+    public static TemplateAssetCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Đọc kích thước ảnh khung mà không giải mã điểm ảnh: với PNG chỉ đọc chunk IHDR ở đầu tệp,
+     * với định dạng khác dùng header qua ImageIO.
+     *
+     * @param file Tệp khung.
+     * @return Kích thước ảnh.
+     * @throws IOException Nếu không đọc được tệp hoặc định dạng không được hỗ trợ.
+     */
+    public static Dimension probe(File file) throws IOException {
+        Dimension size = StreamingPngReader.readSize(file);
+        return size != null ? size : ImageDecoder.readDimensions(file);
+    }
+
+    /**
+     * Đăng ký listener được gọi khi phát hiện một tệp khung đã được giải mã trước đó bị thay đổi trên đĩa.
+     * Listener chạy trên luồng phát hiện ra thay đổi (có thể là luồng dựng ảnh).
+     */
+    public void addInvalidationListener(Consumer<File> listener) {
+        invalidationListeners.add(listener);
+    }
+
+    /**
+     * Tải ảnh khung: trả về ngay bản trong cache nếu tệp chưa đổi, dùng chung lần giải mã đang chạy nếu có,
+     * hoặc bắt đầu giải mã trên luồng nền.
+     *
+     * @param file     Tệp khung.
+     * @param progress Nhận tiến độ từ 0 đến 1 trên luồng giải mã (có thể null).
+     * @return Future hoàn tất với ảnh khung, hoặc thất bại với {@link IOException} làm nguyên nhân.
+     */
+    public CompletableFuture<TemplateAsset> load(File file, DoubleConsumer progress) {
+        String path = file.getAbsolutePath();
+        boolean changed = false;
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+            if (entry != null && !entry.matches(file)) {
+                entries.remove(path);
+                changed = entry.future().isDone() && !entry.future().isCompletedExceptionally();
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(file.lastModified(), file.length(), new CompletableFuture<>(), new CopyOnWriteArrayList<>());
+                if (progress != null) {
+                    entry.progressListeners().add(progress);
+                }
+                entries.put(path, entry);
+                evictOverflow();
+                Entry started = entry;
+                decoder.execute(() -> decodeInto(file, started));
+            } else if (progress != null) {
+                if (entry.future().isDone()) {
+                    progress.accept(1.0);
+                } else {
+                    entry.progressListeners().add(progress);
+                }
+            }
+        }
+        if (changed) {
+            System.out.println("Template changed on disk, reloading: " + file.getName());
+            for (Consumer<File> listener : invalidationListeners) {
+                listener.accept(file);
+            }
+        }
+        return entry.future();
+    }
+
+    /**
+     * Lấy ảnh khung, chờ giải mã nếu cần (dùng trên luồng dựng ảnh, không dùng trên luồng giao diện).
+     *
+     * @param file Tệp khung.
+     * @return Ảnh khung đã giải mã.
+     * @throws IOException          Nếu không đọc hoặc giải mã được tệp.
+     * @throws InterruptedException Nếu luồng bị ngắt trong khi chờ.
+     */
+    public TemplateAsset get(File file) throws IOException, InterruptedException {
+        try {
+            return load(file, null).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Could not load template " + file.getName() + ": " + cause.getMessage(), cause);
+        } catch (CancellationException e) {
+            throw new IOException("Template load was cancelled: " + file.getName());
+        }
+    }
+
+    /**
+     * Bỏ bản giải mã của một tệp khỏi cache (lần truy cập sau sẽ giải mã lại).
+     */
+    public void invalidate(File file) {
+        synchronized (entries) {
+            entries.remove(file.getAbsolutePath());
+        }
+    }
+
+    /** Loại các khung ít dùng nhất khi vượt quá số lượng cho phép (gọi khi đang giữ khóa). */
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void decodeInto(File file, Entry entry) {
+        try {
+            long start = System.nanoTime();
+            BufferedImage image = decode(file, entry::progress);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            TemplateCoverage coverage = TemplateCoverage.compute(pixels, image.getWidth(), image.getHeight(), TemplateCoverage.DEFAULT_CELL_SIZE);
+            entry.progress(1.0);
+            System.out.println("Decoded template " + file.getName() + " (" + image.getWidth() + "x" + image.getHeight() + ") in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms, " + Math.round(coverage.opaqueFraction() * 100) + "% fully opaque");
+            entry.future().complete(new TemplateAsset(file, entry.lastModified(), entry.length(), image, coverage));
+        } catch (Throwable e) {
+            // Mọi lỗi (kể cả Error lạ từ plugin ImageIO) đều phải hoàn tất future, nếu không các luồng dựng ảnh đang chờ
+            // get() sẽ chờ mãi. Lần giải mã lỗi không được giữ lại trong cache, để lần sau (ví dụ sau khi sửa tệp) thử lại
+            synchronized (entries) {
+                entries.remove(file.getAbsolutePath(), entry);
+            }
+            entry.future().completeExceptionally(e instanceof UncheckedIOException u ? u.getCause() : e);
+        }
+    }
+
+    /**
+     * Giải mã tệp khung thành ảnh ARGB nhân trước alpha. PNG 8-bit được đọc theo từng nhóm hàng (có tiến độ,
+     * không cần bản trung gian); các định dạng khác được giải mã qua ImageIO rồi chuyển kiểu.
+     */
+    static BufferedImage decode(File file, DoubleConsumer progress) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Template file not found: " + file.getAbsolutePath());
+        }
+        if (StreamingPngReader.isSupported(file)) {
+            try (StreamingPngReader reader = new StreamingPngReader(file)) {
+                int width = reader.getWidth();
+                int height = reader.getHeight();
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+                int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                for (int y = 0; y < height; y += ROWS_PER_STEP) {
+                    int rows = Math.min(ROWS_PER_STEP, height - y);
+                    int offset = y * width;
+                    reader.readRows(pixels, offset, rows);
+                    premultiply(pixels, offset, rows * width);
+                    progress.accept((double) (y + rows) / height);
+                }
+                return image;
+            }
+        }
+        BufferedImage decoded = JavaImageRenderer.readImage(file);
+        progress.accept(0.9);
+        BufferedImage image = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(decoded, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /** Chuyển ARGB thường sang ARGB nhân trước alpha (tại chỗ). */
+    private static void premultiply(int[] argb, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int p = argb[i];
+            int a = p >>> 24;
+            if (a == 255) continue;
+            if (a == 0) {
+                argb[i] = 0;
+                continue;
+            }
+            int r = ((p >> 16) & 0xFF) * a + 127;
+            int g = ((p >> 8) & 0xFF) * a + 127;
+            int b = (p & 0xFF) * a + 127;
+            argb[i] = (a << 24) | ((r + (r >> 8)) >> 8) << 16 | ((g + (g >> 8)) >> 8) << 8 | ((b + (b >> 8)) >> 8);
+        }
+    }
+}
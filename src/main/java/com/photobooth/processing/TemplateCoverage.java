@@ -0,0 +1,200 @@
+package com.photobooth.processing;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bản đồ độ phủ alpha của ảnh khung, chia thành các ô vuông {@code cellSize} x {@code cellSize} điểm ảnh.
+ * <p>
+ * Ảnh khung được ghép lên trên cùng, nên mọi điểm ảnh của ô ảnh nằm dưới phần khung đục hoàn toàn (alpha = 255)
+ * đều bị che mất. Bản đồ cho biết ô nào của khung đục hoàn toàn, để engine bỏ qua những ô ảnh bị che kín
+ * và chỉ giải mã, chỉnh màu, ghép phần thực sự nhìn thấy. Bản đồ được tính một lần khi giải mã khung
+ * và lưu cùng bản giải mã trong {@link TemplateAssetCache}.
+ * Kích thước ô đọc từ system property {@code photobooth.coverage.cell} (mặc định 32).
+ */
+public final class TemplateCoverage {
+
+    /** Kích thước ô mặc định của bản đồ. */
+    static final int DEFAULT_CELL_SIZE = Math.max(1, Integer.getInteger("photobooth.coverage.cell", 32));
+
+    private static final byte TRANSPARENT = 0;
+    private static final byte PARTIAL = 1;
+    private static final byte OPAQUE = 2;
+
+    private final int width;
+    private final int height;
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+    /** Trạng thái từng ô, theo hàng. */
+    private final byte[] cells;
+    private final int opaqueCells;
+
+    private TemplateCoverage(int width, int height, int cellSize, byte[] cells) {
+        this.width = width;
+        this.height = height;
+        this.cellSize = cellSize;
+        this.columns = (width + cellSize - 1) / cellSize;
+        this.rows = (height + cellSize - 1) / cellSize;
+        this.cells = cells;
+        int opaque = 0;
+        for (byte cell : cells) {
+            if (cell == OPAQUE) opaque++;
+        }
+        this.opaqueCells = opaque;
+    }
+
+    /**
+     * Tính bản đồ độ phủ từ mảng điểm ảnh ARGB của khung (thường hoặc nhân trước alpha; chỉ kênh alpha được xét).
+     *
+     * @param argb     Điểm ảnh của khung, width * height phần tử theo hàng.
+     * @param width    Chiều rộng khung.
+     * @param height   Chiều cao khung.
+     * @param cellSize Kích thước cạnh mỗi ô của bản đồ.
+     */
+    public static TemplateCoverage compute(int[] argb, int width, int height, int cellSize) {
+        int columns = (width + cellSize - 1) / cellSize;
+        int rows = (height + cellSize - 1) / cellSize;
+        // Đếm số điểm đục và số điểm trong suốt của mỗi ô trong một lượt quét theo hàng (truy cập bộ nhớ tuần tự)
+        int[] opaque = new int[columns * rows];
+        int[] clear = new int[columns * rows];
+        for (int y = 0; y < height; y++) {
+            int cellRow = (y / cellSize) * columns;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int a = argb[offset + x] >>> 24;
+                if (a == 255) {
+                    opaque[cellRow + x / cellSize]++;
+                } else if (a == 0) {
+                    clear[cellRow + x / cellSize]++;
+                }
+            }
+        }
+        byte[] cells = new byte[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            int cellHeight = Math.min(cellSize, height - row * cellSize);
+            for (int col = 0; col < columns; col++) {
+                int cellWidth = Math.min(cellSize, width - col * cellSize);
+                int area = cellWidth * cellHeight;
+                int i = row * columns + col;
+                cells[i] = opaque[i] == area ? OPAQUE : clear[i] == area ? TRANSPARENT : PARTIAL;
+            }
+        }
+        return new TemplateCoverage(width, height, cellSize, cells);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int cellSize() {
+        return cellSize;
+    }
+
+    /** @return Tỷ lệ diện tích khung đục hoàn toàn (theo số ô), từ 0 đến 1. */
+    public double opaqueFraction() {
+        return cells.length == 0 ? 0 : (double) opaqueCells / cells.length;
+    }
+
+    /**
+     * @return true nếu mọi điểm ảnh của {@code region} nằm dưới phần khung đục hoàn toàn hoặc ngoài khung
+     *         (tức là không điểm nào của vùng này còn nhìn thấy trên ảnh kết quả).
+     */
+    public boolean isHidden(Rectangle region) {
+        return visibleBounds(region) == null;
+    }
+
+    /**
+     * Hình chữ nhật nhỏ nhất bao mọi phần nhìn thấy của {@code region}: giao của vùng với khung,
+     * trừ đi các ô khung đục hoàn toàn.
+     *
+     * @param region Vùng trong tọa độ khung (ví dụ vị trí một ô ảnh).
+     * @return Vùng nhìn thấy (tọa độ khung), hoặc null nếu cả vùng bị che hoặc nằm ngoài khung.
+     */
+    public Rectangle visibleBounds(Rectangle region) {
+        Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty()) {
+            return null;
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        int firstRow = clipped.y / cellSize, lastRow = (clipped.y + clipped.height - 1) / cellSize;
+        int firstCol = clipped.x / cellSize, lastCol = (clipped.x + clipped.width - 1) / cellSize;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                if (cells[row * columns + col] != OPAQUE) {
+                    minX = Math.min(minX, col);
+                    maxX = Math.max(maxX, col);
+                    minY = Math.min(minY, row);
+                    maxY = Math.max(maxY, row);
+                }
+            }
+        }
+        if (minX == Integer.MAX_VALUE) {
+            return null;
+        }
+        Rectangle cellsBounds = new Rectangle(minX * cellSize, minY * cellSize, (maxX - minX + 1) * cellSize, (maxY - minY + 1) * cellSize);
+        return cellsBounds.intersection(clipped);
+    }
+
+    /**
+     * Chia phần nhìn thấy của {@code region} thành các hình chữ nhật không chồng nhau, mỗi hình gồm các ô khung
+     * không đục liền nhau trên một hàng ô (các hàng liên tiếp có cùng dải ô được gộp lại).
+     * Dùng để chỉ ghép phần ô ảnh không bị khung che.
+     *
+     * @param region Vùng trong tọa độ khung.
+     * @return Các vùng nhìn thấy (tọa độ khung), rỗng nếu cả vùng bị che.
+     */
+    public List<Rectangle> visibleRegions(Rectangle region) {
+        List<Rectangle> result = new ArrayList<>();
+        Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty()) {
+            return result;
+        }
+        int firstRow = clipped.y / cellSize, lastRow = (clipped.y + clipped.height - 1) / cellSize;
+        int firstCol = clipped.x / cellSize, lastCol = (clipped.x + clipped.width - 1) / cellSize;
+        // Các dải của hàng ô trước, để gộp theo chiều dọc khi hàng hiện tại có đúng các dải đó
+        List<Rectangle> previous = new ArrayList<>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            List<Rectangle> runs = new ArrayList<>();
+            int col = firstCol;
+            while (col <= lastCol) {
+                if (cells[row * columns + col] == OPAQUE) {
+                    col++;
+                    continue;
+                }
+                int start = col;
+                while (col <= lastCol && cells[row * columns + col] != OPAQUE) {
+                    col++;
+                }
+                runs.add(new Rectangle(start * cellSize, row * cellSize, (col - start) * cellSize, cellSize));
+            }
+            if (sameColumns(previous, runs)) {
+                for (Rectangle run : previous) {
+                    run.height += cellSize;
+                }
+            } else {
+                previous.forEach(run -> result.add(run.intersection(clipped)));
+                previous = runs;
+            }
+        }
+        previous.forEach(run -> result.add(run.intersection(clipped)));
+        return result;
+    }
+
+    private static boolean sameColumns(List<Rectangle> a, List<Rectangle> b) {
+        if (a.isEmpty() || a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).x != b.get(i).x || a.get(i).width != b.get(i).width) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,403 @@
+package com.photobooth.processing;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache các ô ảnh (tile) đã được xử lý trước (resize, crop, chỉnh màu), định danh theo nội dung.
+ * <p>
+ * Khóa của một tile gồm: danh tính tệp nguồn (kích thước, mtime, mã băm nội dung), kích thước ô đích,
+ * danh tính preset và quy trình xử lý. Nhờ vậy khi người dùng chỉ chỉnh một ảnh rồi xuất lại (hoặc in lại),
+ * chỉ những ô thực sự thay đổi mới phải xử lý lại.
+ * <p>
+ * Có hai tầng lưu trữ:
+ * <ul>
+ *   <li>Bộ nhớ: LRU giới hạn theo tổng số byte điểm ảnh.</li>
+ *   <li>Đĩa (tùy chọn): mỗi tile là một tệp PNG nhỏ trong thư mục cache, tồn tại qua các lần khởi động. Tầng này có
+ *   giới hạn dung lượng riêng; khi vượt, các tệp lâu nhất không được dùng (theo mtime, được cập nhật mỗi lần đọc)
+ *   bị xóa. Thư mục được quét một lần khi khởi tạo để biết dung lượng hiện có và dọn các tệp tạm bị bỏ dở.</li>
+ * </ul>
+ * Cấu hình mặc định đọc từ system property {@code photobooth.tileCache.maxBytes}, {@code photobooth.tileCache.dir}
+ * và {@code photobooth.tileCache.maxDiskMb} (mặc định 1024).
+ */
+public class TileCache {
+
+    /** Dung lượng bộ nhớ mặc định cho cache: 256 MB. */
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    /** Dung lượng mặc định của tầng đĩa: 1 GB. */
+    private static final long DEFAULT_MAX_DISK_MB = 1024;
+
+    /** Cache mặc định dùng chung cho toàn ứng dụng. */
+    private static final TileCache DEFAULT = createDefault();
+
+    /**
+     * Khóa của một tile đã xử lý.
+     *
+     * @param contentHash Mã băm SHA-256 của nội dung tệp nguồn.
+     * @param sourceSize  Kích thước tệp nguồn (byte).
+     * @param width       Chiều rộng ô đích.
+     * @param height      Chiều cao ô đích.
+     * @param presetId    Danh tính preset ("none" nếu không có preset).
+     * @param pipeline    Quy trình đã tạo ra tile (engine, phương pháp nội suy...).
+     */
+    public record TileKey(String contentHash, long sourceSize, int width, int height, String presetId, String pipeline) {
+
+        /** @return Tên tệp ổn định cho tầng đĩa, suy ra từ toàn bộ khóa. */
+        String fileName() {
+            return sha256(toString().getBytes(StandardCharsets.UTF_8)) + ".png";
+        }
+    }
+
+    /**
+     * Số liệu thống kê của cache.
+     *
+     * @param memoryHits  Số lần tìm thấy trong bộ nhớ.
+     * @param diskHits    Số lần tìm thấy trên đĩa.
+     * @param misses      Số lần không tìm thấy.
+     * @param entries     Số tile đang nằm trong bộ nhớ.
+     * @param memoryBytes Tổng dung lượng điểm ảnh đang nằm trong bộ nhớ.
+     */
+    public record Stats(long memoryHits, long diskHits, long misses, int entries, long memoryBytes) {
+    }
+
+    /** Mã băm nội dung đã tính của một phiên bản tệp (đường dẫn, kích thước, mtime). */
+    private record FileIdentity(long size, long lastModified, String contentHash) {
+    }
+
+    private final long maxBytes;
+    /** Thư mục của tầng đĩa, hoặc null nếu không dùng. */
+    private final Path diskDirectory;
+    private final long maxDiskBytes;
+
+    /** Các tệp của tầng đĩa (tên tệp → kích thước), theo thứ tự dùng gần nhất ở cuối; được bảo vệ bởi khóa của chính nó. */
+    private final LinkedHashMap<String, Long> diskFiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long diskBytes;
+
+    /** Tầng bộ nhớ: LinkedHashMap theo thứ tự truy cập để loại bỏ phần tử ít dùng nhất (LRU). */
+    private final LinkedHashMap<TileKey, BufferedImage> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    /** Mã băm đã tính theo đường dẫn, để không phải đọc lại toàn bộ tệp nguồn khi nó chưa thay đổi. */
+    private final Map<String, FileIdentity> identities = new ConcurrentHashMap<>();
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Tạo một cache tile.
+     *
+     * @param maxBytes      Giới hạn dung lượng bộ nhớ (tính theo 4 byte mỗi điểm ảnh).
+     * @param diskDirectory Thư mục cho tầng đĩa, hoặc null để chỉ dùng bộ nhớ.
+     */
+    public TileCache(long maxBytes, Path diskDirectory) {
+        this(maxBytes, diskDirectory, DEFAULT_MAX_DISK_MB * 1024 * 1024);
+    }
+
+    /**
+     * Tạo một cache tile.
+     *
+     * @param maxBytes      Giới hạn dung lượng bộ nhớ (tính theo 4 byte mỗi điểm ảnh).
+     * @param diskDirectory Thư mục cho tầng đĩa, hoặc null để chỉ dùng bộ nhớ.
+     * @param maxDiskBytes  Giới hạn tổng dung lượng các tệp của tầng đĩa.
+     */
+    public TileCache(long maxBytes, Path diskDirectory, long maxDiskBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.diskDirectory = diskDirectory;
+        this.maxDiskBytes = Math.max(0, maxDiskBytes);
+        if (diskDirectory != null) {
+            try {
+                Files.createDirectories(diskDirectory);
+                loadDiskIndex();
+            } catch (IOException e) {
+                System.err.println("Không thể tạo thư mục cache tile: " + e.getMessage());
+            }
+        }
+    }
+
+    /** @return Cache mặc định dùng chung cho toàn ứng dụng. */
+    public static TileCache getDefault() {
+        return DEFAULT;
+    }
+
+    private static TileCache createDefault() {
+        long maxBytes = Long.getLong("photobooth.tileCache.maxBytes", DEFAULT_MAX_BYTES);
+        String dir = System.getProperty("photobooth.tileCache.dir");
+        long maxDiskBytes = Long.getLong("photobooth.tileCache.maxDiskMb", DEFAULT_MAX_DISK_MB) * 1024 * 1024;
+        return new TileCache(maxBytes, dir == null || dir.isBlank() ? null : Paths.get(dir), maxDiskBytes);
+    }
+
+    /**
+     * Tạo khóa cho một ô ảnh.
+     *
+     * @param source   Tệp ảnh nguồn.
+     * @param width    Chiều rộng ô đích.
+     * @param height   Chiều cao ô đích.
+     * @param preset   Tệp preset, có thể null.
+     * @param pipeline Quy trình xử lý (để tile của các engine khác nhau không lẫn vào nhau).
+     * @return Khóa cache.
+     * @throws IOException Nếu không đọc được tệp nguồn để tính mã băm.
+     */
+    public TileKey keyFor(File source, int width, int height, File preset, String pipeline) throws IOException {
+        String presetId = preset == null || !preset.isFile()
+                ? "none"
+                : preset.getAbsolutePath() + "@" + preset.lastModified() + ":" + preset.length();
+        return new TileKey(contentHash(source), source.length(), width, height, presetId, pipeline);
+    }
+
+    /**
+     * Tìm tile trong cache (bộ nhớ trước, sau đó tới đĩa).
+     * Tile trả về được dùng chung, nơi gọi không được sửa đổi nó.
+     *
+     * @param key Khóa tile.
+     * @return Tile đã xử lý, hoặc null nếu không có.
+     */
+    public BufferedImage get(TileKey key) {
+        synchronized (memory) {
+            BufferedImage tile = memory.get(key);
+            if (tile != null) {
+                memoryHits.incrementAndGet();
+                return tile;
+            }
+        }
+        if (diskDirectory != null) {
+            Path file = diskDirectory.resolve(key.fileName());
+            if (Files.isRegularFile(file)) {
+                try {
+                    BufferedImage tile = ImageIO.read(file.toFile());
+                    if (tile != null && tile.getWidth() == key.width() && tile.getHeight() == key.height()) {
+                        diskHits.incrementAndGet();
+                        touchOnDisk(file);
+                        putInMemory(key, tile);
+                        return tile;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Không thể đọc tile từ cache: " + file + "; " + e.getMessage());
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Lưu một tile đã xử lý vào cache (và vào tầng đĩa nếu có).
+     * Sau khi lưu, nơi gọi không được sửa đổi tile nữa.
+     *
+     * @param key  Khóa tile.
+     * @param tile Tile đã xử lý.
+     */
+    public void put(TileKey key, BufferedImage tile) {
+        putInMemory(key, tile);
+        storeOnDisk(key, temp -> ImageIO.write(tile, "png", temp.toFile()));
+    }
+
+    /**
+     * Lưu một tile đã được ghi sẵn thành tệp PNG (ví dụ output của ImageMagick). Tầng đĩa nhận bản sao của tệp, không
+     * mã hóa lại; tệp chỉ được giải mã nếu tầng bộ nhớ sẽ giữ tile, nên lần xử lý không được cache không tốn thêm
+     * một lần giải mã PNG.
+     *
+     * @param key Khóa tile.
+     * @param png Tệp PNG của tile; nơi gọi vẫn sở hữu tệp này.
+     * @throws IOException Nếu không đọc được tệp để đưa vào bộ nhớ.
+     */
+    public void putEncoded(TileKey key, Path png) throws IOException {
+        storeOnDisk(key, temp -> Files.copy(png, temp, StandardCopyOption.REPLACE_EXISTING));
+        if ((long) key.width() * key.height() * 4 <= maxBytes) {
+            BufferedImage tile = ImageIO.read(png.toFile());
+            if (tile != null) {
+                putInMemory(key, tile);
+            }
+        }
+    }
+
+    private interface TileWriter {
+        void write(Path temp) throws IOException;
+    }
+
+    /** Ghi một tile vào tầng đĩa (nếu có và chưa có tệp), rồi xóa các tệp cũ nếu vượt giới hạn. */
+    private void storeOnDisk(TileKey key, TileWriter writer) {
+        if (diskDirectory == null) {
+            return;
+        }
+        Path target = diskDirectory.resolve(key.fileName());
+        if (Files.exists(target)) {
+            return;
+        }
+        try {
+            // Ghi ra tệp tạm rồi đổi tên, để không bao giờ đọc phải một tile ghi dở
+            Path temp = Files.createTempFile(diskDirectory, "tile_", ".tmp");
+            try {
+                writer.write(temp);
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            long size = Files.size(target);
+            synchronized (diskFiles) {
+                Long previous = diskFiles.put(target.getFileName().toString(), size);
+                diskBytes += size - (previous != null ? previous : 0);
+                evictFromDisk();
+            }
+        } catch (IOException e) {
+            System.err.println("Không thể ghi tile vào cache: " + target + "; " + e.getMessage());
+        }
+    }
+
+    /** Đánh dấu tệp vừa được dùng, cả trong chỉ mục lẫn mtime (để thứ tự còn đúng sau khi khởi động lại). */
+    private void touchOnDisk(Path file) {
+        synchronized (diskFiles) {
+            diskFiles.get(file.getFileName().toString());
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Không quan trọng: chỉ ảnh hưởng thứ tự xóa sau lần khởi động tới
+        }
+    }
+
+    /** Xóa các tệp lâu nhất không được dùng cho đến khi tầng đĩa về dưới giới hạn. Gọi khi giữ khóa diskFiles. */
+    private void evictFromDisk() {
+        Iterator<Map.Entry<String, Long>> it = diskFiles.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            try {
+                Files.deleteIfExists(diskDirectory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                System.err.println("Không thể xóa tile cũ khỏi cache: " + eldest.getKey() + "; " + e.getMessage());
+            }
+            diskBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /** Quét thư mục của tầng đĩa khi khởi tạo: dọn tệp tạm bị bỏ dở, xếp các tile theo mtime và cắt về dưới giới hạn. */
+    private void loadDiskIndex() throws IOException {
+        record DiskFile(String name, long size, long lastModified) {
+        }
+        List<DiskFile> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(diskDirectory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    if (name.startsWith("tile_") && name.endsWith(".tmp")) {
+                        Files.deleteIfExists(file);
+                    } else if (name.endsWith(".png")) {
+                        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                        found.add(new DiskFile(name, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                } catch (IOException e) {
+                    // Tệp vừa bị xóa
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(DiskFile::lastModified));
+        synchronized (diskFiles) {
+            for (DiskFile file : found) {
+                diskFiles.put(file.name(), file.size());
+                diskBytes += file.size();
+            }
+            evictFromDisk();
+        }
+    }
+
+    private void putInMemory(TileKey key, BufferedImage tile) {
+        long bytes = (long) tile.getWidth() * tile.getHeight() * 4;
+        if (bytes > maxBytes) {
+            return; // Tile lớn hơn cả giới hạn: không giữ trong bộ nhớ
+        }
+        synchronized (memory) {
+            BufferedImage previous = memory.put(key, tile);
+            if (previous != null) {
+                memoryBytes -= (long) previous.getWidth() * previous.getHeight() * 4;
+            }
+            memoryBytes += bytes;
+            // Loại bỏ các tile ít được dùng nhất cho đến khi về dưới giới hạn
+            Iterator<Map.Entry<TileKey, BufferedImage>> it = memory.entrySet().iterator();
+            while (memoryBytes > maxBytes && it.hasNext()) {
+                BufferedImage evicted = it.next().getValue();
+                memoryBytes -= (long) evicted.getWidth() * evicted.getHeight() * 4;
+                it.remove();
+            }
+        }
+    }
+
+    /** @return Số liệu thống kê hiện tại của cache. */
+    public Stats stats() {
+        synchronized (memory) {
+            return new Stats(memoryHits.get(), diskHits.get(), misses.get(), memory.size(), memoryBytes);
+        }
+    }
+
+    /** Xóa toàn bộ tầng bộ nhớ (tầng đĩa được giữ nguyên). */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        identities.clear();
+    }
+
+    /**
+     * Tính (hoặc lấy lại) mã băm nội dung của tệp; chỉ đọc lại tệp khi kích thước hoặc mtime thay đổi.
+     */
+    private String contentHash(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        FileIdentity known = identities.get(path);
+        if (known != null && known.size() == size && known.lastModified() == lastModified) {
+            return known.contentHash();
+        }
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        String hash = HexFormat.of().formatHex(digest.digest());
+        identities.put(path, new FileIdentity(size, lastModified, hash));
+        return hash;
+    }
+
+    private static String sha256(byte[] data) {
+        return HexFormat.of().formatHex(newDigest().digest(data));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.photobooth.processing;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Luồng ghi cộng dồn thời gian nằm trong các lệnh ghi, flush và đóng của luồng bên dưới (thường là tệp),
+ * để tách thời gian chờ ổ đĩa ra khỏi thời gian nén khi đo giai đoạn mã hóa.
+ */
+final class TimedOutputStream extends FilterOutputStream {
+
+    private long nanos;
+
+    TimedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /** Tổng thời gian chờ I/O (nano giây) tính đến hiện tại. */
+    long elapsedNanos() {
+        return nanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        try {
+            out.write(b);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream mặc định ghi từng byte một; luôn chuyển nguyên khối xuống luồng bên dưới
+        long start = System.nanoTime();
+        try {
+            out.write(b, off, len);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        try {
+            out.flush();
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            out.close();
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+}
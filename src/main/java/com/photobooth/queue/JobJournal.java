@@ -0,0 +1,196 @@
+package com.photobooth.queue;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nhật ký chỉ-ghi-thêm (append-only) của hàng đợi dựng ảnh, mỗi dòng là một bản ghi JSON.
+ * <p>
+ * Mỗi công việc có một bản ghi SUBMIT (kèm toàn bộ mô tả công việc), một hoặc nhiều bản ghi START,
+ * và một bản ghi DONE hoặc FAILED khi kết thúc. Mỗi bản ghi được đẩy xuống đĩa (fsync) trước khi trả về,
+ * nên sau khi ứng dụng bị tắt đột ngột, mọi công việc đã nhận nhưng chưa kết thúc đều được khôi phục bằng {@link #replay()}.
+ * Dòng cuối bị ghi dở (do mất điện giữa chừng) được bỏ qua.
+ */
+public class JobJournal implements Closeable {
+
+    /** Số lần bắt đầu tối đa của một công việc; công việc làm sập ứng dụng nhiều lần sẽ không được chạy lại mãi. */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** Một dòng trong nhật ký. */
+    record Entry(String type, String jobId, RenderJob job, String detail, long time) {
+        static final String SUBMIT = "SUBMIT";
+        static final String START = "START";
+        static final String DONE = "DONE";
+        static final String FAILED = "FAILED";
+    }
+
+    /**
+     * Kết quả đọc lại nhật ký.
+     *
+     * @param pending   Các công việc chưa kết thúc, theo thứ tự đã nhận.
+     * @param abandoned Các công việc bị bỏ vì đã bắt đầu quá {@link #MAX_ATTEMPTS} lần mà không kết thúc.
+     * @param attempts  Số lần đã bắt đầu của từng công việc chưa kết thúc (theo mã).
+     */
+    record Replay(List<RenderJob> pending, List<RenderJob> abandoned, Map<String, Integer> attempts) {
+    }
+
+    private final Path file;
+    private final Gson gson;
+    private FileChannel channel;
+
+    /**
+     * Mở (hoặc tạo) tệp nhật ký.
+     *
+     * @param file Đường dẫn tệp nhật ký.
+     * @throws IOException Nếu không tạo được thư mục hoặc không mở được tệp.
+     */
+    public JobJournal(Path file) throws IOException {
+        this.file = file;
+        // Enum được ghi theo tên, không cần Gson truy cập phản chiếu vào package của chúng
+        this.gson = new GsonBuilder()
+                .registerTypeHierarchyAdapter(Enum.class, (JsonSerializer<Enum<?>>) (value, type, context) -> new JsonPrimitive(value.name()))
+                .registerTypeHierarchyAdapter(Enum.class, (JsonDeserializer<Enum<?>>) (json, type, context) -> enumValue(type, json.getAsString()))
+                .create();
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.channel = openForAppend();
+    }
+
+    /**
+     * Ghi một bản ghi vào cuối nhật ký và đẩy xuống đĩa.
+     */
+    synchronized void append(Entry entry) throws IOException {
+        byte[] line = (gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Đọc lại toàn bộ nhật ký để tìm các công việc chưa kết thúc.
+     *
+     * @return Các công việc cần chạy lại và các công việc bị bỏ.
+     * @throws IOException Nếu không đọc được tệp.
+     */
+    synchronized Replay replay() throws IOException {
+        Map<String, RenderJob> pending = new LinkedHashMap<>();
+        Map<String, Integer> attempts = new HashMap<>();
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) continue;
+                Entry entry;
+                try {
+                    entry = gson.fromJson(line, Entry.class);
+                } catch (RuntimeException e) {
+                    // Thường là dòng cuối bị ghi dở khi ứng dụng bị tắt đột ngột
+                    System.err.println("Bỏ qua dòng nhật ký hỏng " + lineNumber + ": " + e.getMessage());
+                    continue;
+                }
+                if (entry == null || entry.type() == null) continue;
+                switch (entry.type()) {
+                    case Entry.SUBMIT -> {
+                        if (entry.job() != null) pending.put(entry.job().id(), entry.job());
+                    }
+                    case Entry.START -> attempts.merge(entry.jobId(), 1, Integer::sum);
+                    case Entry.DONE, Entry.FAILED -> pending.remove(entry.jobId());
+                    default -> { }
+                }
+            }
+        }
+        List<RenderJob> runnable = new ArrayList<>();
+        List<RenderJob> abandoned = new ArrayList<>();
+        for (RenderJob job : pending.values()) {
+            if (attempts.getOrDefault(job.id(), 0) >= MAX_ATTEMPTS) {
+                abandoned.add(job);
+            } else {
+                runnable.add(job);
+            }
+        }
+        attempts.keySet().retainAll(pending.keySet());
+        return new Replay(runnable, abandoned, attempts);
+    }
+
+    /**
+     * Viết lại nhật ký chỉ với các công việc còn dang dở (giữ số lần đã bắt đầu), để tệp không lớn dần mãi.
+     * Tệp mới được ghi ra tệp tạm rồi đổi tên, nên nhật ký cũ vẫn nguyên vẹn nếu ứng dụng bị tắt giữa chừng.
+     *
+     * @param jobs     Các công việc cần giữ lại.
+     * @param attempts Số lần đã bắt đầu của từng công việc (theo mã), có thể thiếu.
+     * @throws IOException Nếu không ghi được tệp.
+     */
+    synchronized void compact(List<RenderJob> jobs, Map<String, Integer> attempts) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        StringBuilder content = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (RenderJob job : jobs) {
+            content.append(gson.toJson(new Entry(Entry.SUBMIT, job.id(), job, null, now))).append('\n');
+            for (int i = 0; i < attempts.getOrDefault(job.id(), 0); i++) {
+                content.append(gson.toJson(new Entry(Entry.START, job.id(), null, null, now))).append('\n');
+            }
+        }
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        channel.close();
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            channel = openForAppend();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private FileChannel openForAppend() throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Enum<?> enumValue(java.lang.reflect.Type type, String name) {
+        if (!(type instanceof Class<?> enumClass) || !enumClass.isEnum()) {
+            throw new JsonParseException("Not an enum type: " + type);
+        }
+        try {
+            return Enum.valueOf((Class) enumClass, name);
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException("Unknown value '" + name + "' for " + enumClass.getSimpleName(), e);
+        }
+    }
+}
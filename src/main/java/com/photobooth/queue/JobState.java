@@ -0,0 +1,32 @@
+package com.photobooth.queue;
+
+import com.photobooth.processing.RenderResult;
+
+import java.time.Duration;
+
+/**
+ * Ảnh chụp trạng thái hiện tại của một công việc, dùng để hiển thị trên giao diện.
+ *
+ * @param job        Mô tả công việc.
+ * @param status     Trạng thái hiện tại.
+ * @param result     Kết quả dựng ảnh (chỉ khi {@link JobStatus#DONE}), hoặc null.
+ * @param error      Thông báo lỗi (chỉ khi {@link JobStatus#FAILED}), hoặc null.
+ * @param duration   Thời gian dựng (khi đã kết thúc), hoặc null.
+ */
+public record JobState(RenderJob job, JobStatus status, RenderResult result, String error, Duration duration) {
+
+    /** @return Một dòng mô tả ngắn gọn, ví dụ "a1b2c3d4  DONE  output_123.png (840 ms)". */
+    public String describe() {
+        StringBuilder text = new StringBuilder(job.shortId()).append("  ").append(status);
+        if (result != null) {
+            text.append("  ").append(result.outputFile().getName());
+        }
+        if (error != null) {
+            text.append("  ").append(error);
+        }
+        if (duration != null) {
+            text.append(" (").append(duration.toMillis()).append(" ms)");
+        }
+        return text.toString();
+    }
+}
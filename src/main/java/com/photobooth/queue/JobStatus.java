@@ -0,0 +1,20 @@
+package com.photobooth.queue;
+
+/**
+ * Trạng thái của một công việc trong hàng đợi dựng ảnh.
+ */
+public enum JobStatus {
+    /** Đang chờ một worker rảnh. */
+    QUEUED,
+    /** Đang được dựng. */
+    RUNNING,
+    /** Đã dựng xong, có tệp kết quả. */
+    DONE,
+    /** Dựng thất bại. */
+    FAILED;
+
+    /** @return true nếu công việc đã kết thúc (thành công hoặc thất bại). */
+    public boolean isFinished() {
+        return this == DONE || this == FAILED;
+    }
+}
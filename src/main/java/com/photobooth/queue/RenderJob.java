@@ -0,0 +1,90 @@
+package com.photobooth.queue;
+
+import com.photobooth.config.ImagePosition;
+import com.photobooth.processing.OutputOptions;
+import com.photobooth.processing.RenderEngine;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Mô tả bất biến của một lần dựng ảnh trong hàng đợi: đủ thông tin để chạy lại y hệt sau khi ứng dụng khởi động lại.
+ * Đường dẫn được lưu dưới dạng chuỗi để ghi/đọc được bằng Gson trong nhật ký.
+ *
+ * @param id             Mã định danh duy nhất của công việc.
+ * @param images         Đường dẫn các ảnh nguồn, theo đúng thứ tự của {@code positions}.
+ * @param positions      Vị trí và kích thước của từng ô ảnh.
+ * @param templatePath   Đường dẫn ảnh khung.
+ * @param presetPath     Đường dẫn preset màu, hoặc null nếu không dùng.
+ * @param exportFolder   Thư mục xuất.
+ * @param templateWidth  Chiều rộng ảnh khung.
+ * @param templateHeight Chiều cao ảnh khung.
+ * @param engine         Engine dựng ảnh.
+ * @param outputFormat   Định dạng ảnh kết quả.
+ * @param createdAt      Thời điểm tạo (epoch millis).
+ */
+public record RenderJob(String id, List<String> images, List<ImagePosition> positions, String templatePath, String presetPath,
+                        String exportFolder, int templateWidth, int templateHeight, RenderEngine engine,
+                        OutputOptions.Format outputFormat, long createdAt) {
+
+    public RenderJob {
+        if (images == null || positions == null || images.size() != positions.size()) {
+            throw new IllegalArgumentException("Each image needs exactly one position");
+        }
+        // Sao chép để mô tả công việc không bị thay đổi từ bên ngoài sau khi đã ghi vào nhật ký
+        images = List.copyOf(images);
+        positions = List.copyOf(positions);
+        if (engine == null) {
+            engine = RenderEngine.IMAGEMAGICK;
+        }
+        if (outputFormat == null) {
+            outputFormat = OutputOptions.Format.PNG;
+        }
+    }
+
+    /**
+     * Tạo một công việc mới với mã định danh ngẫu nhiên.
+     *
+     * @param images         Ảnh nguồn, theo đúng thứ tự của {@code positions}.
+     * @param positions      Vị trí của từng ô ảnh.
+     * @param templateFile   Ảnh khung.
+     * @param presetFile     Preset màu, hoặc null.
+     * @param exportFolder   Thư mục xuất.
+     * @param templateWidth  Chiều rộng ảnh khung.
+     * @param templateHeight Chiều cao ảnh khung.
+     * @param engine         Engine dựng ảnh.
+     * @param outputFormat   Định dạng ảnh kết quả.
+     * @return Mô tả công việc.
+     */
+    public static RenderJob create(List<File> images, List<ImagePosition> positions, File templateFile, File presetFile, File exportFolder,
+                                   int templateWidth, int templateHeight, RenderEngine engine, OutputOptions.Format outputFormat) {
+        return new RenderJob(
+                UUID.randomUUID().toString(),
+                images.stream().map(File::getAbsolutePath).toList(),
+                positions,
+                templateFile.getAbsolutePath(),
+                presetFile != null && presetFile.isFile() ? presetFile.getAbsolutePath() : null,
+                exportFolder.getAbsolutePath(),
+                templateWidth,
+                templateHeight,
+                engine,
+                outputFormat,
+                System.currentTimeMillis());
+    }
+
+    /** @return Các ảnh nguồn dưới dạng tệp. */
+    public List<File> imageFiles() {
+        return images.stream().map(File::new).toList();
+    }
+
+    /** @return Tệp preset, hoặc null nếu không dùng. */
+    public File presetFile() {
+        return presetPath == null ? null : new File(presetPath);
+    }
+
+    /** @return Tên ngắn để hiển thị trên giao diện. */
+    public String shortId() {
+        return id.length() > 8 ? id.substring(0, 8) : id;
+    }
+}
@@ -0,0 +1,218 @@
+package com.photobooth.queue;
+
+import com.photobooth.processing.ImageProcessor;
+import com.photobooth.processing.OutputOptions;
+import com.photobooth.processing.RenderResult;
+import com.photobooth.processing.TileCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hàng đợi dựng ảnh bền vững: mỗi công việc được ghi vào {@link JobJournal} trước khi chạy,
+ * và được chạy bởi một số worker cố định để giới hạn số lần dựng đồng thời.
+ * <p>
+ * Khi khởi động, {@link #recover()} đọc lại nhật ký và đưa các công việc chưa kết thúc (kể cả công việc đang chạy dở
+ * khi ứng dụng bị tắt) trở lại hàng đợi. Trạng thái từng công việc được thông báo qua listener để hiển thị trên giao diện;
+ * listener được gọi từ luồng worker, nơi nhận phải tự chuyển về luồng giao diện nếu cần.
+ */
+public class RenderQueue {
+
+    /** Số công việc đã kết thúc được giữ lại để hiển thị. */
+    private static final int FINISHED_HISTORY = 50;
+
+    private final JobJournal journal;
+    private final ExecutorService workers;
+    private final int workerCount;
+    /** Số luồng xử lý ô ảnh cho mỗi công việc, chia đều số nhân CPU cho các worker. */
+    private final int parallelismPerJob;
+
+    /** Trạng thái các công việc theo thứ tự nhận. */
+    private final Map<String, JobState> states = new LinkedHashMap<>();
+    private final List<Consumer<JobState>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean shuttingDown;
+
+    /**
+     * Mở hàng đợi với nhật ký tại {@code journalFile}.
+     *
+     * @param journalFile Tệp nhật ký.
+     * @param workerCount Số công việc được dựng đồng thời (tối thiểu là 1).
+     * @throws IOException Nếu không mở được nhật ký.
+     */
+    public RenderQueue(Path journalFile, int workerCount) throws IOException {
+        this.journal = new JobJournal(journalFile);
+        this.workerCount = Math.max(1, workerCount);
+        this.parallelismPerJob = Math.max(1, Runtime.getRuntime().availableProcessors() / this.workerCount);
+        this.workers = Executors.newFixedThreadPool(this.workerCount, new WorkerThreadFactory());
+    }
+
+    /**
+     * Đường dẫn nhật ký mặc định: {@code ~/PhotoBoothQueue/render-jobs.jsonl},
+     * hoặc thư mục trong system property {@code photobooth.queue.dir}.
+     */
+    public static Path defaultJournalPath() {
+        String dir = System.getProperty("photobooth.queue.dir");
+        Path base = dir == null || dir.isBlank() ? Paths.get(System.getProperty("user.home"), "PhotoBoothQueue") : Paths.get(dir);
+        return base.resolve("render-jobs.jsonl");
+    }
+
+    /** @return Số worker mặc định, đọc từ system property {@code photobooth.queue.workers} (mặc định 2). */
+    public static int defaultWorkerCount() {
+        return Math.max(1, Integer.getInteger("photobooth.queue.workers", 2));
+    }
+
+    /**
+     * Đọc lại nhật ký và đưa các công việc chưa kết thúc trở lại hàng đợi. Chỉ nên gọi một lần, ngay sau khi tạo hàng đợi.
+     *
+     * @return Số công việc được khôi phục.
+     * @throws IOException Nếu không đọc hoặc không viết lại được nhật ký.
+     */
+    public int recover() throws IOException {
+        JobJournal.Replay replay = journal.replay();
+        // Thu gọn nhật ký về các công việc còn dang dở trước khi chạy lại chúng
+        journal.compact(replay.pending(), replay.attempts());
+        for (RenderJob job : replay.abandoned()) {
+            System.err.println("Bỏ công việc " + job.shortId() + " sau " + JobJournal.MAX_ATTEMPTS + " lần chạy không thành công");
+            update(new JobState(job, JobStatus.FAILED, null, "Abandoned after " + JobJournal.MAX_ATTEMPTS + " attempts", null));
+        }
+        for (RenderJob job : replay.pending()) {
+            enqueue(job);
+        }
+        return replay.pending().size();
+    }
+
+    /**
+     * Nhận một công việc mới: ghi vào nhật ký (đã đẩy xuống đĩa) rồi đưa vào hàng đợi.
+     *
+     * @param job Công việc cần dựng.
+     * @throws IOException Nếu không ghi được nhật ký; khi đó công việc không được nhận.
+     */
+    public void submit(RenderJob job) throws IOException {
+        if (shuttingDown) {
+            throw new IOException("Render queue is shut down");
+        }
+        journal.append(new JobJournal.Entry(JobJournal.Entry.SUBMIT, job.id(), job, null, System.currentTimeMillis()));
+        enqueue(job);
+    }
+
+    private void enqueue(RenderJob job) {
+        update(new JobState(job, JobStatus.QUEUED, null, null, null));
+        workers.execute(() -> run(job));
+    }
+
+    private void run(RenderJob job) {
+        if (shuttingDown) {
+            return; // Vẫn còn trong nhật ký, sẽ được chạy lại ở lần khởi động sau
+        }
+        long start = System.nanoTime();
+        try {
+            journal.append(new JobJournal.Entry(JobJournal.Entry.START, job.id(), null, null, System.currentTimeMillis()));
+            update(new JobState(job, JobStatus.RUNNING, null, null, null));
+
+            ImageProcessor processor = new ImageProcessor(parallelismPerJob, TileCache.getDefault(), OutputOptions.defaults().withFormat(job.outputFormat()));
+            RenderResult result = processor.render(job.imageFiles(), job.presetFile(), new File(job.templatePath()),
+                    job.templateWidth(), job.templateHeight(), new File(job.exportFolder()), job.positions(), job.engine());
+
+            journal.append(new JobJournal.Entry(JobJournal.Entry.DONE, job.id(), null, result.outputFile().getAbsolutePath(), System.currentTimeMillis()));
+            update(new JobState(job, JobStatus.DONE, result, null, result.totalDuration()));
+        } catch (InterruptedException e) {
+            // Ứng dụng đang đóng: công việc vẫn còn trong nhật ký và sẽ được chạy lại
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (shuttingDown) {
+                return;
+            }
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            System.err.println("Công việc " + job.shortId() + " thất bại: " + message);
+            try {
+                journal.append(new JobJournal.Entry(JobJournal.Entry.FAILED, job.id(), null, message, System.currentTimeMillis()));
+            } catch (IOException journalError) {
+                System.err.println("Không thể ghi nhật ký hàng đợi: " + journalError.getMessage());
+            }
+            update(new JobState(job, JobStatus.FAILED, null, message, Duration.ofNanos(System.nanoTime() - start)));
+        }
+    }
+
+    private void update(JobState state) {
+        synchronized (states) {
+            states.put(state.job().id(), state);
+            // Chỉ giữ lại một số công việc đã kết thúc gần nhất
+            long finished = states.values().stream().filter(s -> s.status().isFinished()).count();
+            Iterator<JobState> it = states.values().iterator();
+            while (finished > FINISHED_HISTORY && it.hasNext()) {
+                if (it.next().status().isFinished()) {
+                    it.remove();
+                    finished--;
+                }
+            }
+        }
+        for (Consumer<JobState> listener : listeners) {
+            listener.accept(state);
+        }
+    }
+
+    /**
+     * Đăng ký nhận thông báo mỗi khi trạng thái một công việc thay đổi (được gọi từ luồng worker).
+     */
+    public void addListener(Consumer<JobState> listener) {
+        listeners.add(listener);
+    }
+
+    /** @return Số công việc đang chờ hoặc đang chạy. */
+    public int depth() {
+        synchronized (states) {
+            return (int) states.values().stream().filter(s -> !s.status().isFinished()).count();
+        }
+    }
+
+    /** @return Trạng thái các công việc, theo thứ tự nhận. */
+    public List<JobState> snapshot() {
+        synchronized (states) {
+            return new ArrayList<>(states.values());
+        }
+    }
+
+    /** @return Số công việc được dựng đồng thời. */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Dừng các worker. Công việc đang chạy bị ngắt và, cùng với các công việc đang chờ, sẽ được khôi phục ở lần khởi động sau.
+     */
+    public void shutdown() {
+        shuttingDown = true;
+        workers.shutdownNow();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Không thể đóng nhật ký hàng đợi: " + e.getMessage());
+        }
+    }
+
+    /** Luồng worker chạy nền (daemon) để không giữ ứng dụng lại khi đóng cửa sổ. */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "render-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.photobooth.ui;
+
+import com.photobooth.processing.ImageDecoder;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.scene.image.Image;
+import javafx.stage.Window;
+import javafx.util.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ảnh hiển thị của một {@link ResizableNode} trên canvas, nạp theo kích thước thực trên màn hình thay vì ảnh gốc đầy đủ.
+ * <p>
+ * Ảnh được giải mã theo các mức (mip) có cạnh dài 256, 512, 1024, ... điểm ảnh, tối đa bằng ảnh gốc. Mức cần dùng là
+ * mức nhỏ nhất không nhỏ hơn cạnh dài của node × tỷ lệ thu phóng của canvas × hệ số DPI của màn hình. Khi người dùng
+ * phóng to (hoặc kéo node lớn hơn), mức nét hơn được giải mã trên luồng nền rồi thay vào; khi thu nhỏ, một mức nhỏ
+ * hơn được nạp và ảnh lớn được bỏ để giải phóng bộ nhớ. Các thay đổi liên tục (kéo thanh trượt thu phóng) được gộp
+ * lại sau một khoảng ngắn, và yêu cầu cũ bị hủy khi có yêu cầu mới.
+ * <p>
+ * Chỉ phần hiển thị dùng ảnh này; ảnh kết quả vẫn được dựng từ tệp gốc. Khi node bị gỡ khỏi canvas, ảnh được bỏ
+ * và nạp lại nếu node được thêm trở lại. Mọi phương thức chạy trên luồng FX.
+ */
+final class CanvasProxy {
+
+    /** Cạnh dài của mức nhỏ nhất. */
+    static final int BASE_LEVEL = 256;
+    /** Chỉ hạ xuống mức nhỏ hơn khi kích thước cần vẫn vừa mức đó sau khi cộng thêm khoảng dư này, tránh nạp qua lại ở ranh giới. */
+    private static final double DOWNGRADE_MARGIN = 1.25;
+    private static final Duration SETTLE_DELAY = Duration.millis(150);
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final ExecutorService LOADER = Executors.newFixedThreadPool(2, task -> {
+        Thread thread = new Thread(task, "canvas-proxy-loader-" + THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1); // Nhường luồng FX và luồng dựng ảnh
+        return thread;
+    });
+
+    private final File source;
+    private final ResizableNode node;
+    private final ReadOnlyDoubleProperty viewScale;
+    /** Cạnh dài của ảnh gốc, cũng là mức lớn nhất. */
+    private final int fullSize;
+    private final PauseTransition settle = new PauseTransition(SETTLE_DELAY);
+
+    /** Cạnh dài yêu cầu của ảnh đang hiển thị; 0 nếu chưa có. */
+    private int shownLevel;
+    /** Mức đang được giải mã; 0 nếu không có. */
+    private int loadingLevel;
+    private Future<?> pending;
+
+    private CanvasProxy(File source, ResizableNode node, ReadOnlyDoubleProperty viewScale, int fullSize) {
+        this.source = source;
+        this.node = node;
+        this.viewScale = viewScale;
+        this.fullSize = fullSize;
+    }
+
+    /**
+     * Gắn ảnh hiển thị cho node và bắt đầu nạp mức phù hợp. Node tự theo dõi thay đổi kích thước, tỷ lệ thu phóng
+     * và việc được thêm/gỡ khỏi canvas.
+     *
+     * @param source    Tệp ảnh gốc.
+     * @param node      Node hiển thị ảnh.
+     * @param viewScale Tỷ lệ thu phóng của canvas.
+     * @param fullSize  Cạnh dài của ảnh gốc (điểm ảnh).
+     */
+    static void attach(File source, ResizableNode node, ReadOnlyDoubleProperty viewScale, int fullSize) {
+        CanvasProxy proxy = new CanvasProxy(source, node, viewScale, Math.max(1, fullSize));
+        proxy.settle.setOnFinished(e -> proxy.refresh());
+        InvalidationListener changed = o -> proxy.settle.playFromStart();
+        node.prefWidthProperty().addListener(changed);
+        node.prefHeightProperty().addListener(changed);
+        // viewScale sống lâu hơn node: chỉ nghe khi node đang trên canvas, để node đã gỡ không bị giữ lại qua listener
+        if (node.getScene() != null) {
+            viewScale.addListener(changed);
+        }
+        node.sceneProperty().addListener((obs, oldScene, newScene) -> {
+            if (newScene == null) {
+                viewScale.removeListener(changed);
+                proxy.release();
+            } else {
+                if (oldScene == null) {
+                    viewScale.addListener(changed);
+                }
+                proxy.refresh();
+            }
+        });
+        proxy.refresh();
+    }
+
+    /**
+     * @param needed Số điểm ảnh cần trên cạnh dài.
+     * @return Mức nhỏ nhất đủ nét, tối đa bằng ảnh gốc.
+     */
+    static int levelFor(double needed, int fullSize) {
+        int level = BASE_LEVEL;
+        while (level < needed && level < fullSize) {
+            level *= 2;
+        }
+        return Math.min(level, fullSize);
+    }
+
+    /** Chọn mức theo kích thước hiện tại trên màn hình và nạp nếu khác mức đang hiển thị. */
+    private void refresh() {
+        if (node.getScene() == null) {
+            return;
+        }
+        double needed = Math.max(node.getPrefWidth(), node.getPrefHeight()) * viewScale.get() * outputScale();
+        int target = levelFor(needed, fullSize);
+        if (target < shownLevel && levelFor(needed * DOWNGRADE_MARGIN, fullSize) >= shownLevel) {
+            target = shownLevel; // Vừa mới dưới ngưỡng: giữ mức hiện tại
+        }
+        if (target == shownLevel) {
+            cancelPending();
+        } else if (target != loadingLevel) {
+            load(target);
+        }
+    }
+
+    private void load(int level) {
+        cancelPending();
+        loadingLevel = level;
+        Future<?>[] self = new Future<?>[1];
+        pending = LOADER.submit(() -> {
+            Image image;
+            try {
+                image = ThumbnailCache.toFxImage(ImageDecoder.decodeThumbnail(source, level));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Không nạp được ảnh hiển thị cho " + source.getName() + ": " + e.getMessage());
+                // Xóa trạng thái đang nạp, để lần thay đổi kích thước/thu phóng sau còn thử lại mức này
+                Platform.runLater(() -> {
+                    if (!self[0].isCancelled() && loadingLevel == level) {
+                        loadingLevel = 0;
+                        pending = null;
+                    }
+                });
+                return;
+            }
+            // load() chạy trên luồng FX, nên self[0] đã được gán trước khi lệnh runLater này chạy
+            Platform.runLater(() -> {
+                if (self[0].isCancelled() || loadingLevel != level) {
+                    return;
+                }
+                loadingLevel = 0;
+                pending = null;
+                shownLevel = level;
+                node.setImage(image); // Ảnh mức cũ không còn được tham chiếu và được thu hồi
+            });
+        });
+        self[0] = pending;
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        loadingLevel = 0;
+    }
+
+    /** Bỏ ảnh khi node bị gỡ khỏi canvas. */
+    private void release() {
+        settle.stop();
+        cancelPending();
+        shownLevel = 0;
+        node.setImage(null);
+    }
+
+    private double outputScale() {
+        Window window = node.getScene().getWindow();
+        return window != null ? window.getOutputScaleX() : 1.0;
+    }
+}
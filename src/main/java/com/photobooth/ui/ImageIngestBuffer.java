@@ -0,0 +1,145 @@
+package com.photobooth.ui;
+
+import com.photobooth.diagnostics.StageSpan;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bộ đệm nhập ảnh mới (từ FolderWatcher, và các đợt ảnh khi nạp thư mục nhập) vào danh sách ảnh trên giao diện.
+ * <p>
+ * Thay vì mỗi file một lần {@code Platform.runLater} và một lần {@code contains} duyệt cả danh sách, các file báo về
+ * từ mọi luồng được xếp vào một hàng đợi không khóa; mỗi nhịp vẽ (pulse) của JavaFX lấy hết hàng đợi, bỏ các file
+ * trùng bằng một tập băm (O(1) mỗi file) và thêm phần còn lại bằng đúng một lần {@code addAll}. Khi hàng đợi rỗng,
+ * bộ đếm nhịp được dừng để không giữ JavaFX vẽ liên tục.
+ * <p>
+ * Tập băm được giữ khớp với danh sách qua listener, nên các thao tác khác trên danh sách (nạp thư mục, xóa ảnh)
+ * không cần báo cho bộ đệm. Kích thước lô và thời gian chờ được ghi vào
+ * {@link com.photobooth.diagnostics.MetricsRegistry} (giai đoạn "Ingest queue", các bộ đếm {@code ingest.*}).
+ */
+final class ImageIngestBuffer {
+
+    /** Một file đang chờ, thế hệ nhập đã báo nó và thời điểm được báo (nano giây). */
+    private record Arrival(File file, int generation, long queuedAt) {
+    }
+
+    private final ObservableList<File> target;
+    /** Các file đang có trong danh sách; chỉ dùng trên luồng FX. */
+    private final Set<File> present = new HashSet<>();
+    private final ConcurrentLinkedQueue<Arrival> queue = new ConcurrentLinkedQueue<>();
+    /** true khi bộ đếm nhịp đang chạy hoặc đã được yêu cầu chạy. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /** Thế hệ nhập hiện tại; file của thế hệ khác bị bỏ khi lấy hàng đợi. Chỉ ghi trên luồng FX. */
+    private volatile int generation;
+    private final AnimationTimer pulse = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            flush();
+        }
+    };
+
+    /**
+     * Phải được tạo trên luồng FX.
+     *
+     * @param target Danh sách ảnh hiển thị trên giao diện.
+     */
+    ImageIngestBuffer(ObservableList<File> target) {
+        this.target = target;
+        present.addAll(target);
+        target.addListener((ListChangeListener<File>) change -> {
+            while (change.next()) {
+                // Duyệt từng phần tử: removeAll của HashSet với một List lớn có thể thành O(n^2)
+                for (File removed : change.getRemoved()) {
+                    present.remove(removed);
+                }
+                for (File added : change.getAddedSubList()) {
+                    present.add(added);
+                }
+            }
+        });
+    }
+
+    /**
+     * Báo một file ảnh mới; có thể gọi từ bất kỳ luồng nào. File được thêm vào danh sách ở nhịp vẽ kế tiếp.
+     *
+     * @param generation Thế hệ nhập của nguồn báo file (xem {@link #discardPending(int)}).
+     */
+    void offer(File file, int generation) {
+        queue.add(new Arrival(file, generation, System.nanoTime()));
+        if (scheduled.compareAndSet(false, true)) {
+            Platform.runLater(pulse::start);
+        }
+    }
+
+    /**
+     * Báo một đợt file (ví dụ từ lần nạp thư mục nhập); có thể gọi từ bất kỳ luồng nào.
+     *
+     * @param generation Thế hệ nhập của nguồn báo file (xem {@link #discardPending(int)}).
+     */
+    void offerAll(Collection<File> files, int generation) {
+        long now = System.nanoTime();
+        for (File file : files) {
+            queue.add(new Arrival(file, generation, now));
+        }
+        if (!files.isEmpty() && scheduled.compareAndSet(false, true)) {
+            Platform.runLater(pulse::start);
+        }
+    }
+
+    /**
+     * Bỏ các file đang chờ và chuyển sang thế hệ nhập mới (khi danh sách được làm mới cho thư mục nhập khác). File của
+     * thế hệ cũ báo đến sau lời gọi này (luồng nạp hoặc watcher cũ chưa kịp dừng) cũng bị bỏ khi lấy hàng đợi. Luồng FX.
+     */
+    void discardPending(int newGeneration) {
+        generation = newGeneration;
+        queue.clear();
+    }
+
+    /** Lấy hết hàng đợi và thêm vào danh sách bằng một lần addAll (luồng FX). */
+    private void flush() {
+        List<File> batch = new ArrayList<>();
+        Set<File> inBatch = new HashSet<>();
+        long[] waits = new long[64];
+        int duplicates = 0;
+        long now = System.nanoTime();
+        int current = generation;
+        Arrival arrival;
+        while ((arrival = queue.poll()) != null) {
+            if (arrival.generation() != current) {
+                continue;
+            }
+            if (present.contains(arrival.file()) || !inBatch.add(arrival.file())) {
+                duplicates++;
+                continue;
+            }
+            if (batch.size() == waits.length) {
+                waits = Arrays.copyOf(waits, waits.length * 2);
+            }
+            waits[batch.size()] = Math.max(0, now - arrival.queuedAt()); // File đến trong lúc đang lấy hàng đợi
+            batch.add(arrival.file());
+        }
+        if (!batch.isEmpty()) {
+            target.addAll(batch);
+        }
+        if (!batch.isEmpty() || duplicates > 0) {
+            StageSpan.recordIngest(waits, batch.size(), duplicates);
+        }
+        // Dừng bộ đếm nhịp khi không còn gì; nếu có file đến ngay sau khi lấy hàng đợi thì chạy tiếp ở nhịp sau
+        scheduled.set(false);
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        pulse.stop();
+    }
+}
@@ -1,8 +1,13 @@
 package com.photobooth.ui;
 
+import com.photobooth.canvas.CanvasItem;
+import com.photobooth.canvas.CanvasModel;
+import com.photobooth.canvas.CanvasSnapshot;
 import com.photobooth.config.ConfigManager;
 import com.photobooth.config.ImagePosition;
 import com.photobooth.config.TemplateConfig;
+import com.photobooth.diagnostics.MetricsRegistry;
+import com.photobooth.watcher.FolderCatalog;
 import com.photobooth.watcher.FolderWatcher;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -17,6 +22,9 @@ import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.*;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
@@ -27,23 +35,38 @@ import javafx.stage.FileChooser;
 import javafx.scene.shape.SVGPath;
 import javafx.scene.layout.Region;
 
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import com.photobooth.processing.ImageProcessor;
-import javafx.concurrent.Task;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import com.photobooth.processing.ImageDecoder;
+import com.photobooth.processing.OutputOptions;
+import com.photobooth.processing.RenderEngine;
+import com.photobooth.processing.RenderResult;
+import com.photobooth.processing.SlotTiming;
+import com.photobooth.processing.TemplateAssetCache;
+import com.photobooth.processing.TileCache;
+import com.photobooth.queue.JobState;
+import com.photobooth.queue.JobStatus;
+import com.photobooth.queue.RenderJob;
+import com.photobooth.queue.RenderQueue;
 
-import javax.imageio.ImageIO;
 import java.util.stream.Collectors;
 
 /**
@@ -64,6 +87,7 @@ public class PhotoBoothController {
     @FXML private TextField presetField;
     @FXML private TextField psdFrameField;
     @FXML private Button selectImportButton;
+    @FXML private Button addImportButton;
     @FXML private Button selectExportButton;
     @FXML private Button selectPresetButton;
     @FXML private Button selectPsdButton;
@@ -79,18 +103,42 @@ public class PhotoBoothController {
     @FXML private ListView<String> configListView;
     @FXML private Button saveConfigButton;
     @FXML private Button clearCanvasButton;
+    @FXML private Button undoButton;
+    @FXML private Button redoButton;
+    @FXML private ChoiceBox<RenderEngine> engineChoice;
+    @FXML private ChoiceBox<OutputOptions.Format> outputFormatChoice;
+    @FXML private Label queueStatusLabel;
+    @FXML private ListView<String> jobListView;
+    @FXML private TitledPane diagnosticsPane;
+    @FXML private TextArea diagnosticsArea;
 
     // Danh sách các tệp ảnh có sẵn, được hiển thị trong lưới bên trái
     private final ObservableList<File> imageFiles = FXCollections.observableArrayList();
+    // Bộ đệm nhập ảnh mới từ FolderWatcher vào imageFiles (tạo trong initialize, trên luồng FX)
+    private ImageIngestBuffer imageIngest;
+    // Kích thước hiển thị (điểm ảnh logic) của ảnh thu nhỏ trong danh sách ảnh
+    private static final int THUMBNAIL_SIZE = 50;
+    // Ảnh thu nhỏ của danh sách ảnh, giải mã nền; ảnh giữ chỗ (ô xám) hiện trong lúc chờ
+    private final ThumbnailCache thumbnails = new ThumbnailCache();
+    private final WritableImage thumbnailPlaceholder = new WritableImage(1, 1);
 
     // private final List<ImagePosition> imagePositions = new ArrayList<>();
-    private String currentImageName;
+    // Mô hình canvas (ô giữ chỗ, ảnh đã đặt, vị trí, tệp gốc); các node trên overlayPane chỉ là phần hiển thị, tra theo id
+    private final CanvasModel canvas = new CanvasModel();
+    private final Map<String, Node> canvasNodes = new HashMap<>();
     private ExecutorService executor = Executors.newSingleThreadExecutor();
 
     // Cờ để theo dõi trạng thái hoạt động của FolderWatcher
     private volatile boolean isRunning = false;
 
     private ScheduledExecutorService debounceExecutor = Executors.newSingleThreadScheduledExecutor();
+    // Luồng nạp thư mục nhập; mỗi lần chọn thư mục tăng thế hệ để lần nạp cũ dừng lại
+    private final ExecutorService importExecutor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "folder-import");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger importGeneration = new AtomicInteger();
     private FolderWatcher folderWatcher;
 
     // Lưu tọa độ chuột ban đầu khi bắt đầu lia (pan) khung nhìn
@@ -107,8 +155,9 @@ public class PhotoBoothController {
     // Danh sách tên các cấu hình đã lưu
     private final ObservableList<String> savedConfigNames = FXCollections.observableArrayList();
 
-    // Hằng số ID để nhận dạng các ô placeholder khi tải một cấu hình
-    private static final String PLACEHOLDER_ID = "config_placeholder";
+    // Hàng đợi dựng ảnh bền vững và danh sách trạng thái công việc hiển thị trên giao diện
+    private RenderQueue renderQueue;
+    private final ObservableList<String> jobDescriptions = FXCollections.observableArrayList();
 
     private ImageView iconViewVisible;
     private ImageView iconViewHidden;
@@ -219,61 +268,129 @@ public class PhotoBoothController {
 
         overlayPane.setOnDragDropped(this::handleSmartDrop);
 
-        // 7. Thiết lập các slider X/Y Position
+        // Node trên canvas được cập nhật theo mô hình; hoàn tác/làm lại bằng nút hoặc Ctrl+Z / Ctrl+Y (Ctrl+Shift+Z)
+        canvas.addListener(this::syncCanvas);
+        undoButton.setDisable(true);
+        redoButton.setDisable(true);
+        templatePane.sceneProperty().addListener((obs, oldScene, newScene) -> {
+            if (newScene != null) {
+                newScene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN), this::handleUndo);
+                newScene.getAccelerators().put(new KeyCodeCombination(KeyCode.Y, KeyCombination.SHORTCUT_DOWN), this::handleRedo);
+                newScene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN, KeyCombination.SHIFT_DOWN), this::handleRedo);
+            }
+        });
+
+        // 7. Thiết lập các slider X/Y Position; các thay đổi liên tục của cùng một ảnh gộp thành một bước hoàn tác
         xPosSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
             if (selectedNode != null) {
                 selectedNode.setLayoutX(newVal.doubleValue());
+                canvas.place(selectedNode.getId(), placementOf(selectedNode), true);
             }
         });
 
         yPosSlider.valueProperty().addListener((obs, oldVal, newVal) -> {
             if (selectedNode != null) {
                 selectedNode.setLayoutY(newVal.doubleValue());
+                canvas.place(selectedNode.getId(), placementOf(selectedNode), true);
             }
         });
 
         // 8. Thiết lập lưới hiển thị ảnh (imageGrid)
         imageGrid.setItems(imageFiles);
+        imageIngest = new ImageIngestBuffer(imageFiles);
+        thumbnailPlaceholder.getPixelWriter().setColor(0, 0, Color.gray(0.85));
         imageGrid.setCellFactory(listView -> new ListCell<>() {
             private final ImageView imageView = new ImageView();
+            // File mà ô đang chờ ảnh thu nhỏ và yêu cầu giải mã tương ứng
+            private File pendingFile;
+            private Future<?> pendingLoad;
             {
-                imageView.setFitWidth(50);
-                imageView.setFitHeight(50);
+                imageView.setFitWidth(THUMBNAIL_SIZE);
+                imageView.setFitHeight(THUMBNAIL_SIZE);
                 imageView.setPreserveRatio(true);
             }
             @Override
             protected void updateItem(File file, boolean empty) {
                 super.updateItem(file, empty);
                 if (empty || file == null) {
+                    cancelThumbnail();
+                    imageView.setImage(null);
                     setText(null);
                     setGraphic(null);
                 } else {
                     setText(file.getName());
-                    imageView.setImage(new Image(file.toURI().toString()));
+                    showThumbnail(file);
                     setGraphic(imageView);
                     setOnDragDetected(event -> {
                         Dragboard db = startDragAndDrop(TransferMode.MOVE);
                         ClipboardContent content = new ClipboardContent();
-                        content.putString(file.getName());
+                        content.putString(file.getAbsolutePath());
                         db.setContent(content);
                         event.consume();
                     });
                     setOnMouseClicked(event -> {
                         if (event.getClickCount() == 1) {
-                            currentImageName = file.getName();
-                            findImageViewByName(file.getName()).ifPresent(iv -> {
-                                updateSliders(iv.getX(), iv.getY());
-                                highlightImage(file.getName());
-                            });
+                            // Chọn lần đặt trên cùng của ảnh này trên canvas (nếu có)
+                            List<CanvasItem> placed = canvas.snapshot().photosOf(file);
+                            if (!placed.isEmpty() && canvasNodes.get(placed.get(placed.size() - 1).id()) instanceof ResizableNode node) {
+                                selectNode(node);
+                            }
                         }
                     });
                     setContextMenu(createContextMenu(file));
                 }
             }
+
+            /** Hiện ảnh thu nhỏ từ cache, hoặc ảnh giữ chỗ trong lúc giải mã nền. */
+            private void showThumbnail(File file) {
+                if (file.equals(pendingFile) && pendingLoad != null && !pendingLoad.isDone()) {
+                    return; // updateItem được gọi lại với cùng file trong lúc đang giải mã
+                }
+                cancelThumbnail();
+                int size = thumbnailPixels(this);
+                Image cached = thumbnails.getIfPresent(file, size);
+                if (cached != null) {
+                    imageView.setImage(cached);
+                    return;
+                }
+                imageView.setImage(thumbnailPlaceholder);
+                pendingFile = file;
+                pendingLoad = thumbnails.load(file, size, image -> {
+                    if (file.equals(getItem())) {
+                        imageView.setImage(image);
+                    }
+                });
+            }
+
+            /** Ô được dùng lại cho file khác (cuộn danh sách): bỏ yêu cầu giải mã cũ nếu chưa chạy. */
+            private void cancelThumbnail() {
+                if (pendingLoad != null) {
+                    pendingLoad.cancel(false);
+                    pendingLoad = null;
+                    pendingFile = null;
+                }
+            }
         });
 
         // 9. Thiết lập các giá trị ban đầu và binding
+        engineChoice.getItems().setAll(RenderEngine.values());
+        engineChoice.setValue(RenderEngine.IMAGEMAGICK);
+        outputFormatChoice.getItems().setAll(OutputOptions.Format.values());
+        outputFormatChoice.setValue(OutputOptions.defaults().format());
         statusLabel.setText("Initialized. Load a template to begin.");
+        initRenderQueue();
+        // Tệp khung bị sửa trên đĩa (ví dụ designer xuất lại): tải lại lên vùng làm việc nếu đó là khung đang dùng
+        TemplateAssetCache.getDefault().addInvalidationListener(file -> Platform.runLater(() -> {
+            if (isCurrentTemplate(file)) {
+                loadTemplate(file);
+            }
+        }));
+        // Bảng chẩn đoán chỉ được cập nhật khi đang mở, để không tốn công định dạng số liệu khi không ai xem
+        diagnosticsPane.expandedProperty().addListener((obs, wasExpanded, expanded) -> {
+            if (expanded) {
+                refreshDiagnostics();
+            }
+        });
 
         templateImageView.fitWidthProperty().bind(templatePane.widthProperty());
         templateImageView.fitHeightProperty().bind(templatePane.heightProperty());
@@ -341,30 +458,129 @@ public class PhotoBoothController {
     }
 
     /**
-     * Tạo một đối tượng ảnh ResizableNode mới và thêm nó vào vùng làm việc.
+     * Đặt một ảnh lên canvas (thêm vào mô hình; node hiển thị được tạo trong {@link #syncCanvas}) và chọn nó.
      * @param imageFile File ảnh để hiển thị.
      * @param x Tọa độ X ban đầu.
      * @param y Tọa độ Y ban đầu.
      * @param width Chiều rộng ban đầu (-1 để tự động tính).
-     * @param height Chiều cao ban đầu (-1 để tự động tính).
+     * @param height Chiều cao ban đầu (-1 để tự động tính theo tỷ lệ ảnh).
      */
     private void updateImagePosition(File imageFile, double x, double y, double width, double height) {
-        Image image = new Image(imageFile.toURI().toString());
-
+        Dimension size = photoSize(imageFile);
+        if (size == null) {
+            return;
+        }
         double initialImageWidth = (width > 0) ? width : templatePane.getPrefWidth() / 4.0;
-        double initialImageHeight = (height > 0) ? height : -1; // Để ResizableNode tự tính
+        double initialImageHeight = (height > 0) ? height : initialImageWidth * size.height / size.width;
+        String id = canvas.addPhoto(imageFile, new ImagePosition(x, y, initialImageWidth, initialImageHeight));
+        selectCanvasItem(id);
+    }
+
+    /**
+     * @return Kích thước hiển thị của ảnh (đã đọc khi nạp thư mục nhập, hoặc đọc header), hoặc null nếu không đọc được.
+     */
+    private static Dimension photoSize(File imageFile) {
+        Dimension size = FolderCatalog.getDefault().dimensions(imageFile);
+        if (size == null) {
+            try {
+                size = ImageDecoder.readDisplayDimensions(imageFile);
+            } catch (IOException e) {
+                System.err.println("Không đọc được kích thước ảnh " + imageFile.getName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return size;
+    }
 
-        ResizableNode resizableNode = new ResizableNode(image, this::selectNode, templatePane.scaleXProperty(), initialImageWidth, this::disablePanePanning, this::enablePanePanning);
+    /**
+     * Cập nhật các node trên overlayPane theo mô hình canvas: tạo node cho phần tử mới, bỏ node của phần tử đã bị xóa,
+     * đặt lại vị trí của phần tử đã đổi và sắp xếp theo thứ tự vẽ. Mọi tra cứu đi qua id, không duyệt đồ thị node.
+     */
+    private void syncCanvas(CanvasSnapshot before, CanvasSnapshot after) {
+        for (CanvasItem old : before.items()) {
+            if (after.get(old.id()) == null) {
+                Node node = canvasNodes.remove(old.id());
+                overlayPane.getChildren().remove(node);
+                if (node == selectedNode) {
+                    selectedNode = null;
+                }
+            }
+        }
+        boolean reorder = false;
+        int index = 0;
+        for (CanvasItem item : after.items()) {
+            Node node = canvasNodes.get(item.id());
+            if (node == null) {
+                node = createCanvasNode(item);
+                canvasNodes.put(item.id(), node);
+                overlayPane.getChildren().add(node);
+            } else if (!item.placement().equals(before.get(item.id()).placement())) {
+                applyPlacement(node, item.placement());
+            }
+            reorder |= index >= overlayPane.getChildren().size() || overlayPane.getChildren().get(index) != node;
+            index++;
+        }
+        if (reorder) {
+            // toFront hoán vị trong cùng cha, node không bị gỡ khỏi scene (ảnh hiển thị không phải nạp lại)
+            for (CanvasItem item : after.items()) {
+                canvasNodes.get(item.id()).toFront();
+            }
+        }
+        updateSlidersForSelectedNode();
+        undoButton.setDisable(!canvas.canUndo());
+        redoButton.setDisable(!canvas.canRedo());
+    }
 
-        if (initialImageHeight > 0) {
-            resizableNode.setPrefHeight(initialImageHeight);
+    /** Tạo node hiển thị cho một phần tử của canvas: ResizableNode cho ảnh, hình chữ nhật nét đứt cho ô giữ chỗ. */
+    private Node createCanvasNode(CanvasItem item) {
+        ImagePosition pos = item.placement();
+        if (item.isSlot()) {
+            Rectangle placeholder = new Rectangle(pos.x(), pos.y(), pos.width(), pos.height());
+            placeholder.setFill(Color.web("#007bff", 0.3)); // Màu xanh mờ
+            placeholder.setStroke(Color.web("#007bff"));
+            placeholder.getStrokeDashArray().addAll(10d, 10d);
+            placeholder.setId(item.id());
+            return placeholder;
         }
+        // Ảnh hiển thị được giải mã nền theo kích thước trên màn hình (CanvasProxy); ảnh kết quả vẫn dựng từ tệp gốc
+        Dimension size = photoSize(item.file());
+        double ratio = size != null ? (double) size.width / size.height : pos.width() / pos.height();
+        int fullSize = size != null ? Math.max(size.width, size.height) : (int) Math.max(pos.width(), pos.height());
+        ResizableNode resizableNode = new ResizableNode(ratio, this::selectNode, templatePane.scaleXProperty(), pos.width(), this::disablePanePanning, () -> {
+            enablePanePanning();
+            // Một lần kéo hoặc đổi kích thước là một bước hoàn tác
+            if (selectedNode != null) {
+                canvas.place(selectedNode.getId(), placementOf(selectedNode), false);
+            }
+        });
+        CanvasProxy.attach(item.file(), resizableNode, templatePane.scaleXProperty(), fullSize);
+        resizableNode.setId(item.id());
+        applyPlacement(resizableNode, pos);
+        return resizableNode;
+    }
 
-        resizableNode.setLayoutX(x);
-        resizableNode.setLayoutY(y);
-        resizableNode.setId(imageFile.getName());
-        overlayPane.getChildren().add(resizableNode);
-        selectNode(resizableNode);
+    private static void applyPlacement(Node node, ImagePosition pos) {
+        if (node instanceof Rectangle rectangle) {
+            rectangle.setX(pos.x());
+            rectangle.setY(pos.y());
+            rectangle.setWidth(pos.width());
+            rectangle.setHeight(pos.height());
+        } else if (node instanceof Region region) {
+            region.setLayoutX(pos.x());
+            region.setLayoutY(pos.y());
+            region.setPrefWidth(pos.width());
+            region.setPrefHeight(pos.height());
+        }
+    }
+
+    private static ImagePosition placementOf(ResizableNode node) {
+        return new ImagePosition(node.getLayoutX(), node.getLayoutY(), node.getPrefWidth(), node.getPrefHeight());
+    }
+
+    private void selectCanvasItem(String id) {
+        if (canvasNodes.get(id) instanceof ResizableNode node) {
+            selectNode(node);
+        }
     }
 
     /**
@@ -382,42 +598,15 @@ public class PhotoBoothController {
         // Nếu có node mới được chọn
         if (selectedNode != null) {
             selectedNode.setSelected(true);
-            selectedNode.toFront(); // FIX: Đưa node được chọn lên trên cùng!
+            canvas.bringToFront(selectedNode.getId()); // FIX: Đưa node được chọn lên trên cùng!
             updateSlidersForSelectedNode();
         }
     }
 
-    private java.util.Optional<ImageView> findImageViewByName(String name) {
-        return overlayPane.getChildren().stream()
-                .filter(node -> node instanceof ImageView && name.equals(node.getId()))
-                .map(node -> (ImageView) node)
-                .findFirst();
-    }
-
-    private File findFileByName(String name) {
-        return imageFiles.stream()
-                .filter(f -> f.getName().equals(name))
-                .findFirst()
-                .orElse(null);
-    }
-
-    private void highlightImage(String imageName) {
-        overlayPane.getChildren().forEach(node -> {
-            if (node instanceof ImageView) {
-                node.setEffect(node.getId().equals(imageName) ? new javafx.scene.effect.DropShadow() : null);
-            }
-        });
-    }
-
     private static double clamp(double value, double min, double max) {
         return Math.max(min, Math.min(max, value));
     }
 
-    private void updateSliders(double x, double y) {
-        xPosSlider.setValue(x);
-        yPosSlider.setValue(y);
-    }
-
     // --- Các phương thức xử lý sự kiện (handle) ---
 
     @FXML
@@ -427,30 +616,74 @@ public class PhotoBoothController {
         File file = chooser.showOpenDialog(templatePane.getScene().getWindow());
         if (file != null) {
             psdFrameField.setText(file.getAbsolutePath());
-            Image image = new Image(file.toURI().toString());
+            loadTemplate(file);
+        }
+    }
 
-            // FIX: Đặt kích thước của vùng làm việc (pane) theo kích thước thực của ảnh
-            double width = image.getWidth();
-            double height = image.getHeight();
-            templatePane.setPrefSize(width, height);
-            overlayPane.setPrefSize(width, height); // Cả overlay cũng phải theo
+    /**
+     * Tải ảnh khung lên vùng làm việc mà không chặn luồng giao diện.
+     * Kích thước được đọc ngay từ header để dựng layout, còn điểm ảnh được giải mã trên luồng nền (có tiến độ)
+     * vào bản dùng chung với engine dựng ảnh.
+     */
+    private void loadTemplate(File file) {
+        final double width;
+        final double height;
+        try {
+            Dimension size = TemplateAssetCache.probe(file);
+            width = size.width;
+            height = size.height;
+        } catch (IOException e) {
+            statusLabel.setText("Error reading template: " + e.getMessage());
+            System.err.println("Không thể đọc ảnh khung: " + e.getMessage());
+            return;
+        }
 
+        // FIX: Đặt kích thước của vùng làm việc (pane) theo kích thước thực của ảnh
+        templatePane.setPrefSize(width, height);
+        overlayPane.setPrefSize(width, height); // Cả overlay cũng phải theo
+        xPosSlider.setMax(width);
+        yPosSlider.setMax(height);
+        statusLabel.setText("Loading template: " + file.getName() + "...");
+
+        // Tiến độ đến từ luồng giải mã; chỉ đẩy lên giao diện khi tăng thêm ít nhất 5% để không làm ngập hàng đợi sự kiện
+        final int[] lastPercent = {-1};
+        TemplateAssetCache.getDefault().load(file, fraction -> {
+            int percent = (int) (fraction * 100);
+            if (percent >= lastPercent[0] + 5 || percent == 100) {
+                lastPercent[0] = percent;
+                Platform.runLater(() -> {
+                    if (isCurrentTemplate(file) && percent < 100) {
+                        statusLabel.setText("Loading template: " + file.getName() + " " + percent + "%");
+                    }
+                });
+            }
+        }).whenComplete((asset, error) -> Platform.runLater(() -> {
+            if (!isCurrentTemplate(file)) {
+                return; // Người dùng đã chọn khung khác trong lúc đang giải mã
+            }
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                statusLabel.setText("Error loading template: " + cause.getMessage());
+                System.err.println("Không thể giải mã ảnh khung: " + cause.getMessage());
+                return;
+            }
+            // Bọc trực tiếp mảng điểm ảnh của bản dùng chung (ARGB nhân trước alpha), không sao chép
+            PixelBuffer<IntBuffer> buffer = new PixelBuffer<>(asset.width(), asset.height(), IntBuffer.wrap(asset.pixels()), PixelFormat.getIntArgbPreInstance());
             // FIX: Đảm bảo ImageView giữ đúng tỷ lệ khung hình
             templateImageView.setPreserveRatio(true);
-            templateImageView.setImage(image);
-
-            // ImageView sẽ tự động vừa với kích thước của templatePane nhờ binding
-            // Chúng ta sẽ thêm binding này trong initialize()
-
-            xPosSlider.setMax(width);
-            yPosSlider.setMax(height);
-            statusLabel.setText("Template loaded: " + width + "x" + height);
+            // ImageView sẽ tự động vừa với kích thước của templatePane nhờ binding trong initialize()
+            templateImageView.setImage(new WritableImage(buffer));
+            statusLabel.setText("Template loaded: " + asset.width() + "x" + asset.height());
 
             Platform.runLater(() -> {
                 scrollPane.setHvalue(0.5);
                 scrollPane.setVvalue(0.5);
             });
-        }
+        }));
+    }
+
+    private boolean isCurrentTemplate(File file) {
+        return new File(psdFrameField.getText()).getAbsoluteFile().equals(file.getAbsoluteFile());
     }
 
     @FXML
@@ -468,39 +701,77 @@ public class PhotoBoothController {
         DirectoryChooser chooser = new DirectoryChooser();
         File dir = chooser.showDialog(templatePane.getScene().getWindow());
         if (dir != null) {
-            importFolderField.setText(dir.getAbsolutePath());
-            // Load initial images
-            File[] files = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".jpg") || name.toLowerCase().endsWith(".png"));
-            if (files != null) {
-                Platform.runLater(() -> {
-                    imageFiles.setAll(files);
-                    System.out.println("Loaded " + files.length + " images from import folder: " + dir.getAbsolutePath());
-                });
-            } else {
-                System.out.println("No images found in import folder: " + dir.getAbsolutePath());
+            watchImportRoots(List.of(dir.toPath().toAbsolutePath()));
+        }
+    }
+
+    /**
+     * Thêm một thư mục nhập nữa (ví dụ thư mục của máy ảnh thứ hai) vào danh sách đang theo dõi.
+     */
+    @FXML
+    private void handleAddImport() {
+        DirectoryChooser chooser = new DirectoryChooser();
+        File dir = chooser.showDialog(templatePane.getScene().getWindow());
+        if (dir != null) {
+            List<Path> roots = new ArrayList<>(folderWatcher != null ? folderWatcher.getRoots() : List.of());
+            Path root = dir.toPath().toAbsolutePath();
+            if (!roots.contains(root)) {
+                roots.add(root);
             }
-            // Initialize FolderWatcher
-            if (folderWatcher != null) {
-                folderWatcher.stop();
+            watchImportRoots(roots);
+        }
+    }
+
+    /**
+     * Nạp ảnh có sẵn trong các thư mục nhập (gồm cả thư mục con) và thay watcher cũ bằng watcher theo dõi các thư mục này.
+     */
+    private void watchImportRoots(List<Path> roots) {
+        String folders = roots.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator));
+        importFolderField.setText(folders);
+        // Nạp ảnh có sẵn trên luồng nền, đẩy vào danh sách theo từng đợt qua bộ đệm nhập (cũng bỏ được file trùng
+        // với watcher); lần nạp trước chưa xong sẽ dừng khi thấy thế hệ đã đổi
+        int generation = importGeneration.incrementAndGet();
+        BooleanSupplier superseded = () -> importGeneration.get() != generation;
+        imageIngest.discardPending(generation);
+        imageFiles.clear();
+        statusLabel.setText("Loading images...");
+        importExecutor.submit(() -> {
+            int loaded = 0;
+            for (Path root : roots) {
+                if (superseded.getAsBoolean()) {
+                    return;
+                }
+                try {
+                    // Bộ đệm tự bỏ đợt của thế hệ cũ, kể cả đợt báo đến ngay sau khi thế hệ vừa đổi
+                    loaded += FolderCatalog.getDefault().scan(root, true,
+                            chunk -> imageIngest.offerAll(chunk, generation), superseded);
+                } catch (IOException e) {
+                    System.err.println("Không đọc được thư mục " + root + ": " + e.getMessage());
+                }
             }
-            try {
-                folderWatcher = new FolderWatcher(dir.getAbsolutePath(), file -> {
-                    Platform.runLater(() -> {
-                        File fileToAdd = file.toFile();
-                        if (!imageFiles.contains(fileToAdd)) {
-                            imageFiles.add(fileToAdd);
-                            System.out.println("FolderWatcher added: " + file.getFileName().toString());
-                        }
-                    });
-                });
-                if (isRunning) {
-                    folderWatcher.start();
-                    System.out.println("FolderWatcher started for: " + dir.getAbsolutePath());
+            int total = loaded;
+            Platform.runLater(() -> {
+                if (!superseded.getAsBoolean()) {
+                    statusLabel.setText("Loaded " + total + " images");
+                    System.out.println("Loaded " + total + " images from import folders: " + folders);
                 }
-            } catch (IOException e) {
-                System.err.println("Failed to initialize FolderWatcher: " + e.getMessage());
-                statusLabel.setText("Error: Failed to watch folder");
+            });
+        });
+        // Initialize FolderWatcher
+        if (folderWatcher != null) {
+            folderWatcher.stop();
+        }
+        try {
+            // Ảnh mới được gom theo lô và thêm vào danh sách tối đa một lần mỗi nhịp vẽ
+            folderWatcher = new FolderWatcher(roots, true,
+                    file -> imageIngest.offer(file.toFile(), generation));
+            if (isRunning) {
+                folderWatcher.start();
+                System.out.println("FolderWatcher started for: " + importFolderField.getText());
             }
+        } catch (IOException e) {
+            System.err.println("Failed to initialize FolderWatcher: " + e.getMessage());
+            statusLabel.setText("Error: Failed to watch folder");
         }
     }
 
@@ -579,76 +850,155 @@ public class PhotoBoothController {
                 statusLabel.setText("Error: Template file not found!");
                 return;
             }
-            BufferedImage bimg = ImageIO.read(templateFile);
-            templateWidth = bimg.getWidth();
-            templateHeight = bimg.getHeight();
+            // Chỉ đọc header (IHDR với PNG) để lấy kích thước, không giải mã ảnh khung trên luồng giao diện
+            Dimension templateSize = TemplateAssetCache.probe(templateFile);
+            templateWidth = templateSize.width;
+            templateHeight = templateSize.height;
+            // Kiểm tra bản giải mã dùng chung: nếu tệp khung đã bị sửa, vùng làm việc được tải lại và engine sẽ dùng bản mới
+            TemplateAssetCache.getDefault().load(templateFile, null);
         } catch (IOException e) {
             statusLabel.setText("Error reading template file dimensions.");
             e.printStackTrace();
             return;
         }
 
-        // Bước 1: Lấy danh sách tất cả các node ảnh hợp lệ
-        List<ResizableNode> nodes = overlayPane.getChildren().stream()
-                .filter(node -> node instanceof ResizableNode)
-                .map(node -> (ResizableNode) node)
-                .collect(Collectors.toList());
+        // Bước 1: Lấy các ảnh đã đặt từ bản chụp của mô hình canvas (theo thứ tự vẽ), không duyệt các node
+        List<CanvasItem> photos = canvas.snapshot().photos();
 
-        if (nodes.isEmpty()) {
+        if (photos.isEmpty()) {
             statusLabel.setText("No images to process. Please drag images onto the template.");
             return;
         }
 
-        // Bước 2: Từ danh sách nodes, tạo ra danh sách VỊ TRÍ (positions)
-        List<ImagePosition> positions = nodes.stream()
-                .map(node -> new ImagePosition(
-                        node.getLayoutX(),
-                        node.getLayoutY(),
-                        node.getPrefWidth(),
-                        node.getPrefHeight()
-                ))
-                .collect(Collectors.toList());
-
-        // Bước 3: Từ danh sách nodes, tạo ra danh sách FILE ẢNH (imagesToProcess)
-        List<File> imagesToProcess = nodes.stream()
-                .map(node -> findFileByName(node.getId()))
-                .filter(Objects::nonNull) // Loại bỏ các file không tìm thấy (null)
-                .collect(Collectors.toList());
+        // Bước 2: Tạo danh sách VỊ TRÍ (positions) và FILE ẢNH (imagesToProcess) song song với nhau,
+        // bỏ qua các ảnh không còn trên đĩa để vị trí và ảnh luôn khớp nhau
+        List<ImagePosition> positions = new ArrayList<>();
+        List<File> imagesToProcess = new ArrayList<>();
+        for (CanvasItem photo : photos) {
+            if (!photo.file().isFile()) {
+                continue;
+            }
+            imagesToProcess.add(photo.file());
+            positions.add(photo.placement());
+        }
 
         // Kiểm tra lại sau khi đã lọc
-        if (nodes.size() != imagesToProcess.size()){
-            System.err.println("Warning: Some images on canvas could not be found in the image list.");
+        if (photos.size() != imagesToProcess.size()){
+            System.err.println("Warning: Some images on canvas could not be found on disk.");
+        }
+        if (imagesToProcess.isEmpty()) {
+            statusLabel.setText("None of the images on the canvas could be found.");
+            return;
         }
 
-        statusLabel.setText("Processing " + positions.size() + " images...");
+        // Engine dựng ảnh được chọn cho lần xuất này
+        final RenderEngine engine = engineChoice.getValue() != null ? engineChoice.getValue() : RenderEngine.IMAGEMAGICK;
+        // PNG cho bản in, JPEG cho bản gửi khách; mức nén / chất lượng lấy từ cấu hình mặc định
+        final OutputOptions outputOptions = outputFormatChoice.getValue() != null
+                ? OutputOptions.defaults().withFormat(outputFormatChoice.getValue())
+                : OutputOptions.defaults();
 
-        // Tạo một Task để chạy việc xử lý trên luồng nền
-        Task<File> processingTask = new Task<>() {
-            @Override
-            protected File call() throws Exception {
-                ImageProcessor processor = new ImageProcessor();
-                // Truyền thêm templateWidth và templateHeight vào phương thức
-                return processor.processImages(imagesToProcess, presetFile, templateFile, templateWidth, templateHeight, exportFolder, positions);
+        if (renderQueue == null) {
+            statusLabel.setText("Error: Render queue is not available.");
+            return;
+        }
+        // Công việc được ghi vào nhật ký trước khi chạy, nên không bị mất nếu ứng dụng bị tắt giữa chừng
+        RenderJob job = RenderJob.create(imagesToProcess, positions, templateFile, presetFile, exportFolder,
+                templateWidth, templateHeight, engine, outputOptions.format());
+        try {
+            renderQueue.submit(job);
+            statusLabel.setText("Queued job " + job.shortId() + " (" + positions.size() + " images)");
+        } catch (IOException e) {
+            statusLabel.setText("Error: " + e.getMessage());
+            System.err.println("Could not queue render job:");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Mở hàng đợi dựng ảnh và khôi phục các công việc chưa hoàn thành từ lần chạy trước.
+     */
+    private void initRenderQueue() {
+        jobListView.setItems(jobDescriptions);
+        try {
+            renderQueue = new RenderQueue(RenderQueue.defaultJournalPath(), RenderQueue.defaultWorkerCount());
+            // Listener được gọi từ luồng worker, cập nhật giao diện trên luồng JavaFX
+            renderQueue.addListener(state -> Platform.runLater(() -> onJobStateChanged(state)));
+            int recovered = renderQueue.recover();
+            if (recovered > 0) {
+                statusLabel.setText("Recovered " + recovered + " unfinished render job(s).");
             }
-        };
+        } catch (IOException e) {
+            System.err.println("Không thể mở hàng đợi dựng ảnh: " + e.getMessage());
+            queueStatusLabel.setText("Queue unavailable");
+        }
+        refreshQueueView();
+    }
 
-        // Xử lý khi Task thành công
-        processingTask.setOnSucceeded(event -> {
-            File outputFile = processingTask.getValue();
-            statusLabel.setText("Success! Output saved to: " + outputFile.getName());
+    private void onJobStateChanged(JobState state) {
+        if (state.status() == JobStatus.DONE) {
+            RenderResult result = state.result();
+            File outputFile = result.outputFile();
+            statusLabel.setText("Success! Output saved to: " + outputFile.getName() + " (" + result.totalDuration().toMillis() + " ms)");
             System.out.println("Processing finished successfully. Output: " + outputFile.getAbsolutePath());
-        });
+            // In thời gian xử lý từng ô ảnh để theo dõi hiệu quả xử lý song song
+            for (SlotTiming timing : result.slotTimings()) {
+                System.out.println("  Slot " + timing.slotIndex() + " (" + timing.image().getName() + "): " + timing.duration().toMillis() + " ms");
+            }
+            TileCache.Stats cacheStats = TileCache.getDefault().stats();
+            System.out.println("Tile cache: " + cacheStats.memoryHits() + " memory hits, " + cacheStats.diskHits() + " disk hits, " + cacheStats.misses() + " misses");
+        } else if (state.status() == JobStatus.FAILED) {
+            statusLabel.setText("Error: " + state.error());
+            System.err.println("Processing failed for job " + state.job().shortId() + ": " + state.error());
+        }
+        refreshQueueView();
+        if (state.status().isFinished() && diagnosticsPane.isExpanded()) {
+            refreshDiagnostics();
+        }
+    }
 
-        // Xử lý khi Task thất bại
-        processingTask.setOnFailed(event -> {
-            Throwable e = processingTask.getException();
-            statusLabel.setText("Error: " + e.getMessage());
-            System.err.println("Processing failed:");
-            e.printStackTrace();
-        });
+    /** Cập nhật độ sâu hàng đợi và danh sách trạng thái từng công việc (mới nhất ở trên cùng). */
+    private void refreshQueueView() {
+        if (renderQueue == null) {
+            return;
+        }
+        queueStatusLabel.setText("Queue: " + renderQueue.depth() + " pending, " + renderQueue.getWorkerCount() + " worker(s)");
+        List<String> lines = new ArrayList<>();
+        for (JobState state : renderQueue.snapshot()) {
+            lines.add(0, state.describe());
+        }
+        jobDescriptions.setAll(lines);
+    }
 
-        // Khởi chạy Task
-        new Thread(processingTask).start();
+    /** Hiển thị p50/p95/p99 của từng giai đoạn dựng ảnh và các bộ đếm hiện tại. */
+    @FXML
+    private void refreshDiagnostics() {
+        diagnosticsArea.setText(MetricsRegistry.getDefault().snapshot().format());
+    }
+
+    /** Ghi bảng số liệu ra tệp văn bản để gửi kèm khi báo cáo một lần dựng ảnh chậm. */
+    @FXML
+    private void handleDumpDiagnostics() {
+        FileChooser chooser = new FileChooser();
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Text Files", "*.txt"));
+        chooser.setInitialFileName("photobooth-metrics-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".txt");
+        File exportDir = new File(exportFolderField.getText());
+        if (exportDir.isDirectory()) {
+            chooser.setInitialDirectory(exportDir);
+        }
+        File file = chooser.showSaveDialog(templatePane.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        try {
+            MetricsRegistry.getDefault().dump(file.toPath());
+            refreshDiagnostics();
+            statusLabel.setText("Metrics saved to: " + file.getName());
+            System.out.println("Metrics dumped to: " + file.getAbsolutePath());
+        } catch (IOException e) {
+            statusLabel.setText("Error saving metrics: " + e.getMessage());
+            System.err.println("Không thể ghi tệp số liệu: " + e.getMessage());
+        }
     }
 
     // Phương thức xử lý sự kiện click
@@ -677,10 +1027,8 @@ public class PhotoBoothController {
 
     @FXML
     private void handleSaveConfig() {
-        List<ImagePosition> currentPositions = overlayPane.getChildren().stream()
-                .filter(node -> node instanceof ResizableNode)
-                .map(node -> (ResizableNode) node)
-                .map(node -> new ImagePosition(node.getLayoutX(), node.getLayoutY(), node.getPrefWidth(), node.getPrefHeight()))
+        List<ImagePosition> currentPositions = canvas.snapshot().photos().stream()
+                .map(CanvasItem::placement)
                 .collect(Collectors.toList());
 
         if (currentPositions.isEmpty()) {
@@ -709,11 +1057,25 @@ public class PhotoBoothController {
 
     @FXML
     private void handleClearCanvas() {
-        // Xóa cả ảnh và placeholder
-        overlayPane.getChildren().removeIf(node -> node instanceof ResizableNode || node.getId() != null && node.getId().equals(PLACEHOLDER_ID));
+        // Xóa cả ảnh và placeholder (có thể hoàn tác)
+        canvas.clear();
         statusLabel.setText("Canvas cleared.");
     }
 
+    @FXML
+    private void handleUndo() {
+        if (canvas.undo()) {
+            statusLabel.setText("Undo");
+        }
+    }
+
+    @FXML
+    private void handleRedo() {
+        if (canvas.redo()) {
+            statusLabel.setText("Redo");
+        }
+    }
+
     private void loadAndDisplayConfigs() {
         savedConfigNames.clear();
         List<String> names = configManager.loadAllConfigs().stream()
@@ -723,16 +1085,8 @@ public class PhotoBoothController {
     }
 
     private void applyConfigAsPlaceholders(TemplateConfig config) {
-        handleClearCanvas(); // Dọn dẹp trước khi áp dụng config mới
-
-        for (com.photobooth.config.ImagePosition pos : config.positions()) {
-            Rectangle placeholder = new Rectangle(pos.x(), pos.y(), pos.width(), pos.height());
-            placeholder.setFill(Color.web("#007bff", 0.3)); // Màu xanh mờ
-            placeholder.setStroke(Color.web("#007bff"));
-            placeholder.getStrokeDashArray().addAll(10d, 10d);
-            placeholder.setId(PLACEHOLDER_ID); // Đặt ID để nhận dạng
-            overlayPane.getChildren().add(placeholder);
-        }
+        // Thay toàn bộ canvas bằng các ô giữ chỗ của config, trong một bước hoàn tác
+        canvas.loadSlots(config.positions());
         statusLabel.setText("Applied config: " + config.name());
     }
 
@@ -743,41 +1097,33 @@ public class PhotoBoothController {
         Dragboard db = event.getDragboard();
         boolean success = false;
         if (db.hasString()) {
-            String imageName = db.getString();
-            File imageFile = findFileByName(imageName);
-            if (imageFile == null) {
+            // Ô ảnh trong danh sách đặt đường dẫn đầy đủ của file vào dragboard
+            File imageFile = new File(db.getString());
+            if (!imageFile.isFile()) {
                 event.setDropCompleted(false);
                 event.consume();
                 return;
             }
 
-            Rectangle targetPlaceholder = null;
+            CanvasItem targetPlaceholder = null;
             double dropX = event.getX();
             double dropY = event.getY();
 
-            // Duyệt qua các node để tìm placeholder bị thả vào
-            for (Node node : overlayPane.getChildren()) {
-                if (node instanceof Rectangle && PLACEHOLDER_ID.equals(node.getId())) {
-                    if (node.getBoundsInParent().contains(dropX, dropY)) {
-                        targetPlaceholder = (Rectangle) node;
-                        break;
-                    }
+            // Tìm placeholder bị thả vào trong mô hình (trên cùng trước)
+            List<CanvasItem> slots = canvas.snapshot().slots();
+            for (int i = slots.size() - 1; i >= 0; i--) {
+                ImagePosition pos = slots.get(i).placement();
+                if (dropX >= pos.x() && dropX <= pos.x() + pos.width() && dropY >= pos.y() && dropY <= pos.y() + pos.height()) {
+                    targetPlaceholder = slots.get(i);
+                    break;
                 }
             }
 
-            final Rectangle finalTargetPlaceholder = targetPlaceholder; // Cần biến final để dùng trong lambda
+            final CanvasItem finalTargetPlaceholder = targetPlaceholder; // Cần biến final để dùng trong lambda
             Platform.runLater(() -> {
                 if (finalTargetPlaceholder != null) {
-                    // SNAP vào vị trí placeholder
-                    updateImagePosition(
-                            imageFile,
-                            finalTargetPlaceholder.getX(),
-                            finalTargetPlaceholder.getY(),
-                            finalTargetPlaceholder.getWidth(),
-                            finalTargetPlaceholder.getHeight()
-                    );
-                    // Xóa placeholder sau khi đã snap thành công
-                    overlayPane.getChildren().remove(finalTargetPlaceholder);
+                    // SNAP vào vị trí placeholder: ô được thay bằng ảnh trong một bước hoàn tác
+                    selectCanvasItem(canvas.fillSlot(finalTargetPlaceholder.id(), imageFile));
                 } else {
                     Point2D localCoords = templatePane.sceneToLocal(event.getSceneX(), event.getSceneY());
                     updateImagePosition(imageFile, localCoords.getX(), localCoords.getY(), -1, -1);
@@ -795,13 +1141,24 @@ public class PhotoBoothController {
         MenuItem deleteItem = new MenuItem("Delete");
         deleteItem.setOnAction(e -> {
             imageFiles.remove(file);
-            findImageViewByName(file.getName()).ifPresent(iv -> overlayPane.getChildren().remove(iv));
+            canvas.removePhotosOf(file);
             System.out.println("Deleted image: " + file.getName());
         });
         menu.getItems().add(deleteItem);
         return menu;
     }
 
+    /**
+     * @return Cạnh dài của ảnh thu nhỏ tính bằng điểm ảnh thực trên màn hình (nhân hệ số phóng của màn hình HiDPI).
+     */
+    private static int thumbnailPixels(Node node) {
+        double scale = 1;
+        if (node.getScene() != null && node.getScene().getWindow() != null) {
+            scale = node.getScene().getWindow().getOutputScaleX();
+        }
+        return (int) Math.ceil(THUMBNAIL_SIZE * scale);
+    }
+
     public void cleanup() {
         if (debounceExecutor != null) {
             debounceExecutor.shutdownNow();
@@ -812,6 +1169,12 @@ public class PhotoBoothController {
         if (folderWatcher != null) {
             folderWatcher.stop();
         }
+        importGeneration.incrementAndGet();
+        importExecutor.shutdownNow();
+        thumbnails.shutdown();
+        if (renderQueue != null) {
+            renderQueue.shutdown(); // Công việc chưa xong vẫn nằm trong nhật ký, sẽ chạy lại khi mở ứng dụng
+        }
     }
 
     /*
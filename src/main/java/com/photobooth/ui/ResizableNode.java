@@ -5,6 +5,8 @@ import javafx.geometry.Point2D;
 import javafx.scene.Cursor;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.layout.Background;
+import javafx.scene.layout.BackgroundFill;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
@@ -18,8 +20,13 @@ import java.util.function.Consumer;
  */
 public class ResizableNode extends Pane {
 
+    /** Nền xám hiển thị khi ảnh chưa được nạp */
+    private static final Background PLACEHOLDER = new Background(new BackgroundFill(Color.gray(0.85), null, null));
+
     /** ImageView để hiển thị hình ảnh thực tế */
     private final ImageView imageView;
+    /** Tỷ lệ rộng/cao của ảnh gốc, giữ cố định khi ảnh hiển thị được thay bằng bản có độ phân giải khác */
+    private final double aspectRatio;
     /** Thuộc tính chỉ đọc (read-only) để lấy tỷ lệ thu phóng hiện tại của khung nhìn chính */
     private final ReadOnlyDoubleProperty viewScale;
 
@@ -45,21 +52,37 @@ public class ResizableNode extends Pane {
      * @param onDragFinished Callback để thông báo kết thúc kéo.
      */
     public ResizableNode(Image image, Consumer<ResizableNode> onSelected, ReadOnlyDoubleProperty viewScale, double initialWidth, Runnable onDragStarted, Runnable onDragFinished) {
+        this(image.getWidth() / image.getHeight(), onSelected, viewScale, initialWidth, onDragStarted, onDragFinished);
+        setImage(image);
+    }
+
+    /**
+     * Hàm khởi tạo cho một đối tượng ảnh mà ảnh hiển thị sẽ được nạp sau (ví dụ bản xem trước giải mã nền,
+     * xem {@link CanvasProxy}). Trong lúc chờ, node hiện một nền xám.
+     * @param aspectRatio Tỷ lệ rộng/cao của ảnh gốc (đã tính hướng EXIF).
+     * @param onSelected Callback để thông báo cho controller khi node được chọn.
+     * @param viewScale Thuộc tính tỷ lệ thu phóng của canvas.
+     * @param initialWidth Chiều rộng ban đầu của node.
+     * @param onDragStarted Callback để thông báo bắt đầu kéo.
+     * @param onDragFinished Callback để thông báo kết thúc kéo.
+     */
+    public ResizableNode(double aspectRatio, Consumer<ResizableNode> onSelected, ReadOnlyDoubleProperty viewScale, double initialWidth, Runnable onDragStarted, Runnable onDragFinished) {
         this.onSelected = onSelected;
         this.viewScale = viewScale;
         this.onDragStarted = onDragStarted;
         this.onDragFinished = onDragFinished;
+        this.aspectRatio = aspectRatio;
 
         // Khởi tạo ImageView và gắn kết (bind) kích thước của nó với kích thước của Pane này
         // Khi Pane thay đổi kích thước, ImageView sẽ tự động thay đổi theo
-        this.imageView = new ImageView(image);
+        this.imageView = new ImageView();
         imageView.fitWidthProperty().bind(this.prefWidthProperty());
         imageView.fitHeightProperty().bind(this.prefHeightProperty());
+        setBackground(PLACEHOLDER);
 
         // Tính toán và thiết lập kích thước ban đầu trong khi vẫn giữ đúng tỷ lệ khung hình
-        double ratio = image.getWidth() / image.getHeight();
         setPrefWidth(initialWidth);
-        setPrefHeight(initialWidth / ratio);
+        setPrefHeight(initialWidth / aspectRatio);
 
         // Thêm ImageView vào làm con của Pane này
         getChildren().add(imageView);
@@ -68,6 +91,25 @@ public class ResizableNode extends Pane {
         enableInteraction();
     }
 
+    /**
+     * Thay ảnh hiển thị (ví dụ bằng bản có độ phân giải phù hợp hơn với mức thu phóng hiện tại).
+     * @param image Ảnh mới, cùng tỷ lệ với ảnh gốc; null để bỏ ảnh và hiện nền xám.
+     */
+    public void setImage(Image image) {
+        imageView.setImage(image);
+        setBackground(image == null ? PLACEHOLDER : null);
+    }
+
+    /** @return Ảnh đang hiển thị, hoặc null nếu chưa nạp xong. */
+    public Image getImage() {
+        return imageView.getImage();
+    }
+
+    /** @return Tỷ lệ rộng/cao của ảnh gốc. */
+    public double getAspectRatio() {
+        return aspectRatio;
+    }
+
     /**
      * Thiết lập các trình xử lý sự kiện chuột chính cho việc kéo-thả di chuyển.
      */
@@ -219,7 +261,7 @@ public class ResizableNode extends Pane {
                 }
 
                 // Duy trì tỷ lệ khung hình gốc của ảnh.
-                double ratio = imageView.getImage().getWidth() / imageView.getImage().getHeight();
+                double ratio = aspectRatio;
                 if (cursor == Cursor.N_RESIZE || cursor == Cursor.S_RESIZE) {
                     newWidth = newHeight * ratio; // Kéo dọc -> chiều cao quyết định chiều rộng.
                 } else if (cursor == Cursor.E_RESIZE || cursor == Cursor.W_RESIZE) {
@@ -0,0 +1,159 @@
+package com.photobooth.ui;
+
+import com.photobooth.diagnostics.MetricsRegistry;
+import com.photobooth.processing.ImageDecoder;
+import com.photobooth.processing.ThumbnailStore;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Ảnh thu nhỏ cho danh sách ảnh, giải mã nền đúng kích thước hiển thị và giữ trong một cache LRU giới hạn theo bộ nhớ.
+ * <p>
+ * Ô danh sách chỉ cần một biểu tượng vài chục điểm ảnh, nên ảnh thu nhỏ được lấy từ kho trên đĩa
+ * ({@link ThumbnailStore}) hoặc giải mã từ ảnh xem trước nhúng / với subsampling ({@link ImageDecoder#decodeThumbnail})
+ * trên vài luồng nền, thay vì giải mã ảnh 24 MP đầy đủ trên luồng FX.
+ * Ô bị cuộn khỏi màn hình (được dùng lại cho file khác) hủy yêu cầu của nó, nên khi cuộn nhanh qua hàng nghìn ảnh
+ * chỉ các ô đang hiển thị được giải mã. Dung lượng cache đọc từ system property {@code photobooth.thumbnails.cacheMb}
+ * (mặc định 64 MB), số luồng giải mã từ {@code photobooth.thumbnails.threads} (mặc định một nửa số nhân, tối đa 4).
+ */
+final class ThumbnailCache {
+
+    private record Key(File file, int size) {
+    }
+
+    private final long budgetBytes;
+    /** Theo thứ tự truy cập (LRU); được bảo vệ bởi khóa của đối tượng này. */
+    private final LinkedHashMap<Key, Image> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long usedBytes;
+    private final ExecutorService loader;
+
+    ThumbnailCache() {
+        this(Long.getLong("photobooth.thumbnails.cacheMb", 64) * 1024 * 1024,
+                Integer.getInteger("photobooth.thumbnails.threads",
+                        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))));
+    }
+
+    /**
+     * @param budgetBytes Tổng dung lượng điểm ảnh tối đa được giữ trong cache.
+     * @param threads     Số luồng giải mã nền.
+     */
+    ThumbnailCache(long budgetBytes, int threads) {
+        this.budgetBytes = budgetBytes;
+        AtomicInteger counter = new AtomicInteger();
+        this.loader = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+            Thread thread = new Thread(task, "thumbnail-loader-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1); // Nhường luồng FX và luồng dựng ảnh
+            return thread;
+        });
+    }
+
+    /**
+     * @return Ảnh thu nhỏ đã có trong cache, hoặc null.
+     */
+    Image getIfPresent(File file, int size) {
+        Image image;
+        synchronized (this) {
+            image = entries.get(new Key(file, size));
+        }
+        if (image != null) {
+            MetricsRegistry.getDefault().increment(MetricsRegistry.THUMBNAIL_CACHE_HITS);
+        }
+        return image;
+    }
+
+    /**
+     * Giải mã ảnh thu nhỏ trên luồng nền rồi gọi {@code onLoaded} trên luồng FX (không gọi nếu yêu cầu đã bị hủy
+     * hoặc không giải mã được ảnh). Phải được gọi trên luồng FX.
+     *
+     * @param file     Tệp ảnh.
+     * @param size     Cạnh dài nhất của ảnh thu nhỏ (điểm ảnh thực trên màn hình).
+     * @param onLoaded Nhận ảnh thu nhỏ trên luồng FX.
+     * @return Yêu cầu đang chờ; {@code cancel(false)} để bỏ nếu ô đã hiển thị file khác.
+     */
+    Future<?> load(File file, int size, Consumer<Image> onLoaded) {
+        Key key = new Key(file, size);
+        Future<?>[] self = new Future<?>[1];
+        Future<?> future = loader.submit(() -> {
+            Image image;
+            synchronized (this) {
+                image = entries.get(key); // Ô khác đã yêu cầu cùng ảnh trong lúc chờ
+            }
+            if (image == null) {
+                try {
+                    image = toFxImage(ThumbnailStore.getDefault().thumbnail(file, size));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Không tạo được ảnh thu nhỏ cho " + file.getName() + ": " + e.getMessage());
+                    return;
+                }
+                put(key, image);
+            }
+            Image loaded = image;
+            // load() chạy trên luồng FX, nên self[0] đã được gán trước khi lệnh runLater này chạy
+            Platform.runLater(() -> {
+                if (!self[0].isCancelled()) {
+                    onLoaded.accept(loaded);
+                }
+            });
+        });
+        self[0] = future;
+        return future;
+    }
+
+    /** Bỏ mọi ảnh thu nhỏ trong cache. */
+    synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /** Dừng các luồng giải mã (khi đóng ứng dụng). */
+    void shutdown() {
+        loader.shutdownNow();
+    }
+
+    private synchronized void put(Key key, Image image) {
+        Image previous = entries.put(key, image);
+        if (previous != null) {
+            usedBytes -= bytesOf(previous);
+        }
+        usedBytes += bytesOf(image);
+        // Bỏ các ảnh lâu nhất không được dùng cho đến khi về dưới ngân sách
+        Iterator<Map.Entry<Key, Image>> it = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<Key, Image> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            usedBytes -= bytesOf(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private static long bytesOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    /** Bọc trực tiếp mảng điểm ảnh ARGB nhân trước alpha của ảnh thu nhỏ, không sao chép. */
+    static Image toFxImage(BufferedImage thumbnail) {
+        int[] pixels = ((DataBufferInt) thumbnail.getRaster().getDataBuffer()).getData();
+        PixelBuffer<IntBuffer> buffer = new PixelBuffer<>(thumbnail.getWidth(), thumbnail.getHeight(), IntBuffer.wrap(pixels), PixelFormat.getIntArgbPreInstance());
+        return new WritableImage(buffer);
+    }
+}
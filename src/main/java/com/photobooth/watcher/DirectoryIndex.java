@@ -0,0 +1,232 @@
+package com.photobooth.watcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Chỉ mục nhẹ của một thư mục đang theo dõi (có thể gồm cả các thư mục con): đường dẫn tương đối, kích thước
+ * và mtime của từng file ảnh đã biết.
+ * <p>
+ * WatchService có thể làm rơi sự kiện (OVERFLOW) khi máy ảnh chụp liên tục đổ hàng chục file mỗi giây vào thư mục.
+ * Khi đó {@link #reconcile} quét lại thư mục và so với chỉ mục để tìm đúng các file bị bỏ sót (mới hoặc đã đổi),
+ * mỗi file chỉ được trả về một lần. Lần quét dùng thuộc tính đọc kèm khi liệt kê thư mục (trên Windows không phải
+ * mở từng file), và lần kiểm tra định kỳ được bỏ qua hoàn toàn nếu mtime của mọi thư mục đã biết không đổi
+ * (file mới làm đổi mtime của thư mục chứa nó), nên vẫn rẻ với thư mục hàng chục nghìn file.
+ * <p>
+ * Các phương thức được đồng bộ, có thể gọi từ nhiều luồng.
+ */
+public class DirectoryIndex {
+
+    /**
+     * Độ phân giải mtime thô nhất cần tính đến (FAT/exFAT trên thẻ nhớ: 2 giây). Thư mục vừa đổi trong khoảng này
+     * trước lần quét vẫn được quét lại ở lần sau, vì thay đổi tiếp theo có thể không làm mtime đổi.
+     */
+    private static final long MTIME_GRANULARITY_MS = 2000;
+
+    /** Kích thước và mtime của một file tại lần cuối được ghi nhận. */
+    private record Version(long size, long lastModified) {
+    }
+
+    private final Path folder;
+    private final boolean recursive;
+    private final Predicate<Path> filter;
+    /** Các file theo đường dẫn tương đối so với {@code folder}. */
+    private final Map<String, Version> files = new HashMap<>();
+    /** mtime của từng thư mục tại lần quét gần nhất, để bỏ qua lần kiểm tra định kỳ không cần thiết. */
+    private final Map<Path, Long> folderMtimes = new HashMap<>();
+    /** Thời điểm bắt đầu lần quét gần nhất (ms). */
+    private long scannedAt;
+
+    /**
+     * Chỉ mục của riêng thư mục {@code folder}, không gồm thư mục con.
+     *
+     * @param folder Thư mục được theo dõi.
+     * @param filter Chỉ các file thỏa điều kiện (ví dụ file ảnh) được đưa vào chỉ mục.
+     */
+    public DirectoryIndex(Path folder, Predicate<Path> filter) {
+        this(folder, false, filter);
+    }
+
+    /**
+     * @param folder    Thư mục được theo dõi.
+     * @param recursive true để gồm cả mọi thư mục con.
+     * @param filter    Chỉ các file thỏa điều kiện (ví dụ file ảnh) được đưa vào chỉ mục.
+     */
+    public DirectoryIndex(Path folder, boolean recursive, Predicate<Path> filter) {
+        this.folder = folder;
+        this.recursive = recursive;
+        this.filter = filter;
+    }
+
+    /**
+     * Xây lại chỉ mục từ nội dung hiện tại của thư mục, không báo file nào (các file đã có được coi là đã biết).
+     *
+     * @throws IOException Nếu không liệt kê được thư mục.
+     */
+    public synchronized void rebuild() throws IOException {
+        files.clear();
+        scan((name, version) -> files.put(name, version));
+    }
+
+    /**
+     * Ghi nhận một file đã được báo qua đường sự kiện thông thường, để lần đối chiếu sau không báo lại.
+     */
+    public synchronized void record(Path file, long size, long lastModified) {
+        files.put(folder.relativize(file).toString(), new Version(size, lastModified));
+    }
+
+    /**
+     * Đối chiếu thư mục với chỉ mục.
+     *
+     * @param force true để luôn quét (sau OVERFLOW); false cho lần kiểm tra định kỳ, được bỏ qua nếu mtime của các thư mục
+     *              không đổi kể từ lần quét trước.
+     * @return Các file mới hoặc đã đổi mà chỉ mục chưa biết (mỗi file một lần); rỗng nếu không có gì bị bỏ sót.
+     * @throws IOException Nếu không liệt kê được thư mục.
+     */
+    public synchronized List<Path> reconcile(boolean force) throws IOException {
+        if (!force && !folderMayHaveChanged()) {
+            return List.of();
+        }
+        List<Path> missed = new ArrayList<>();
+        Set<String> present = new HashSet<>(files.size() * 2);
+        scan((name, version) -> {
+            present.add(name);
+            if (!version.equals(files.put(name, version))) {
+                missed.add(folder.resolve(name));
+            }
+        });
+        // File đã bị xóa hoặc đổi tên được bỏ khỏi chỉ mục, để một file mới trùng tên vẫn được phát hiện
+        files.keySet().retainAll(present);
+        return missed;
+    }
+
+    /**
+     * Lượt quét nhanh cho chế độ thăm dò (ổ mạng, nơi WatchService không nhận được sự kiện): mỗi thư mục đã biết
+     * chỉ được liệt kê tên một lần (một directory stream), và chỉ các tên chưa biết mới được đọc thuộc tính, nên mỗi
+     * lượt chỉ tốn một lần liệt kê cho mỗi thư mục dù thư mục có hàng nghìn file. Thư mục con mới được thêm vào
+     * và liệt kê ngay trong lượt này. File đã biết bị ghi đè cùng tên không được phát hiện ở đây mà ở lần
+     * {@link #reconcile} kế tiếp.
+     *
+     * @return Các file mới xuất hiện kể từ lần quét trước; rỗng nếu không có gì mới.
+     * @throws IOException Nếu không liệt kê được thư mục gốc (ví dụ ổ mạng mất kết nối).
+     */
+    public synchronized List<Path> pollNew() throws IOException {
+        if (folderMtimes.isEmpty()) {
+            return reconcile(true); // Chưa dựng được chỉ mục
+        }
+        List<Path> found = new ArrayList<>();
+        Set<String> present = new HashSet<>(files.size() * 2);
+        ArrayDeque<Path> pending = new ArrayDeque<>(folderMtimes.keySet());
+        while (!pending.isEmpty()) {
+            Path dir = pending.pollFirst();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    String name = folder.relativize(entry).toString();
+                    if (files.containsKey(name)) {
+                        present.add(name);
+                        continue;
+                    }
+                    if (folderMtimes.containsKey(entry)) {
+                        continue; // Thư mục con đã biết, được liệt kê riêng
+                    }
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue; // File vừa bị xóa
+                    }
+                    if (attrs.isDirectory()) {
+                        if (recursive) {
+                            folderMtimes.put(entry, attrs.lastModifiedTime().toMillis());
+                            pending.addLast(entry);
+                        }
+                    } else if (attrs.isRegularFile() && filter.test(entry)) {
+                        files.put(name, new Version(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        present.add(name);
+                        found.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                if (dir.equals(folder)) {
+                    throw e;
+                }
+                folderMtimes.remove(dir); // Thư mục con đã bị xóa hoặc đổi tên
+            }
+        }
+        // File đã bị xóa được bỏ khỏi chỉ mục, để một file mới trùng tên vẫn được phát hiện
+        files.keySet().retainAll(present);
+        return found;
+    }
+
+    /** @return Số file trong chỉ mục. */
+    public synchronized int size() {
+        return files.size();
+    }
+
+    private boolean folderMayHaveChanged() {
+        if (folderMtimes.isEmpty()) {
+            return true;
+        }
+        for (Map.Entry<Path, Long> entry : folderMtimes.entrySet()) {
+            try {
+                long mtime = Files.getLastModifiedTime(entry.getKey()).toMillis();
+                if (mtime != entry.getValue() || scannedAt - mtime < MTIME_GRANULARITY_MS) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return true; // Thư mục con đã bị xóa hoặc đổi tên
+            }
+        }
+        return false;
+    }
+
+    private interface EntryConsumer {
+        void accept(String name, Version version);
+    }
+
+    /**
+     * Liệt kê các file (đệ quy nếu cần) cùng thuộc tính. walkFileTree dùng lại thuộc tính đọc kèm khi liệt kê thư mục
+     * nếu hệ điều hành cung cấp (Windows), thay vì gọi stat riêng cho từng file.
+     */
+    private void scan(EntryConsumer consumer) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        folderMtimes.clear();
+        Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                folderMtimes.put(dir, attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && filter.test(file)) {
+                    consumer.accept(folder.relativize(file).toString(), new Version(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // File vừa bị xóa trong lúc quét
+            }
+        });
+        scannedAt = startedAt;
+    }
+}
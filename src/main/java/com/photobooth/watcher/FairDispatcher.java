@@ -0,0 +1,104 @@
+package com.photobooth.watcher;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Chia lượt chạy tác vụ công bằng giữa các nguồn (mỗi máy ảnh / thư mục gốc là một nguồn).
+ * <p>
+ * Mỗi nguồn có hàng đợi riêng; khi còn chỗ (tối đa {@code maxConcurrent} tác vụ chạy cùng lúc), tác vụ kế tiếp được lấy
+ * lần lượt từ từng nguồn theo vòng (round-robin). Vì vậy một đợt chụp liên tục hàng trăm ảnh từ một máy ảnh chỉ chiếm
+ * một lượt mỗi vòng, ảnh từ máy ảnh còn lại vẫn được xử lý ngay ở lượt kế tiếp. Tác vụ chạy trên {@code executor}
+ * (thường là executor luồng ảo dùng chung).
+ */
+final class FairDispatcher {
+
+    private final Executor executor;
+    private final int maxConcurrent;
+    /** Hàng đợi của từng nguồn; được bảo vệ bởi khóa của đối tượng này. */
+    private final Map<Object, ArrayDeque<Runnable>> queues = new HashMap<>();
+    /** Thứ tự lượt của các nguồn đang có tác vụ chờ. */
+    private final ArrayDeque<Object> rotation = new ArrayDeque<>();
+    private int running;
+
+    /**
+     * @param executor      Executor chạy các tác vụ.
+     * @param maxConcurrent Số tác vụ tối đa chạy cùng lúc (tối thiểu 1).
+     */
+    FairDispatcher(Executor executor, int maxConcurrent) {
+        this.executor = executor;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * @return Executor gửi tác vụ vào hàng đợi của nguồn {@code source}.
+     */
+    Executor forSource(Object source) {
+        return task -> submit(source, task);
+    }
+
+    /** Đưa một tác vụ vào hàng đợi của nguồn {@code source}. */
+    void submit(Object source, Runnable task) {
+        synchronized (this) {
+            ArrayDeque<Runnable> queue = queues.computeIfAbsent(source, k -> new ArrayDeque<>());
+            if (queue.isEmpty()) {
+                rotation.addLast(source);
+            }
+            queue.addLast(task);
+        }
+        drain();
+    }
+
+    /** @return Tổng số tác vụ đang chờ lượt. */
+    synchronized int queued() {
+        int total = 0;
+        for (ArrayDeque<Runnable> queue : queues.values()) {
+            total += queue.size();
+        }
+        return total;
+    }
+
+    /** Khởi chạy các tác vụ đang chờ, lần lượt từng nguồn, cho đến khi đủ số tác vụ chạy cùng lúc. */
+    private void drain() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (running >= maxConcurrent || rotation.isEmpty()) {
+                    return;
+                }
+                Object source = rotation.pollFirst();
+                ArrayDeque<Runnable> queue = queues.get(source);
+                next = queue.pollFirst();
+                if (queue.isEmpty()) {
+                    queues.remove(source);
+                } else {
+                    rotation.addLast(source); // Nguồn còn tác vụ xếp lại cuối vòng
+                }
+                running++;
+            }
+            Runnable task = next;
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Lỗi khi xử lý file trong thư mục theo dõi: " + e);
+                    } finally {
+                        synchronized (this) {
+                            running--;
+                        }
+                        drain();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Executor đã dừng: bỏ tác vụ, trả lại chỗ
+                synchronized (this) {
+                    running--;
+                }
+                return;
+            }
+        }
+    }
+}
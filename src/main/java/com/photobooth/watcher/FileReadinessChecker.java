@@ -0,0 +1,333 @@
+package com.photobooth.watcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Giai đoạn "sẵn sàng" giữa sự kiện của WatchService và việc báo ảnh mới cho ứng dụng.
+ * <p>
+ * Phần mềm tethering thường tạo tệp trước rồi mới ghi dữ liệu vào, nên {@code ENTRY_CREATE} đến khi tệp còn dở dang.
+ * Lớp này gộp mọi sự kiện tạo/sửa của cùng một đường dẫn, định kỳ (hẹn giờ trên {@code scheduler}, chạy trên {@code worker})
+ * kiểm tra kích thước và mtime,
+ * và chỉ báo tệp khi cả hai không đổi trong một khoảng "yên lặng", ảnh đã có phần kết thúc (marker EOI của JPEG,
+ * chunk IEND của PNG), và tùy chọn khóa độc quyền được tệp (trên Windows, tệp còn đang được ghi không mở được để ghi).
+ * <p>
+ * Khoảng yên lặng thích ứng theo từng tệp: tăng theo kích thước tệp và theo khoảng nghỉ dài nhất đã thấy giữa hai lần
+ * tệp thay đổi, nên JPEG nhỏ được báo gần như ngay, còn tệp RAW lớn được ghi theo từng đợt không bị báo quá sớm.
+ * Tham số đọc từ system property:
+ * <ul>
+ *   <li>{@code photobooth.watcher.quietMs}: khoảng yên lặng tối thiểu (mặc định 200 ms).</li>
+ *   <li>{@code photobooth.watcher.maxQuietMs}: khoảng yên lặng tối đa (mặc định 3000 ms).</li>
+ *   <li>{@code photobooth.watcher.maxWaitMs}: thời gian chờ tối đa một tệp (mặc định 120000 ms); quá thời gian này
+ *       tệp vẫn được báo kèm cảnh báo, để không bao giờ mất ảnh.</li>
+ *   <li>{@code photobooth.watcher.lockCheck}: có thử khóa độc quyền trước khi báo hay không (mặc định true).</li>
+ * </ul>
+ */
+public class FileReadinessChecker {
+
+    /** Khoảng yên lặng cộng thêm cho mỗi MB dữ liệu của tệp. */
+    private static final long QUIET_NANOS_PER_MB = TimeUnit.MILLISECONDS.toNanos(50);
+    /** Khoảng yên lặng phải dài gấp bao nhiêu lần khoảng nghỉ dài nhất đã thấy giữa hai lần ghi. */
+    private static final int GAP_FACTOR = 2;
+    /** Số byte cuối tệp JPEG được đọc để bỏ qua phần đệm (0x00/0xFF) mà một số máy ảnh thêm vào sau marker kết thúc ảnh (EOI). */
+    private static final int JPEG_TRAILER_SCAN = 64 * 1024;
+    /** Chunk IEND (độ dài 0, kiểu "IEND", CRC cố định) luôn là 12 byte cuối của một tệp PNG hoàn chỉnh. */
+    private static final byte[] PNG_IEND = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+    /** Số tệp đã báo được ghi nhớ, để sự kiện sửa đến muộn (không làm đổi tệp) không báo lại lần nữa. */
+    private static final int DELIVERED_HISTORY = 1024;
+
+    /** Kích thước và mtime của một tệp tại lúc được báo. */
+    private record Version(long size, long lastModified) {
+    }
+
+    /**
+     * Trạng thái chờ của một tệp. Mỗi lần kiểm tra hẹn lần kế tiếp nên mỗi tệp chỉ có một lần kiểm tra chạy tại một
+     * thời điểm; các trường chỉ được đọc/ghi trong lần kiểm tra (trừ {@code eventSeq} và {@code lastEventNanos}).
+     */
+    private static final class Pending {
+        final Path path;
+        final long firstSeenNanos;
+        /** Tăng mỗi khi có sự kiện mới cho tệp; luồng kiểm tra so sánh để biết tệp vừa bị động đến. */
+        final AtomicLong eventSeq = new AtomicLong();
+        /** Thời điểm của sự kiện gần nhất. */
+        volatile long lastEventNanos;
+        long checkedSeq = -1;
+        long size = -1;
+        long lastModified = -1;
+        /** Thời điểm lần cuối thấy tệp thay đổi (kích thước, mtime hoặc có sự kiện mới). */
+        long changedNanos;
+        /** Khoảng nghỉ dài nhất đã thấy giữa hai lần tệp thay đổi. */
+        long maxGapNanos;
+
+        Pending(Path path, long now) {
+            this.path = path;
+            this.firstSeenNanos = now;
+            this.lastEventNanos = now;
+            this.changedNanos = now;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor worker;
+    private final Consumer<Path> onReady;
+    private final long minQuietNanos;
+    private final long maxQuietNanos;
+    private final long maxWaitNanos;
+    private final boolean lockCheck;
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    /** Phiên bản của các tệp đã báo gần đây (LRU); được bảo vệ bởi khóa của chính map. */
+    private final Map<Path, Version> delivered = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Version> eldest) {
+            return size() > DELIVERED_HISTORY;
+        }
+    };
+    private volatile boolean closed;
+
+    /**
+     * Khởi tạo với tham số đọc từ system property; các lần kiểm tra chạy ngay trên luồng của scheduler.
+     *
+     * @param scheduler Scheduler chạy các lần kiểm tra (và gọi {@code onReady}).
+     * @param onReady   Hàm được gọi đúng một lần cho mỗi tệp đã ghi xong.
+     */
+    public FileReadinessChecker(ScheduledExecutorService scheduler, Consumer<Path> onReady) {
+        this(scheduler, scheduler, onReady);
+    }
+
+    /**
+     * Khởi tạo với tham số đọc từ system property.
+     *
+     * @param scheduler Scheduler hẹn giờ các lần kiểm tra.
+     * @param worker    Executor chạy các lần kiểm tra (đọc thuộc tính, khóa thử tệp) và gọi {@code onReady}.
+     * @param onReady   Hàm được gọi đúng một lần cho mỗi tệp đã ghi xong; có thể được gọi đồng thời cho nhiều tệp
+     *                  nếu {@code worker} có nhiều luồng.
+     */
+    public FileReadinessChecker(ScheduledExecutorService scheduler, Executor worker, Consumer<Path> onReady) {
+        this(scheduler, worker, onReady,
+                Long.getLong("photobooth.watcher.quietMs", 200),
+                Long.getLong("photobooth.watcher.maxQuietMs", 3000),
+                Long.getLong("photobooth.watcher.maxWaitMs", 120_000),
+                Boolean.parseBoolean(System.getProperty("photobooth.watcher.lockCheck", "true")));
+    }
+
+    /**
+     * @param scheduler  Scheduler hẹn giờ các lần kiểm tra.
+     * @param worker     Executor chạy các lần kiểm tra và gọi {@code onReady}.
+     * @param onReady    Hàm được gọi đúng một lần cho mỗi tệp đã ghi xong.
+     * @param minQuietMs Khoảng yên lặng tối thiểu (ms) trước khi báo tệp.
+     * @param maxQuietMs Khoảng yên lặng tối đa (ms), kể cả với tệp rất lớn.
+     * @param maxWaitMs  Thời gian chờ tối đa (ms) từ sự kiện đầu tiên; quá hạn thì tệp được báo kèm cảnh báo.
+     * @param lockCheck  true để thử khóa độc quyền tệp trước khi báo.
+     */
+    public FileReadinessChecker(ScheduledExecutorService scheduler, Executor worker, Consumer<Path> onReady, long minQuietMs, long maxQuietMs, long maxWaitMs, boolean lockCheck) {
+        this.scheduler = scheduler;
+        this.worker = worker;
+        this.onReady = onReady;
+        this.minQuietNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minQuietMs));
+        this.maxQuietNanos = Math.max(minQuietNanos, TimeUnit.MILLISECONDS.toNanos(maxQuietMs));
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minQuietMs, maxWaitMs));
+        this.lockCheck = lockCheck;
+    }
+
+    /**
+     * Ghi nhận một sự kiện tạo hoặc sửa tệp. Các sự kiện của cùng một đường dẫn được gộp lại; tệp được báo
+     * khi đã ghi xong. An toàn khi gọi từ nhiều luồng.
+     */
+    public void offer(Path path) {
+        if (closed) return;
+        long now = System.nanoTime();
+        Pending created = new Pending(path, now);
+        Pending existing = pending.putIfAbsent(path, created);
+        if (existing != null) {
+            existing.lastEventNanos = now;
+            existing.eventSeq.incrementAndGet(); // Lần kiểm tra kế tiếp sẽ tính là tệp vừa thay đổi
+            return;
+        }
+        // Trạng thái ban đầu lấy ngay lúc có sự kiện, để tệp đã ghi xong chỉ phải chờ một khoảng yên lặng
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            created.size = attrs.size();
+            created.lastModified = attrs.lastModifiedTime().toMillis();
+            created.checkedSeq = 0;
+        } catch (IOException e) {
+            // Lần kiểm tra đầu tiên sẽ lấy trạng thái ban đầu
+        }
+        schedule(created, minQuietNanos);
+    }
+
+    /** @return Số tệp đang chờ ghi xong. */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Ngừng nhận sự kiện và bỏ mọi tệp đang chờ (scheduler do nơi gọi quản lý).
+     */
+    public void close() {
+        closed = true;
+        pending.clear();
+    }
+
+    private void schedule(Pending p, long delayNanos) {
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    worker.execute(() -> check(p));
+                } catch (RejectedExecutionException e) {
+                    pending.remove(p.path, p); // Executor đã dừng
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.remove(p.path, p); // Scheduler đã dừng cùng watcher
+        }
+    }
+
+    private void check(Pending p) {
+        if (closed || pending.get(p.path) != p) return;
+        long now = System.nanoTime();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(p.path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // Tệp tạm bị đổi tên hoặc xóa trước khi ghi xong: không có gì để báo
+            pending.remove(p.path, p);
+            return;
+        } catch (IOException e) {
+            attrs = null; // Tạm thời không đọc được thuộc tính (đang bị khóa...): coi như chưa ổn định
+        }
+
+        long seq = p.eventSeq.get();
+        boolean changed = attrs == null || seq != p.checkedSeq
+                || attrs.size() != p.size || attrs.lastModifiedTime().toMillis() != p.lastModified;
+        if (changed) {
+            // Thay đổi đi kèm sự kiện được tính từ lúc có sự kiện; thay đổi chỉ thấy qua kích thước/mtime thì tính từ bây giờ
+            long changedAt = attrs != null && seq != p.checkedSeq ? p.lastEventNanos : now;
+            if (p.checkedSeq >= 0) {
+                p.maxGapNanos = Math.max(p.maxGapNanos, changedAt - p.changedNanos);
+            }
+            p.changedNanos = changedAt;
+            p.checkedSeq = seq;
+            if (attrs != null) {
+                p.size = attrs.size();
+                p.lastModified = attrs.lastModifiedTime().toMillis();
+            }
+        }
+
+        long quiet = quietPeriod(p);
+        boolean overdue = now - p.firstSeenNanos >= maxWaitNanos;
+        if (!overdue && (now - p.changedNanos < quiet || p.size <= 0)) {
+            // Chưa yên lặng đủ lâu (tệp rỗng được coi là chưa bắt đầu ghi): kiểm tra lại khi hết khoảng yên lặng còn lại
+            schedule(p, Math.max(TimeUnit.MILLISECONDS.toNanos(25), quiet - (now - p.changedNanos)));
+            return;
+        }
+        if (!overdue && !hasImageTrailer(p.path)) {
+            // Ảnh chưa có phần kết thúc: chương trình ghi chỉ đang tạm dừng giữa chừng (ví dụ cổng USB chậm)
+            p.changedNanos = now;
+            schedule(p, quiet);
+            return;
+        }
+        if (!overdue && lockCheck && !canLockExclusively(p.path)) {
+            p.changedNanos = now; // Phần mềm khác vẫn giữ tệp: chờ thêm một khoảng yên lặng nữa
+            schedule(p, quiet);
+            return;
+        }
+
+        pending.remove(p.path, p);
+        if (overdue) {
+            if (p.size <= 0) {
+                System.err.println("Tệp " + p.path.getFileName() + " vẫn rỗng sau " + TimeUnit.NANOSECONDS.toSeconds(maxWaitNanos) + " giây, bỏ qua");
+                return;
+            }
+            System.err.println("Tệp " + p.path.getFileName() + " chưa ổn định sau " + TimeUnit.NANOSECONDS.toSeconds(maxWaitNanos) + " giây, vẫn thêm vào danh sách");
+        }
+        Version version = new Version(p.size, p.lastModified);
+        synchronized (delivered) {
+            if (version.equals(delivered.put(p.path, version))) {
+                return; // Sự kiện sửa đến sau khi tệp đã được báo, nhưng tệp không đổi
+            }
+        }
+        System.out.println("File ready after " + TimeUnit.NANOSECONDS.toMillis(now - p.firstSeenNanos) + " ms: " + p.path.getFileName() + " (" + p.size + " bytes)");
+        onReady.accept(p.path);
+    }
+
+    /**
+     * Khoảng yên lặng của một tệp: tối thiểu {@code minQuiet}, tăng theo kích thước tệp và theo khoảng nghỉ dài nhất
+     * giữa hai lần ghi đã thấy, không quá {@code maxQuiet}.
+     */
+    private long quietPeriod(Pending p) {
+        long bySize = minQuietNanos + Math.max(0, p.size) / (1024 * 1024) * QUIET_NANOS_PER_MB;
+        long byGap = p.maxGapNanos * GAP_FACTOR;
+        return Math.min(maxQuietNanos, Math.max(bySize, byGap));
+    }
+
+    /**
+     * Kiểm tra phần kết thúc của tệp ảnh: JPEG phải kết thúc bằng marker EOI ({@code FF D9}), sau đó chỉ được có byte
+     * đệm 0x00/0xFF; PNG phải kết thúc bằng chunk IEND. Ảnh được ghi tuần tự nên thiếu phần này nghĩa là tệp còn dở dang.
+     * Định dạng khác luôn được coi là đủ. Tệp có dữ liệu khác nối sau EOI không bao giờ qua được bước này và được thêm
+     * khi hết thời gian chờ tối đa, như tệp chưa ổn định.
+     */
+    static boolean hasImageTrailer(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+        if (!jpeg && !name.endsWith(".png")) {
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int length = (int) Math.min(size, jpeg ? JPEG_TRAILER_SCAN : PNG_IEND.length);
+            ByteBuffer tail = ByteBuffer.allocate(length);
+            while (tail.hasRemaining() && channel.read(tail, size - length + tail.position()) > 0) {
+                // Đọc đến khi đủ phần cuối tệp
+            }
+            byte[] bytes = tail.array();
+            if (!jpeg) {
+                return length == PNG_IEND.length && Arrays.equals(bytes, PNG_IEND);
+            }
+            // Không thể chấp nhận FF D9 ở bất kỳ đâu gần cuối: ảnh xem trước nhúng trong APP1/makernote là một JPEG
+            // hoàn chỉnh, cũng kết thúc bằng EOI, nên tệp bị ngắt ngay sau ảnh xem trước vẫn có FF D9 gần cuối.
+            // Chỉ EOI của ảnh chính nằm ở cuối tệp (sau nó chỉ có thể là byte đệm).
+            int i = length - 1;
+            while (i >= 0 && (bytes[i] == 0x00 || bytes[i] == (byte) 0xFF)) {
+                i--;
+            }
+            return i >= 1 && bytes[i] == (byte) 0xD9 && bytes[i - 1] == (byte) 0xFF;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Thử mở tệp để ghi và khóa độc quyền rồi nhả ngay. Trên Windows, việc mở thất bại nếu chương trình khác
+     * còn đang ghi tệp; trên các hệ khác, khóa thất bại nếu chương trình kia có khóa tệp.
+     * Tệp chỉ đọc (ví dụ chép từ thẻ nhớ) không mở để ghi được nên không được kiểm tra.
+     */
+    private static boolean canLockExclusively(Path path) {
+        if (!Files.isWritable(path)) {
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            return lock != null;
+        } catch (IOException | OverlappingFileLockException e) {
+            return false;
+        }
+    }
+}
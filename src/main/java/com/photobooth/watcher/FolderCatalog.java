@@ -0,0 +1,281 @@
+package com.photobooth.watcher;
+
+import com.photobooth.diagnostics.MetricsRegistry;
+import com.photobooth.processing.ImageDecoder;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Danh mục ảnh của các thư mục nhập, dùng để nạp thư mục lớn theo từng đợt và nhớ kết quả qua các lần nhập.
+ * <p>
+ * {@link #scan} duyệt thư mục trên luồng của người gọi (không phải luồng FX), theo thứ tự đường dẫn, và giao các file
+ * ảnh tìm được theo từng đợt nhỏ để danh sách trên giao diện hiện dần thay vì chờ cả thư mục. Với mỗi thư mục nhập,
+ * một tệp chỉ mục lưu tên, kích thước, mtime và kích thước điểm ảnh (đã tính hướng EXIF) của từng ảnh; lần nhập lại chỉ
+ * đọc thuộc tính file, và chỉ các ảnh mới hoặc đã đổi (kích thước hoặc mtime khác) mới phải đọc header ảnh.
+ * Kích thước điểm ảnh của các ảnh đã quét được giữ trong bộ nhớ ({@link #dimensions}) để canvas không phải đọc lại.
+ * <p>
+ * Các tệp chỉ mục nằm trong thư mục đọc từ system property {@code photobooth.folderIndex.dir} (mặc định
+ * {@code ~/PhotoBoothCache/folders}), không ghi vào thư mục ảnh (có thể là thẻ nhớ hoặc ổ mạng chỉ đọc);
+ * đặt {@code none} để không lưu. Các phương thức có thể gọi từ nhiều luồng.
+ */
+public class FolderCatalog {
+
+    private static final int INDEX_MAGIC = 0x50424649; // "PBFI"
+    private static final int INDEX_VERSION = 1;
+    /** Số file tối đa mỗi đợt. */
+    private static final int CHUNK_SIZE = 256;
+    /** Đợt chưa đầy vẫn được giao sau khoảng này, để ảnh hiện dần khi việc đọc header chậm (ổ mạng). */
+    private static final long CHUNK_INTERVAL_MS = 100;
+
+    private static final FolderCatalog DEFAULT = createDefault();
+
+    /** Một ảnh đã biết: phiên bản (kích thước, mtime) và kích thước điểm ảnh khi hiển thị (-1 nếu không đọc được). */
+    private record Entry(long size, long lastModified, int width, int height) {
+    }
+
+    /** Thư mục chứa các tệp chỉ mục, hoặc null nếu không lưu. */
+    private final Path indexDir;
+    private final Map<File, Dimension> dimensions = new ConcurrentHashMap<>();
+
+    /**
+     * @param indexDir Thư mục chứa các tệp chỉ mục, hoặc null để không lưu.
+     */
+    public FolderCatalog(Path indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    /** @return Danh mục dùng chung cho toàn ứng dụng. */
+    public static FolderCatalog getDefault() {
+        return DEFAULT;
+    }
+
+    private static FolderCatalog createDefault() {
+        String dir = System.getProperty("photobooth.folderIndex.dir");
+        if ("none".equalsIgnoreCase(dir)) {
+            return new FolderCatalog(null);
+        }
+        return new FolderCatalog(dir == null || dir.isBlank() ? Paths.get(System.getProperty("user.home"), "PhotoBoothCache", "folders") : Paths.get(dir));
+    }
+
+    /**
+     * @return Kích thước điểm ảnh khi hiển thị của một ảnh đã được quét, hoặc null nếu chưa biết.
+     */
+    public Dimension dimensions(File file) {
+        return dimensions.get(file);
+    }
+
+    /**
+     * Duyệt một thư mục nhập và giao các file ảnh theo từng đợt, theo thứ tự đường dẫn. Chỉ mục của thư mục được ghi
+     * lại khi xong (kể cả khi bị hủy giữa chừng, để các ảnh đã đọc header không phải đọc lại).
+     *
+     * @param root      Thư mục nhập.
+     * @param recursive true để gồm cả các thư mục con.
+     * @param onChunk   Nhận từng đợt file ảnh, trên luồng đang quét.
+     * @param cancelled Trả về true khi không cần quét tiếp (ví dụ người dùng đã chọn thư mục khác).
+     * @return Số file ảnh đã giao.
+     * @throws IOException Nếu không liệt kê được thư mục nhập.
+     */
+    public int scan(Path root, boolean recursive, Consumer<List<File>> onChunk, BooleanSupplier cancelled) throws IOException {
+        long start = System.nanoTime();
+        Path indexFile = indexFile(root);
+        Map<String, Entry> known = indexFile != null ? load(root, indexFile) : Map.of();
+        Scan scan = new Scan(root, recursive, known, onChunk, cancelled);
+        scan.directory(root);
+        scan.emit();
+        if (indexFile != null && (scan.probed > 0 || scan.seen.size() != known.size())) {
+            Map<String, Entry> entries = scan.seen;
+            if (cancelled.getAsBoolean()) {
+                entries = new HashMap<>(known); // Phần chưa duyệt vẫn giữ như cũ
+                entries.putAll(scan.seen);
+            }
+            try {
+                save(root, indexFile, entries);
+            } catch (IOException e) {
+                System.err.println("Không lưu được chỉ mục thư mục " + root + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Scanned " + root + ": " + scan.delivered + " images (" + scan.probed + " probed) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return scan.delivered;
+    }
+
+    /** Trạng thái của một lượt duyệt. */
+    private final class Scan {
+        private final Path root;
+        private final boolean recursive;
+        private final Map<String, Entry> known;
+        private final Consumer<List<File>> onChunk;
+        private final BooleanSupplier cancelled;
+        /** Các ảnh thấy trong lượt này, thành chỉ mục mới. */
+        private final Map<String, Entry> seen = new HashMap<>();
+        private List<File> chunk = new ArrayList<>();
+        private long chunkStartedAt = System.currentTimeMillis();
+        private int delivered;
+        private int probed;
+
+        Scan(Path root, boolean recursive, Map<String, Entry> known, Consumer<List<File>> onChunk, BooleanSupplier cancelled) {
+            this.root = root;
+            this.recursive = recursive;
+            this.known = known;
+            this.onChunk = onChunk;
+            this.cancelled = cancelled;
+        }
+
+        /** Duyệt một thư mục theo thứ tự tên, đi vào thư mục con ngay tại vị trí của nó (cùng thứ tự với sắp xếp theo đường dẫn). */
+        void directory(Path dir) throws IOException {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    children.add(child);
+                }
+            } catch (IOException e) {
+                if (dir.equals(root)) {
+                    throw e;
+                }
+                System.err.println("Không đọc được thư mục " + dir + ": " + e.getMessage());
+                return;
+            }
+            children.sort(null);
+            for (Path child : children) {
+                if (cancelled.getAsBoolean()) {
+                    return;
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue; // File vừa bị xóa
+                }
+                if (attrs.isDirectory()) {
+                    if (recursive) {
+                        directory(child);
+                    }
+                } else if (attrs.isRegularFile() && FolderWatcher.isImageFile(child)) {
+                    file(child, attrs);
+                }
+            }
+        }
+
+        private void file(Path path, BasicFileAttributes attrs) {
+            String name = root.relativize(path).toString();
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            Entry entry = known.get(name);
+            if (entry != null && entry.size() == size && entry.lastModified() == modified) {
+                MetricsRegistry.getDefault().increment(MetricsRegistry.FOLDER_INDEX_HITS);
+            } else {
+                entry = probe(path, size, modified);
+                probed++;
+            }
+            seen.put(name, entry);
+            File file = path.toFile();
+            if (entry.width() > 0) {
+                dimensions.put(file, new Dimension(entry.width(), entry.height()));
+            }
+            chunk.add(file);
+            if (chunk.size() >= CHUNK_SIZE || System.currentTimeMillis() - chunkStartedAt >= CHUNK_INTERVAL_MS) {
+                emit();
+            }
+        }
+
+        void emit() {
+            if (!chunk.isEmpty()) {
+                delivered += chunk.size();
+                onChunk.accept(chunk);
+                chunk = new ArrayList<>();
+            }
+            chunkStartedAt = System.currentTimeMillis();
+        }
+
+        private Entry probe(Path path, long size, long modified) {
+            MetricsRegistry.getDefault().increment(MetricsRegistry.IMAGES_PROBED);
+            try {
+                Dimension dim = ImageDecoder.readDisplayDimensions(path.toFile());
+                return new Entry(size, modified, dim.width, dim.height);
+            } catch (IOException | RuntimeException e) {
+                // Vẫn ghi nhận để lần sau không đọc lại; ảnh hỏng vẫn hiện trong danh sách như trước
+                return new Entry(size, modified, -1, -1);
+            }
+        }
+    }
+
+    /** Tên tệp chỉ mục được suy ra từ đường dẫn tuyệt đối của thư mục nhập. */
+    private Path indexFile(Path root) {
+        if (indexDir == null) {
+            return null;
+        }
+        String key = root.toAbsolutePath().normalize().toString();
+        return indexDir.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + ".idx");
+    }
+
+    /** Đọc chỉ mục đã lưu; trả về rỗng nếu chưa có hoặc tệp hỏng. */
+    private static Map<String, Entry> load(Path root, Path indexFile) {
+        Map<String, Entry> entries = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || !in.readUTF().equals(root.toAbsolutePath().normalize().toString())) {
+                return entries;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                entries.put(name, new Entry(in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+            }
+            return entries;
+        } catch (NoSuchFileException e) {
+            return entries;
+        } catch (IOException e) {
+            System.err.println("Bỏ qua chỉ mục thư mục hỏng " + indexFile + ": " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    /** Ghi chỉ mục sang tệp tạm rồi thay tệp cũ, để tệp không bị ghi dở nếu ứng dụng tắt đột ngột. */
+    private static void save(Path root, Path indexFile, Map<String, Entry> entries) throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(root.toAbsolutePath().normalize().toString());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeLong(entry.size());
+                out.writeLong(entry.lastModified());
+                out.writeInt(entry.width());
+                out.writeInt(entry.height());
+            }
+        }
+        try {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -1,119 +1,548 @@
 package com.photobooth.watcher;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
- * Lớp chuyên dụng để theo dõi một thư mục cho các sự kiện tạo file mới.
+ * Lớp chuyên dụng để theo dõi một hoặc nhiều thư mục gốc (ví dụ mỗi máy ảnh một thư mục) cho các sự kiện tạo file mới,
+ * kể cả trong các thư mục con (ví dụ thư mục theo ngày do phần mềm tethering tạo ra).
  * Nó hoạt động trên một luồng nền (background thread) để không làm ảnh hưởng đến
  * luồng giao diện chính của ứng dụng.
+ * <p>
+ * Một WatchService và một luồng theo dõi phục vụ mọi thư mục gốc; thư mục con mới được đăng ký ngay khi xuất hiện.
+ * File mới không được báo ngay khi có sự kiện: {@link FileReadinessChecker} chờ đến khi file được ghi xong
+ * (kích thước và mtime ổn định, không còn bị chương trình khác giữ) rồi mới gọi {@code onImageDetected}.
+ * Các lần kiểm tra và lời gọi callback chạy trên executor luồng ảo dùng chung, chia lượt công bằng giữa các thư mục gốc
+ * ({@link FairDispatcher}), nên một đợt chụp liên tục từ một máy ảnh không làm ảnh của máy ảnh kia phải chờ.
+ * <p>
+ * Khi hệ điều hành làm rơi sự kiện (OVERFLOW, thường gặp khi máy ảnh chụp liên tục), và định kỳ để phòng hờ,
+ * thư mục được đối chiếu với {@link DirectoryIndex} để tìm lại đúng các file bị bỏ sót. Chu kỳ kiểm tra định kỳ đọc từ
+ * system property {@code photobooth.watcher.reconcileSeconds} (mặc định 30 giây, 0 để tắt); số tác vụ chạy cùng lúc
+ * của một watcher đọc từ {@code photobooth.watcher.concurrency} (mặc định 4).
+ * <p>
+ * Trên ổ mạng (SMB/NFS), WatchService thường không nhận được sự kiện hoặc nhận trễ; các thư mục gốc đó được theo dõi
+ * bằng cách thăm dò ({@link Backend#POLLING}): mỗi lượt chỉ liệt kê tên trong từng thư mục một lần và so với chỉ mục,
+ * chu kỳ rút về {@code photobooth.watcher.pollMinMs} (mặc định 250 ms) khi có ảnh mới và giãn dần đến
+ * {@code photobooth.watcher.pollMaxMs} (mặc định 4000 ms) khi thư mục im lặng. Cách theo dõi mặc định đọc từ
+ * {@code photobooth.watcher.backend} ({@code auto}, {@code events} hoặc {@code polling}); {@code auto} thăm dò các
+ * thư mục nằm trên hệ thống file mạng. Có thể chỉ định riêng từng thư mục qua {@link #setBackend} hoặc liệt kê các thư
+ * mục luôn thăm dò trong {@code photobooth.watcher.pollFolders} (ngăn cách bởi {@link File#pathSeparator}).
+ * <p>
+ * Có thể dừng ({@link #stop()}) và chạy lại ({@link #start()}) nhiều lần.
  */
 public class FolderWatcher {
-    /** Đường dẫn đến thư mục cần theo dõi. */
-    private final Path folderPath;
-    /** Dịch vụ theo dõi của Java NIO, dùng để nhận các sự kiện từ hệ điều hành. */
-    private final WatchService watchService;
-    /** Bộ quản lý luồng để chạy tác vụ theo dõi trong nền. */
-    private final ExecutorService executor;
+
+    /** Luồng hẹn giờ dùng chung cho mọi watcher: chỉ hẹn giờ các lần kiểm tra, việc đọc đĩa chạy trên {@link #WORKERS}. */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "folder-watcher-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Executor luồng ảo dùng chung: kiểm tra file đã ghi xong, quét lại thư mục và gọi callback. */
+    private static final ExecutorService WORKERS = Executors.newVirtualThreadPerTaskExecutor();
+
+    /** Kiểu hệ thống file mạng (theo {@link FileStore#type()}) mà WatchService không nhận được sự kiện đáng tin cậy. */
+    private static final Set<String> NETWORK_FILE_SYSTEMS = Set.of(
+            "cifs", "smbfs", "smb2", "smb3", "nfs", "nfs4", "afpfs", "webdav", "davfs", "fuse.sshfs", "sshfs", "9p", "ncpfs", "fuse.rclone");
+
+    /** Cách phát hiện file mới của một thư mục gốc. */
+    public enum Backend {
+        /** Tự chọn: thăm dò nếu thư mục nằm trên hệ thống file mạng, ngược lại dùng sự kiện của hệ điều hành. */
+        AUTO,
+        /** Sự kiện của hệ điều hành (WatchService). */
+        EVENTS,
+        /** Thăm dò định kỳ, cho ổ mạng mà sự kiện không đến hoặc đến trễ. */
+        POLLING
+    }
+
+    /** Các thư mục gốc cần theo dõi. */
+    private final List<Path> roots;
+    /** true nếu theo dõi cả các thư mục con. */
+    private final boolean recursive;
     /**
      * Một hàm (callback) sẽ được gọi mỗi khi một file ảnh mới được phát hiện.
-     * Controller sẽ cung cấp hàm này để xử lý việc thêm ảnh vào danh sách.
+     * Controller sẽ cung cấp hàm này để xử lý việc thêm ảnh vào danh sách. Có thể được gọi đồng thời từ nhiều luồng.
      */
     private final Consumer<Path> onImageDetected;
+    /** Chia lượt công bằng giữa các thư mục gốc trên {@link #WORKERS}. */
+    private final FairDispatcher dispatcher = new FairDispatcher(WORKERS, Integer.getInteger("photobooth.watcher.concurrency", 4));
+    /** Chu kỳ đối chiếu định kỳ (giây), 0 để tắt. */
+    private final long reconcileSeconds = Long.getLong("photobooth.watcher.reconcileSeconds", 30);
+    /** Chu kỳ thăm dò ngắn nhất (khi đang có ảnh mới) và dài nhất (khi thư mục im lặng), ms. */
+    private final long minPollMs = Math.max(10, Long.getLong("photobooth.watcher.pollMinMs", 250));
+    private final long maxPollMs = Math.max(minPollMs, Long.getLong("photobooth.watcher.pollMaxMs", 4000));
+    /** Cách theo dõi được chỉ định riêng cho từng thư mục gốc. */
+    private final Map<Path, Backend> backends = new ConcurrentHashMap<>();
+
+    /** Dịch vụ theo dõi của Java NIO cho lần chạy hiện tại, dùng để nhận các sự kiện từ hệ điều hành. */
+    private WatchService watchService;
+    /** Trạng thái theo từng thư mục gốc của lần chạy hiện tại. */
+    private List<Source> sources = List.of();
+    private ScheduledFuture<?> reconcileTask;
     /** Cờ (flag) để kiểm soát vòng lặp theo dõi, cho phép dừng một cách an toàn. */
     private volatile boolean running;
 
     /**
-     * Hàm khởi tạo (constructor) cho FolderWatcher.
+     * Trạng thái của một thư mục gốc: chỉ mục các file đã biết, giai đoạn chờ file ghi xong và hàng đợi riêng
+     * trong {@link FairDispatcher}.
+     */
+    private final class Source {
+        final Path root;
+        final Executor executor;
+        final DirectoryIndex index;
+        final FileReadinessChecker readiness;
+        /** true khi đã có một lần đối chiếu đang chờ chạy, để nhiều OVERFLOW liên tiếp chỉ gây ra một lần quét. */
+        final AtomicBoolean reconcileQueued = new AtomicBoolean();
+        /** Lượt thăm dò kế tiếp và chu kỳ hiện tại (chỉ dùng khi thư mục được thăm dò). */
+        volatile ScheduledFuture<?> pollTask;
+        volatile long pollDelayMs = minPollMs;
+        /** true khi lần chạy chứa thư mục này đã dừng. */
+        volatile boolean closed;
+
+        Source(Path root) {
+            this.root = root;
+            this.executor = dispatcher.forSource(this);
+            this.index = new DirectoryIndex(root, recursive, FolderWatcher::isImageFile);
+            this.readiness = new FileReadinessChecker(SCHEDULER, executor, path -> deliver(this, path));
+        }
+    }
+
+    /** Một thư mục đã đăng ký với WatchService và thư mục gốc chứa nó. */
+    private record Registration(Source source, Path dir) {
+    }
+
+    /**
+     * Hàm khởi tạo (constructor) cho FolderWatcher theo dõi một thư mục cùng các thư mục con của nó.
      *
      * @param folderPath      Đường dẫn dạng chuỗi (String) đến thư mục cần theo dõi.
      * @param onImageDetected Hàm callback sẽ được thực thi khi có ảnh mới.
-     * @throws IOException Nếu có lỗi khi khởi tạo WatchService.
+     * @throws IOException Nếu thư mục không tồn tại.
      */
     public FolderWatcher(String folderPath, Consumer<Path> onImageDetected) throws IOException {
-        this.folderPath = Paths.get(folderPath);
-        this.watchService = FileSystems.getDefault().newWatchService();
+        this(List.of(Paths.get(folderPath)), true, onImageDetected);
+    }
+
+    /**
+     * Hàm khởi tạo cho FolderWatcher theo dõi nhiều thư mục gốc.
+     *
+     * @param roots           Các thư mục gốc (ví dụ mỗi máy ảnh một thư mục).
+     * @param recursive       true để theo dõi cả các thư mục con, kể cả thư mục con được tạo sau này.
+     * @param onImageDetected Hàm callback sẽ được thực thi khi có ảnh mới (có thể đồng thời từ nhiều luồng).
+     * @throws IOException Nếu một thư mục gốc không tồn tại.
+     */
+    public FolderWatcher(List<Path> roots, boolean recursive, Consumer<Path> onImageDetected) throws IOException {
+        List<Path> absolute = new ArrayList<>();
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) {
+                throw new IOException("Not a folder: " + root);
+            }
+            absolute.add(root.toAbsolutePath().normalize());
+        }
+        this.roots = List.copyOf(absolute);
+        this.recursive = recursive;
         this.onImageDetected = onImageDetected;
         this.running = false;
-        // Mỗi đối tượng FolderWatcher sẽ có một ExecutorService riêng, đảm bảo hoạt động độc lập.
-        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    /** @return Các thư mục gốc đang được theo dõi. */
+    public List<Path> getRoots() {
+        return roots;
     }
 
     /**
-     * Bắt đầu quá trình theo dõi thư mục trên một luồng nền.
+     * Chỉ định cách theo dõi cho một thư mục gốc; có hiệu lực từ lần {@link #start()} kế tiếp.
+     *
+     * @param root    Một trong các thư mục gốc của watcher.
+     * @param backend Cách theo dõi; {@link Backend#AUTO} để tự chọn.
      */
-    public void start() {
+    public void setBackend(Path root, Backend backend) {
+        backends.put(root.toAbsolutePath().normalize(), backend);
+    }
+
+    /**
+     * Bắt đầu quá trình theo dõi các thư mục trên một luồng nền.
+     */
+    public synchronized void start() {
         // Ngăn việc chạy nhiều lần nếu đã đang chạy.
         if (running) return;
         running = true;
+        List<Source> started = new ArrayList<>();
+        List<Source> watched = new ArrayList<>();
+        List<Source> polled = new ArrayList<>();
+        for (Path root : roots) {
+            Source source = new Source(root);
+            started.add(source);
+            (resolveBackend(root) == Backend.POLLING ? polled : watched).add(source);
+        }
+        sources = List.copyOf(started);
 
-        // Gửi tác vụ theo dõi vào bộ quản lý luồng để nó chạy trong nền.
-        executor.submit(() -> {
+        if (!watched.isEmpty()) {
             try {
-                // Đăng ký thư mục với WatchService, chỉ quan tâm đến sự kiện TẠO MỚI (ENTRY_CREATE).
-                folderPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
-                System.out.println("FolderWatcher started for: " + folderPath);
-
-                // Bắt đầu vòng lặp chính để chờ đợi sự kiện.
-                while (running) {
-                    WatchKey key;
-                    try {
-                        // Đây là một lệnh blocking, luồng sẽ "ngủ" ở đây cho đến khi có sự kiện xảy ra.
-                        key = watchService.take();
-                    } catch (InterruptedException | ClosedWatchServiceException e) {
-                        // Thoát vòng lặp một cách an toàn khi service bị đóng (bởi phương thức stop()) hoặc luồng bị ngắt.
-                        break;
-                    }
+                WatchService service = FileSystems.getDefault().newWatchService();
+                watchService = service;
+                // Một luồng theo dõi cho mọi thư mục gốc; nó chỉ nhận sự kiện và chuyển tiếp, không đọc file.
+                Thread thread = new Thread(() -> watchLoop(service, watched, new ConcurrentHashMap<>()), "folder-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                System.err.println("Error watching folder: " + e.getMessage() + ", falling back to polling");
+                polled.addAll(watched);
+            }
+        }
+        for (Source source : polled) {
+            startPolling(source);
+        }
+        if (reconcileSeconds > 0) {
+            reconcileTask = SCHEDULER.scheduleWithFixedDelay(() -> {
+                for (Source source : started) {
+                    source.executor.execute(() -> reconcile(source, false));
+                }
+            }, reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+        }
+    }
 
-                    // Lấy danh sách các sự kiện đã xảy ra.
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        // Chỉ xử lý sự kiện tạo file mới.
-                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-                            // Lấy đường dẫn đầy đủ của file mới được tạo.
-                            Path filePath = folderPath.resolve((Path) event.context());
-                            // Kiểm tra xem file có phải là file ảnh không.
-                            if (isImageFile(filePath)) {
-                                // Nếu đúng là ảnh, gọi hàm callback đã được cung cấp.
-                                if (onImageDetected != null) {
-                                    onImageDetected.accept(filePath);
-                                }
-                            }
+    /**
+     * Vòng lặp nhận sự kiện của một lần chạy.
+     *
+     * @param keys Thư mục đã đăng ký ứng với mỗi WatchKey (riêng cho lần chạy này).
+     */
+    private void watchLoop(WatchService service, List<Source> started, Map<WatchKey, Registration> keys) {
+        try {
+            // Đăng ký các thư mục gốc (và thư mục con) với WatchService: TẠO MỚI (ENTRY_CREATE) và SỬA (ENTRY_MODIFY),
+            // vì file thường được tạo rỗng rồi mới được ghi dần dữ liệu vào.
+            for (Source source : started) {
+                try {
+                    registerTree(service, keys, source, source.root, false);
+                } catch (IOException e) {
+                    // Hệ thống file không hỗ trợ sự kiện: bỏ các thư mục đã kịp đăng ký và chuyển sang thăm dò
+                    System.err.println("Không nhận được sự kiện từ " + source.root + ", chuyển sang thăm dò: " + e.getMessage());
+                    keys.entrySet().removeIf(entry -> {
+                        if (entry.getValue().source() != source) return false;
+                        entry.getKey().cancel();
+                        return true;
+                    });
+                    startPolling(source);
+                    continue;
+                }
+                System.out.println("FolderWatcher started for: " + source.root + (recursive ? " (with subfolders)" : ""));
+                // Chỉ mục ban đầu được dựng sau khi đăng ký, để file đến trong lúc dựng vẫn có sự kiện
+                source.executor.execute(() -> rebuildIndex(source));
+            }
+
+            // Bắt đầu vòng lặp chính để chờ đợi sự kiện.
+            while (running && !keys.isEmpty()) {
+                WatchKey key;
+                try {
+                    // Đây là một lệnh blocking, luồng sẽ "ngủ" ở đây cho đến khi có sự kiện xảy ra.
+                    key = service.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    // Thoát vòng lặp một cách an toàn khi service bị đóng (bởi phương thức stop()) hoặc luồng bị ngắt.
+                    break;
+                }
+                Registration registration = keys.get(key);
+                if (registration == null) {
+                    key.reset();
+                    continue;
+                }
+                Source source = registration.source();
+
+                // Lấy danh sách các sự kiện đã xảy ra.
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    // Hệ điều hành đã làm rơi sự kiện: quét lại thư mục gốc, vòng lặp này tiếp tục nhận sự kiện
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        System.out.println("FolderWatcher: events overflowed, reconciling " + source.root);
+                        requestReconcile(source);
+                        continue;
+                    }
+                    // Chỉ xử lý sự kiện tạo và sửa file.
+                    if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE && event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+                        continue;
+                    }
+                    // Lấy đường dẫn đầy đủ của file.
+                    Path filePath = registration.dir().resolve((Path) event.context());
+                    if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && Files.isDirectory(filePath, LinkOption.NOFOLLOW_LINKS)) {
+                        // Thư mục con mới (ví dụ thư mục của ngày mới): đăng ký ngay, và nhận cả các file đã kịp được ghi vào
+                        try {
+                            registerTree(service, keys, source, filePath, true);
+                        } catch (IOException e) {
+                            // Thư mục bị đổi tên/xóa trước khi kịp đăng ký, hoặc đã chạm giới hạn watch của hệ điều hành:
+                            // chỉ thư mục này bị ảnh hưởng, lần đối chiếu sẽ nhận các file của nó; vòng lặp tiếp tục
+                            System.err.println("Không đăng ký được thư mục con " + filePath + ": " + e.getMessage());
+                            requestReconcile(source);
                         }
+                    } else if (isImageFile(filePath)) {
+                        // Nếu đúng là ảnh, chuyển cho giai đoạn chờ ghi xong; callback được gọi khi file đã sẵn sàng.
+                        source.readiness.offer(filePath);
                     }
-                    // Reset WatchKey để nó sẵn sàng nhận các sự kiện tiếp theo.
-                    if (!key.reset()) {
-                        break; // Thoát vòng lặp nếu thư mục không còn hợp lệ (ví dụ: đã bị xóa).
+                }
+                // Reset WatchKey để nó sẵn sàng nhận các sự kiện tiếp theo.
+                if (!key.reset()) {
+                    // Thư mục không còn hợp lệ (ví dụ: đã bị xóa); chỉ dừng khi không còn thư mục nào được theo dõi.
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        break;
                     }
                 }
-            } catch (IOException e) {
-                // Chỉ báo lỗi nếu watcher vẫn đang trong trạng thái "running".
-                if (running) {
-                    System.err.println("Error watching folder: " + e.getMessage());
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Service bị đóng (watcher dừng) trong lúc đang đăng ký thư mục
+        } finally {
+            System.out.println("FolderWatcher stopped");
+        }
+    }
+
+    /**
+     * Đăng ký một thư mục (và mọi thư mục con nếu theo dõi đệ quy) với WatchService.
+     *
+     * @param offerExisting true để chuyển các file ảnh đã có sẵn trong cây thư mục cho giai đoạn chờ ghi xong
+     *                      (dùng với thư mục vừa được tạo, vì file có thể đến trước khi thư mục được đăng ký).
+     */
+    private void registerTree(WatchService service, Map<WatchKey, Registration> keys, Source source, Path dir, boolean offerExisting) throws IOException {
+        if (!recursive) {
+            keys.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), new Registration(source, dir));
+            return;
+        }
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = subdir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, new Registration(source, subdir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (offerExisting && attrs.isRegularFile() && isImageFile(file)) {
+                    source.readiness.offer(file);
                 }
-            } finally {
-                System.out.println("FolderWatcher stopped");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // Thư mục vừa bị xóa hoặc không có quyền đọc
             }
         });
     }
 
+    /** Dựng chỉ mục rồi bắt đầu chuỗi thăm dò của một thư mục gốc. */
+    private void startPolling(Source source) {
+        System.out.println("FolderWatcher polling " + source.root + (recursive ? " (with subfolders)" : ""));
+        source.executor.execute(() -> {
+            rebuildIndex(source);
+            schedulePoll(source);
+        });
+    }
+
+    private void schedulePoll(Source source) {
+        if (source.closed) return;
+        source.pollTask = SCHEDULER.schedule(() -> source.executor.execute(() -> poll(source)), source.pollDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Một lượt thăm dò: chuyển các file mới cho giai đoạn chờ ghi xong rồi hẹn lượt kế tiếp. Có file mới (đang chụp
+     * liên tục) thì lượt sau chạy với chu kỳ ngắn nhất; thư mục im lặng thì chu kỳ giãn gấp đôi đến mức dài nhất.
+     */
+    private void poll(Source source) {
+        if (source.closed) return;
+        try {
+            List<Path> found = source.index.pollNew();
+            for (Path path : found) {
+                source.readiness.offer(path);
+            }
+            source.pollDelayMs = found.isEmpty() ? Math.min(maxPollMs, source.pollDelayMs * 2) : minPollMs;
+        } catch (IOException e) {
+            // Ổ mạng mất kết nối: chỉ báo một lần, thử lại với chu kỳ dài nhất cho đến khi đọc được
+            if (source.pollDelayMs < maxPollMs) {
+                System.err.println("Không đọc được thư mục theo dõi " + source.root + ": " + e.getMessage());
+            }
+            source.pollDelayMs = maxPollMs;
+        }
+        schedulePoll(source);
+    }
+
+    /** Ghi nhận file vào chỉ mục rồi báo cho controller. */
+    private void deliver(Source source, Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            source.index.record(path, attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            // File vừa bị xóa: lần đối chiếu sau sẽ tự bỏ khỏi chỉ mục
+        }
+        if (onImageDetected != null) {
+            onImageDetected.accept(path);
+        }
+    }
+
+    /** Dựng chỉ mục từ các file đang có (các file này đã được controller nạp khi chọn thư mục). */
+    private void rebuildIndex(Source source) {
+        try {
+            long start = System.nanoTime();
+            source.index.rebuild();
+            System.out.println("FolderWatcher indexed " + source.index.size() + " images in " + source.root + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Không dựng được chỉ mục thư mục theo dõi: " + e.getMessage());
+        }
+    }
+
+    /** Yêu cầu một lần đối chiếu đầy đủ thư mục gốc; các yêu cầu đến khi lần trước chưa chạy được gộp lại. */
+    private void requestReconcile(Source source) {
+        if (source.reconcileQueued.compareAndSet(false, true)) {
+            try {
+                source.executor.execute(() -> {
+                    source.reconcileQueued.set(false); // OVERFLOW đến trong lúc quét sẽ gây ra thêm một lần quét sau lần này
+                    reconcile(source, true);
+                });
+            } catch (RejectedExecutionException e) {
+                source.reconcileQueued.set(false);
+            }
+        }
+    }
+
     /**
-     * Dừng quá trình theo dõi một cách an toàn.
+     * Đối chiếu thư mục gốc với chỉ mục và chuyển các file bị bỏ sót cho giai đoạn chờ ghi xong
+     * (file đang chờ sẵn ở đó được gộp lại, nên không bị báo hai lần).
      */
-    public void stop() {
+    private void reconcile(Source source, boolean force) {
+        if (source.closed) return;
+        try {
+            long start = System.nanoTime();
+            List<Path> missed = source.index.reconcile(force);
+            for (Path path : missed) {
+                source.readiness.offer(path);
+            }
+            if (force || !missed.isEmpty()) {
+                System.out.println("FolderWatcher reconciled " + source.index.size() + " images in " + source.root + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms, " + missed.size() + " missed");
+            }
+        } catch (IOException e) {
+            System.err.println("Không quét lại được thư mục theo dõi: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Dừng quá trình theo dõi một cách an toàn. Các executor dùng chung không bị dừng, nên có thể gọi {@link #start()} lại.
+     */
+    public synchronized void stop() {
         // Đặt cờ running thành false để vòng lặp chính kết thúc.
         running = false;
+        if (reconcileTask != null) {
+            reconcileTask.cancel(false);
+            reconcileTask = null;
+        }
+        // Dừng thăm dò và bỏ các file đang chờ ghi xong.
+        for (Source source : sources) {
+            source.closed = true;
+            ScheduledFuture<?> pollTask = source.pollTask;
+            if (pollTask != null) {
+                pollTask.cancel(false);
+            }
+            source.readiness.close();
+        }
+        if (watchService != null) {
+            try {
+                // Đóng watchService. Hành động này sẽ gây ra một ngoại lệ (Exception)
+                // ở lệnh watchService.take(), giúp "đánh thức" luồng đang ngủ và thoát ra.
+                watchService.close();
+            } catch (IOException e) {
+                System.err.println("Error closing watch service: " + e.getMessage());
+            }
+            watchService = null;
+        }
+    }
+
+    /** Cách theo dõi của một thư mục gốc: chỉ định riêng, danh sách thăm dò, mặc định, rồi tự chọn nếu là AUTO. */
+    private Backend resolveBackend(Path root) {
+        Backend backend = backends.get(root);
+        if (backend == null) {
+            backend = pollFolders().contains(root) ? Backend.POLLING : defaultBackend();
+        }
+        if (backend != Backend.AUTO) {
+            return backend;
+        }
+        return isNetworkFolder(root) ? Backend.POLLING : Backend.EVENTS;
+    }
+
+    private static Backend defaultBackend() {
+        String value = System.getProperty("photobooth.watcher.backend", "auto");
         try {
-            // Đóng watchService. Hành động này sẽ gây ra một ngoại lệ (Exception)
-            // ở lệnh watchService.take(), giúp "đánh thức" luồng đang ngủ và thoát ra.
-            watchService.close();
+            return Backend.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Giá trị photobooth.watcher.backend không hợp lệ: " + value);
+            return Backend.AUTO;
+        }
+    }
+
+    private static Set<Path> pollFolders() {
+        String value = System.getProperty("photobooth.watcher.pollFolders", "");
+        Set<Path> folders = new HashSet<>();
+        for (String folder : value.split(Pattern.quote(File.pathSeparator))) {
+            if (!folder.isBlank()) {
+                folders.add(Paths.get(folder.trim()).toAbsolutePath().normalize());
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * @return true nếu thư mục nằm trên ổ mạng: đường dẫn UNC của Windows ({@code \\server\share}) hoặc hệ thống file
+     *         mạng theo {@link FileStore#type()}. Ổ mạng đã gán ký tự trên Windows không phân biệt được, cần chỉ định
+     *         {@link Backend#POLLING}.
+     */
+    static boolean isNetworkFolder(Path root) {
+        if (root.toString().startsWith("\\\\")) {
+            return true;
+        }
+        try {
+            String type = Files.getFileStore(root).type().toLowerCase(Locale.ROOT);
+            return NETWORK_FILE_SYSTEMS.contains(type) || type.startsWith("nfs") || type.startsWith("smb");
         } catch (IOException e) {
-            System.err.println("Error closing watch service: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Liệt kê các file ảnh đang có trong các thư mục gốc, theo thứ tự đường dẫn.
+     *
+     * @param roots     Các thư mục gốc.
+     * @param recursive true để gồm cả các thư mục con.
+     * @return Danh sách file ảnh; thư mục không đọc được bị bỏ qua.
+     */
+    public static List<File> listImages(List<Path> roots, boolean recursive) {
+        List<File> images = new ArrayList<>();
+        for (Path root : roots) {
+            try (var stream = Files.walk(root, recursive ? Integer.MAX_VALUE : 1)) {
+                stream.filter(path -> isImageFile(path) && Files.isRegularFile(path))
+                        .sorted()
+                        .forEach(path -> images.add(path.toFile()));
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Không đọc được thư mục " + root + ": " + e.getMessage());
+            }
         }
-        // Yêu cầu ExecutorService dừng tất cả các tác vụ ngay lập tức.
-        executor.shutdownNow();
+        return images;
     }
 
     /**
@@ -122,8 +551,8 @@ public class FolderWatcher {
      * @param filePath Đường dẫn đến file cần kiểm tra.
      * @return true nếu là file ảnh (.jpg, .jpeg, .png), ngược lại là false.
      */
-    private boolean isImageFile(Path filePath) {
+    public static boolean isImageFile(Path filePath) {
         String fileName = filePath.toString().toLowerCase();
         return fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") || fileName.endsWith(".png");
     }
-}
\ No newline at end of file
+}
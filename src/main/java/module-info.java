@@ -4,9 +4,12 @@ module com.photobooth {
     requires javafx.fxml;
     requires java.desktop;      // Cần cho ImageIO (đọc kích thước ảnh)
     requires com.google.gson;   // Cần cho việc lưu/tải config
+    requires jdk.jfr;           // Sự kiện JDK Flight Recorder cho từng giai đoạn dựng ảnh
 
     // Mở package 'config' cho module 'gson' để nó có thể đọc/ghi JSON
     opens com.photobooth.config to com.google.gson;
+    // Mở package 'queue' cho 'gson' để ghi/đọc nhật ký hàng đợi dựng ảnh
+    opens com.photobooth.queue to com.google.gson;
     // Mở package 'ui' cho module 'fxml' để nó có thể truy cập controller và các thành phần FXML
     opens com.photobooth.ui to javafx.fxml;
 